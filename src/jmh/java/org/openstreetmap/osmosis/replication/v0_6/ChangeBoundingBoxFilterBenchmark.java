@@ -0,0 +1,95 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+
+/**
+ * Filters a synthetic change stream through a bounding box in every filter
+ * mode and with every id tracker type. One operation is a whole stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeBoundingBoxFilterBenchmark {
+
+	private static final int NODE_COUNT = 100000;
+
+	@Param({"plain", "completeWays", "completeRelations", "cascadingRelations"})
+	private String mode;
+
+	@Param({"BitSet", "IdList", "Dynamic", "Roaring", "Auto"})
+	private ChangeIdTrackerType idTrackerType;
+
+	private List<ChangeContainer> changes;
+
+
+	/**
+	 * Generates the change stream, a quarter of it lies within the box.
+	 */
+	@Setup
+	public void setUp() {
+		changes = SyntheticChanges.generate(42, NODE_COUNT, -40, 40, -40, 40);
+	}
+
+
+	/**
+	 * Filters the whole stream.
+	 *
+	 * @param blackhole
+	 *            Consumes the filter output.
+	 */
+	@Benchmark
+	public void filterStream(final Blackhole blackhole) {
+		ChangeBoundingBoxFilter filter = new ChangeBoundingBoxFilter(idTrackerType, -20, 20, 20, -20, false,
+				"completeWays".equals(mode), "completeRelations".equals(mode), "cascadingRelations".equals(mode));
+
+		filter.setChangeSink(new ChangeSink() {
+			@Override
+			public void initialize(Map<String, Object> metaData) {
+				// Nothing to do.
+			}
+
+			@Override
+			public void process(ChangeContainer change) {
+				blackhole.consume(change);
+			}
+
+			@Override
+			public void complete() {
+				// Nothing to do.
+			}
+
+			@Override
+			public void release() {
+				// Nothing to do.
+			}
+		});
+
+		for (ChangeContainer change : changes) {
+			filter.process(change);
+		}
+		filter.complete();
+		filter.release();
+	}
+}
@@ -0,0 +1,150 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.store.DataOutputStoreWriter;
+import org.openstreetmap.osmosis.core.store.DynamicStoreClassRegister;
+import org.openstreetmap.osmosis.core.store.ObjectSerializationFactory;
+import org.openstreetmap.osmosis.core.store.ObjectWriter;
+import org.openstreetmap.osmosis.core.store.SimpleObjectStore;
+import org.openstreetmap.osmosis.core.store.SingleClassObjectSerializationFactory;
+import org.openstreetmap.osmosis.replication.v0_6.impl.CompactChangeSerializationFactory;
+
+/**
+ * Measures writing the changes of an interval to a temporary store and
+ * reading them back, as the filter spool does. The encoded size per change is
+ * reported as a secondary result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangeSerializationBenchmark {
+
+	/**
+	 * The serialization, Generic for the serialization of the core stores.
+	 */
+	@Param({"Generic", "Compact"})
+	public String serialization;
+
+	/**
+	 * Whether the store gzip compresses its file.
+	 */
+	@Param({"true", "false"})
+	public boolean useCompression;
+
+	private List<ChangeContainer> changes;
+	private ObjectSerializationFactory factory;
+	private double bytesPerChange;
+
+
+	/**
+	 * Reports the encoded size of the changes with each iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class EncodedSize {
+
+		/**
+		 * The encoded bytes per change.
+		 */
+		public double bytesPerChange;
+
+
+		/**
+		 * Clears the size before an iteration.
+		 */
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytesPerChange = 0;
+		}
+	}
+
+
+	/**
+	 * Creates the changes and measures their encoded size.
+	 *
+	 * @throws IOException
+	 *             if the changes cannot be encoded.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		changes = SyntheticChanges.generate(5, 50000, -10, 10, -10, 10);
+		if ("Compact".equals(serialization)) {
+			factory = new CompactChangeSerializationFactory();
+		} else {
+			factory = new SingleClassObjectSerializationFactory(ChangeContainer.class);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = useCompression ? new GZIPOutputStream(bytes) : bytes;
+		DataOutputStream dataOut = new DataOutputStream(out);
+		ObjectWriter writer = factory.createObjectWriter(new DataOutputStoreWriter(dataOut),
+				new DynamicStoreClassRegister());
+		for (ChangeContainer change : changes) {
+			writer.writeObject(change);
+		}
+		dataOut.close();
+		bytesPerChange = (double) bytes.size() / changes.size();
+	}
+
+
+	/**
+	 * Writes all changes and reads them back.
+	 *
+	 * @param size
+	 *            Receives the encoded size of the changes.
+	 * @return The number of changes read.
+	 */
+	@Benchmark
+	public int spool(EncodedSize size) {
+		SimpleObjectStore<ChangeContainer> store = new SimpleObjectStore<ChangeContainer>(factory, "bsp",
+				useCompression);
+		int count = 0;
+
+		try {
+			for (ChangeContainer change : changes) {
+				store.add(change);
+			}
+			ReleasableIterator<ChangeContainer> iterator = store.iterate();
+			try {
+				while (iterator.hasNext()) {
+					iterator.next();
+					count++;
+				}
+			} finally {
+				iterator.release();
+			}
+		} finally {
+			store.release();
+		}
+
+		size.bytesPerChange = bytesPerChange;
+
+		return count;
+	}
+}
@@ -0,0 +1,89 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+
+/**
+ * Measures the per node area test of the change filters. With the gc
+ * profiler, gc.alloc.rate.norm shows the bytes allocated per call, which is
+ * expected to be zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeClassificationBenchmark {
+
+	private ChangeAreaFilter boxFilter;
+	private ChangeAreaFilter antimeridianBoxFilter;
+	private Node[] nodes;
+	private int next;
+
+
+	/**
+	 * Creates the filters and nodes spread over the whole world.
+	 */
+	@Setup
+	public void setUp() {
+		List<Node> nodeList = new ArrayList<Node>();
+
+		for (ChangeContainer change : SyntheticChanges.generate(7, 4096, -180, 180, -90, 90)) {
+			if (change.getEntityContainer() instanceof NodeContainer) {
+				nodeList.add(((NodeContainer) change.getEntityContainer()).getEntity());
+			}
+		}
+		nodes = nodeList.toArray(new Node[nodeList.size()]);
+
+		boxFilter = new ChangeBoundingBoxFilter(ChangeIdTrackerType.Dynamic, -20, 20, 20, -20, false, false, false,
+				false);
+		antimeridianBoxFilter = new ChangeBoundingBoxFilter(ChangeIdTrackerType.Dynamic, 170, -170, 20, -20, false,
+				false, false, false);
+	}
+
+
+	private Node nextNode() {
+		next = (next + 1) & (nodes.length - 1);
+		return nodes[next];
+	}
+
+
+	/**
+	 * A box within the longitude range.
+	 *
+	 * @return The test result.
+	 */
+	@Benchmark
+	public boolean boundingBox() {
+		return boxFilter.isNodeWithinArea(nextNode());
+	}
+
+
+	/**
+	 * A box crossing the antimeridian, split into two simple boxes.
+	 *
+	 * @return The test result.
+	 */
+	@Benchmark
+	public boolean antimeridianBoundingBox() {
+		return antimeridianBoxFilter.isNodeWithinArea(nextNode());
+	}
+}
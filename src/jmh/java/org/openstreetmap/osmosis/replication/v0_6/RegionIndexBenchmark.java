@@ -0,0 +1,112 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.replication.v0_6.impl.Region;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionIndex;
+
+
+/**
+ * Measures locating the regions of a node through the region index against
+ * testing every region, for growing region counts. One operation is one node.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionIndexBenchmark {
+
+	private static final int NODE_COUNT = 1 << 16;
+
+	@Param({"3", "100", "1000", "10000"})
+	private int regionCount;
+
+	private List<Region> regions;
+	private RegionIndex index;
+	private int[] result;
+	private double[] latitudes;
+	private double[] longitudes;
+	private int next;
+
+
+	/**
+	 * Creates random small regions and nodes spread over the whole world.
+	 */
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+
+		regions = new ArrayList<Region>();
+		for (int i = 0; i < regionCount; i++) {
+			double left = random.nextDouble() * 340 - 170;
+			double bottom = random.nextDouble() * 160 - 80;
+			Region region = new Region();
+			region.setKey("r" + i);
+			region.setBound(new Bound(left + random.nextDouble() * 2, left,
+					bottom + random.nextDouble() * 2, bottom, ""));
+			regions.add(region);
+		}
+		index = new RegionIndex(regions);
+		result = new int[regionCount];
+
+		latitudes = new double[NODE_COUNT];
+		longitudes = new double[NODE_COUNT];
+		for (int i = 0; i < NODE_COUNT; i++) {
+			latitudes[i] = random.nextDouble() * 180 - 90;
+			longitudes[i] = random.nextDouble() * 360 - 180;
+		}
+	}
+
+
+	/**
+	 * Looks a node up in the index.
+	 *
+	 * @return The number of matching regions.
+	 */
+	@Benchmark
+	public int indexed() {
+		next = (next + 1) & (NODE_COUNT - 1);
+		return index.findRegions(latitudes[next], longitudes[next], result);
+	}
+
+
+	/**
+	 * Tests a node against every region, as one filter per region does.
+	 *
+	 * @return The number of matching regions.
+	 */
+	@Benchmark
+	public int linearScan() {
+		int matches = 0;
+
+		next = (next + 1) & (NODE_COUNT - 1);
+		for (Region region : regions) {
+			for (Bound b : region.getBound().toSimpleBound()) {
+				if (b.getTop() >= latitudes[next] && b.getBottom() <= latitudes[next]
+						&& b.getLeft() <= longitudes[next] && b.getRight() >= longitudes[next]) {
+					matches++;
+				}
+			}
+		}
+
+		return matches;
+	}
+}
@@ -0,0 +1,139 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.osmosis.replication.common.ReplicationState;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+
+/**
+ * Splits a synthetic replication file into a growing number of regions. The
+ * regions tile the area of the changes. One operation reads one replication
+ * file and closes one interval, writing a file and state per region; no
+ * download is involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ReplicationFileRegionSpliterBenchmark {
+
+	private static final int NODE_COUNT = 20000;
+	private static final int INTERVAL_LENGTH = 60;
+
+	@Param({"1", "100", "10000"})
+	private int regionCount;
+
+	private File workingDirectory;
+	private File changeFile;
+	private ReplicationFileRegionSpliter spliter;
+	private long interval;
+
+
+	private void writeConfiguration() throws IOException {
+		Writer writer = new FileWriter(new File(workingDirectory, "configuration.txt"));
+		try {
+			writer.write("baseUrl=http://localhost/\nintervalLength=" + INTERVAL_LENGTH + "\nmaxInterval=0\n");
+		} finally {
+			writer.close();
+		}
+
+		// Square tiles over the -40..40 area of the changes.
+		int side = (int) Math.ceil(Math.sqrt(regionCount));
+		double size = 80.0 / side;
+		writer = new FileWriter(new File(workingDirectory, "area-list.json"));
+		try {
+			writer.write("[");
+			for (int i = 0; i < regionCount; i++) {
+				double left = -40 + (i % side) * size;
+				double top = 40 - (i / side) * size;
+				if (i > 0) {
+					writer.write(",");
+				}
+				writer.write("{\"name\": \"r" + i + "\", \"folder\": \"r" + i + "\", \"bound\": {\"top-left\": \""
+						+ top + "," + left + "\", \"bottom-right\": \"" + (top - size) + "," + (left + size)
+						+ "\"}}");
+				new File(workingDirectory, "r" + i).mkdir();
+			}
+			writer.write("]");
+		} finally {
+			writer.close();
+		}
+	}
+
+
+	/**
+	 * Creates the working directory, regions and the replication file.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		workingDirectory = File.createTempFile("spliterbenchmark", "");
+		workingDirectory.delete();
+		workingDirectory.mkdir();
+		writeConfiguration();
+
+		changeFile = new File(workingDirectory, "changes.osc");
+		SyntheticChanges.write(SyntheticChanges.generate(42, NODE_COUNT, -40, 40, -40, 40), changeFile);
+
+		spliter = new ReplicationFileRegionSpliter(workingDirectory);
+		spliter.processInitializeState(new ReplicationState(new Date(0), 0));
+		interval = 0;
+	}
+
+
+	/**
+	 * Splits the replication file into the next interval, closing the
+	 * previous one.
+	 */
+	@Benchmark
+	public void splitInterval() {
+		interval++;
+		spliter.processChangeset(new XmlChangeReader(changeFile, true, CompressionMethod.None),
+				new ReplicationState(new Date(interval * INTERVAL_LENGTH * 1000 + 1), interval));
+	}
+
+
+	/**
+	 * Closes the spliter and removes all files.
+	 */
+	@TearDown
+	public void tearDown() {
+		spliter.processComplete();
+		spliter.processRelease();
+		delete(workingDirectory);
+	}
+
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,149 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter;
+
+/**
+ * Generates reproducible change streams shaped like a minutely diff: mostly
+ * node changes, ways made of nearby nodes and relations over ways and other
+ * relations, in streamable order.
+ */
+final class SyntheticChanges {
+
+	private static final int NODES_PER_WAY = 5;
+	private static final int WAYS_PER_RELATION = 4;
+
+	private SyntheticChanges() {
+		// Static helpers only.
+	}
+
+
+	private static CommonEntityData data(long id, Random random) {
+		List<Tag> tags = new ArrayList<Tag>();
+		if (random.nextInt(4) == 0) {
+			tags.add(new Tag("highway", "residential"));
+		}
+		return new CommonEntityData(id, 1 + random.nextInt(5), new Date(1400000000000L),
+				new OsmUser(12, "OsmosisBenchmark"), 1000 + id, tags);
+	}
+
+
+	private static ChangeAction action(Random random) {
+		int value = random.nextInt(10);
+		return value < 2 ? ChangeAction.Create : (value < 9 ? ChangeAction.Modify : ChangeAction.Delete);
+	}
+
+
+	/**
+	 * Generates a change stream within an area.
+	 *
+	 * @param seed
+	 *            The random seed.
+	 * @param nodeCount
+	 *            The number of node changes, ways and relations are derived
+	 *            from it.
+	 * @param left
+	 *            The western edge of the area.
+	 * @param right
+	 *            The eastern edge of the area.
+	 * @param bottom
+	 *            The southern edge of the area.
+	 * @param top
+	 *            The northern edge of the area.
+	 * @return The changes in streamable order.
+	 */
+	static List<ChangeContainer> generate(long seed, int nodeCount, double left, double right, double bottom,
+			double top) {
+		Random random = new Random(seed);
+		List<ChangeContainer> changes = new ArrayList<ChangeContainer>();
+		int wayCount = nodeCount / NODES_PER_WAY;
+		int relationCount = wayCount / WAYS_PER_RELATION;
+
+		// Ways reference consecutive nodes, so nodes are placed along short
+		// random walks to keep ways local.
+		double latitude = 0;
+		double longitude = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			if (i % NODES_PER_WAY == 0) {
+				latitude = bottom + random.nextDouble() * (top - bottom);
+				longitude = left + random.nextDouble() * (right - left);
+			} else {
+				latitude = Math.max(bottom, Math.min(top, latitude + (random.nextDouble() - 0.5) * 0.01));
+				longitude = Math.max(left, Math.min(right, longitude + (random.nextDouble() - 0.5) * 0.01));
+			}
+			// Coordinates have the precision of replication files.
+			changes.add(new ChangeContainer(new NodeContainer(new Node(data(i + 1, random),
+					FixedPrecisionCoordinateConvertor.convertToDouble(FixedPrecisionCoordinateConvertor
+							.convertToFixed(latitude)),
+					FixedPrecisionCoordinateConvertor.convertToDouble(FixedPrecisionCoordinateConvertor
+							.convertToFixed(longitude)))), action(random)));
+		}
+
+		for (int i = 0; i < wayCount; i++) {
+			List<WayNode> wayNodes = new ArrayList<WayNode>();
+			for (int j = 0; j < NODES_PER_WAY; j++) {
+				wayNodes.add(new WayNode(i * NODES_PER_WAY + j + 1));
+			}
+			changes.add(new ChangeContainer(new WayContainer(
+					new Way(data(i + 1, random), wayNodes)), action(random)));
+		}
+
+		for (int i = 0; i < relationCount; i++) {
+			List<RelationMember> members = new ArrayList<RelationMember>();
+			for (int j = 0; j < WAYS_PER_RELATION; j++) {
+				members.add(new RelationMember(random.nextInt(wayCount) + 1, EntityType.Way, "outer"));
+			}
+			if (i > 0 && random.nextInt(4) == 0) {
+				members.add(new RelationMember(random.nextInt(i) + 1, EntityType.Relation, ""));
+			}
+			changes.add(new ChangeContainer(new RelationContainer(
+					new Relation(data(i + 1, random), members)), action(random)));
+		}
+
+		return changes;
+	}
+
+
+	/**
+	 * Writes changes to an uncompressed OSC file.
+	 *
+	 * @param changes
+	 *            The changes.
+	 * @param file
+	 *            The destination file.
+	 */
+	static void write(List<ChangeContainer> changes, File file) {
+		XmlChangeWriter writer = new XmlChangeWriter(file, CompressionMethod.None);
+
+		try {
+			for (ChangeContainer change : changes) {
+				writer.process(change);
+			}
+			writer.complete();
+		} finally {
+			writer.release();
+		}
+	}
+}
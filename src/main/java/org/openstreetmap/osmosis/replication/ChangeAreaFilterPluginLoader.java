@@ -7,6 +7,7 @@ import java.util.Map;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
 import org.openstreetmap.osmosis.core.plugin.PluginLoader;
 import org.openstreetmap.osmosis.replication.v0_6.ChangeBoundingBoxFilterFactory;
+import org.openstreetmap.osmosis.replication.v0_6.ChangePolygonFilterFactory;
 import org.openstreetmap.osmosis.replication.v0_6.ReplicationFileSpliterInitializerFactory;
 import org.openstreetmap.osmosis.replication.v0_6.ReplicationFileRegionSpliterFactory;
 
@@ -29,6 +30,8 @@ public class ChangeAreaFilterPluginLoader implements PluginLoader {
 		factoryMap.put("bounding-box-change",
 				new ChangeBoundingBoxFilterFactory());
 		factoryMap.put("bbc", new ChangeBoundingBoxFilterFactory());
+		factoryMap.put("polygon-change", new ChangePolygonFilterFactory());
+		factoryMap.put("pc", new ChangePolygonFilterFactory());
 		factoryMap.put("split-replication-files",
 				new ReplicationFileRegionSpliterFactory());
 		factoryMap.put("srf", new ReplicationFileRegionSpliterFactory());
@@ -1,6 +1,7 @@
 // This software is released into the Public Domain.  See copying.txt for details.
 package org.openstreetmap.osmosis.replication.v0_6;
 
+import java.util.Date;
 import java.util.Map;
 
 import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
@@ -8,19 +9,29 @@ import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
 import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
 import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
 import org.openstreetmap.osmosis.core.domain.v0_6.Way;
 import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
 import org.openstreetmap.osmosis.core.filter.common.IdTracker;
-import org.openstreetmap.osmosis.core.filter.common.IdTrackerFactory;
 import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
 import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
-import org.openstreetmap.osmosis.core.store.SimpleObjectStore;
-import org.openstreetmap.osmosis.core.store.SingleClassObjectSerializationFactory;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
 import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
 import org.openstreetmap.osmosis.core.task.v0_6.ChangeSinkChangeSource;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+import org.openstreetmap.osmosis.replication.v0_6.impl.BatchChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeBatcher;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerFactory;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeSpool;
+import org.openstreetmap.osmosis.replication.v0_6.impl.FilterBatchEvent;
+import org.openstreetmap.osmosis.replication.v0_6.impl.FilterPumpEvent;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
 
 /**
  * A base class for all tasks filter entities within an area.
@@ -28,7 +39,7 @@ import org.openstreetmap.osmosis.core.task.v0_6.ChangeSinkChangeSource;
  * @author Brett Henderson
  * @author Karl Newman
  */
-public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
+public abstract class ChangeAreaFilter implements ChangeSinkChangeSource, BatchChangeSink {
 
 	private IdTracker availableNodes; // Nodes within the area.
 	private IdTracker requiredNodes; // Nodes needed to complete referencing
@@ -42,16 +53,20 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	private boolean completeWays;
 	private boolean storeEntities;
 	private boolean cascadingRelations;
-	private SimpleObjectStore<ChangeContainer> allWays;
-	private SimpleObjectStore<ChangeContainer> allNodes;
+	private ChangeSpool allWays;
+	private ChangeSpool allNodes;
 	// this duplicates as a container for held-back relations in the
 	// cascadingRelations case:
-	private SimpleObjectStore<ChangeContainer> allRelations;
+	private ChangeSpool allRelations;
+	private NodeLocationStore nodeLocations;
+	private FilterBatchEvent batchEvent;
+	private ChangeBatcher batchEmitter;
+	private ChangeBatcher emitter; // Set while a batch is processed.
 
 	private ChangeSink changeSink;
 
 	/**
-	 * Creates a new instance.
+	 * Creates a new instance using one of the core id trackers.
 	 * 
 	 * @param idTrackerType
 	 *            Defines the id tracker implementation to use.
@@ -72,6 +87,33 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	public ChangeAreaFilter(IdTrackerType idTrackerType,
 			boolean clipIncompleteEntities, boolean completeWays,
 			boolean completeRelations, boolean cascadingRelations) {
+		this(ChangeIdTrackerType.fromCoreType(idTrackerType),
+				clipIncompleteEntities, completeWays, completeRelations,
+				cascadingRelations);
+	}
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param idTrackerType
+	 *            Defines the id tracker implementation to use.
+	 * @param clipIncompleteEntities
+	 *            If true, entities referring to non-existent entities will be
+	 *            modified to ensure referential integrity. For example, ways
+	 *            will be modified to only include nodes inside the area.
+	 * @param completeWays
+	 *            Include all nodes for ways which have at least one node inside
+	 *            the filtered area.
+	 * @param completeRelations
+	 *            Include all relations referenced by other relations which have
+	 *            members inside the filtered area.
+	 * @param cascadingRelations
+	 *            Make sure that a relation referencing a relation which is
+	 *            included will also be included.
+	 */
+	public ChangeAreaFilter(ChangeIdTrackerType idTrackerType,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
 		// Allowing complete relations without complete ways is very difficult
 		// and not allowed for
 		// now.
@@ -82,34 +124,39 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 		this.cascadingRelations = cascadingRelations && !completeRelations
 				&& !completeWays;
 
-		availableNodes = IdTrackerFactory.createInstance(idTrackerType);
-		requiredNodes = IdTrackerFactory.createInstance(idTrackerType);
-		availableWays = IdTrackerFactory.createInstance(idTrackerType);
-		requiredWays = IdTrackerFactory.createInstance(idTrackerType);
-		availableRelations = IdTrackerFactory.createInstance(idTrackerType);
-		requiredRelations = IdTrackerFactory.createInstance(idTrackerType);
+		availableNodes = ChangeIdTrackerFactory.createInstance(idTrackerType);
+		requiredNodes = ChangeIdTrackerFactory.createInstance(idTrackerType);
+		availableWays = ChangeIdTrackerFactory.createInstance(idTrackerType);
+		requiredWays = ChangeIdTrackerFactory.createInstance(idTrackerType);
+		availableRelations = ChangeIdTrackerFactory.createInstance(idTrackerType);
+		requiredRelations = ChangeIdTrackerFactory.createInstance(idTrackerType);
 
 		// If either complete ways or complete relations are required, then all
 		// data must be stored
 		// during processing.
 		storeEntities = completeWays || completeRelations;
 		if (storeEntities) {
-			allNodes = new SimpleObjectStore<ChangeContainer>(
-					new SingleClassObjectSerializationFactory(
-							ChangeContainer.class), "afn", true);
-			allWays = new SimpleObjectStore<ChangeContainer>(
-					new SingleClassObjectSerializationFactory(
-							ChangeContainer.class), "afw", true);
-			allRelations = new SimpleObjectStore<ChangeContainer>(
-					new SingleClassObjectSerializationFactory(
-							ChangeContainer.class), "afr", true);
+			allNodes = new ChangeSpool("afn");
+			allWays = new ChangeSpool("afw");
+			allRelations = new ChangeSpool("afr");
 		} else if (cascadingRelations) {
-			allRelations = new SimpleObjectStore<ChangeContainer>(
-					new SingleClassObjectSerializationFactory(
-							ChangeContainer.class), "afr", true);
+			allRelations = new ChangeSpool("afr");
 		}
 	}
 
+	/**
+	 * Enables placing ways through the stored location of nodes that are not
+	 * part of the change stream. Every node change updates the store, the
+	 * updates are committed on completion. The store is released along with
+	 * the filter.
+	 * 
+	 * @param nodeLocations
+	 *            The node location store.
+	 */
+	public void setNodeLocationStore(NodeLocationStore nodeLocations) {
+		this.nodeLocations = nodeLocations;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -121,6 +168,64 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	 * {@inheritDoc}
 	 */
 	public void process(ChangeContainer changeContainer) {
+		if (batchEvent == null) {
+			batchEvent = new FilterBatchEvent(getClass().getSimpleName(), 1);
+		}
+		if (batchEvent.addChange(classify(changeContainer))) {
+			commitBatchEvent();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void process(ChangeContainer[] changes, int count) {
+		int nodes = 0;
+		int ways = 0;
+		int relations = 0;
+
+		if (batchEvent == null) {
+			batchEvent = new FilterBatchEvent(getClass().getSimpleName(), 1);
+		}
+		if (batchEmitter == null) {
+			batchEmitter = new ChangeBatcher(changeSink);
+		}
+
+		// The changes passed on are collected and handed to the sink as one
+		// batch.
+		emitter = batchEmitter;
+		try {
+			for (int i = 0; i < count; i++) {
+				switch (classify(changes[i])) {
+				case Node:
+					nodes++;
+					break;
+				case Way:
+					ways++;
+					break;
+				case Relation:
+					relations++;
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			emitter = null;
+		}
+		batchEmitter.flush();
+
+		if (batchEvent.addChanges(nodes, ways, relations)) {
+			commitBatchEvent();
+		}
+	}
+
+	/**
+	 * Passes a change to the processing method of its entity type.
+	 * 
+	 * @return The entity type of the change.
+	 */
+	private EntityType classify(ChangeContainer changeContainer) {
 		// Ask the entity container to invoke the appropriate processing method
 		// for the entity type.
 		EntityContainer ec = changeContainer.getEntityContainer();
@@ -131,6 +236,15 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 		} else if (ec instanceof RelationContainer) {
 			processRelationChange(changeContainer);
 		}
+
+		return ec.getEntity().getType();
+	}
+
+	private void commitBatchEvent() {
+		if (batchEvent != null) {
+			batchEvent.commit();
+			batchEvent = null;
+		}
 	}
 
 	/**
@@ -142,6 +256,21 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	 */
 	protected abstract boolean isNodeWithinArea(Node node);
 
+	/**
+	 * Indicates if a location lies within the area required. This checks a
+	 * node at the location, subclasses may test the location directly.
+	 * 
+	 * @param latitude
+	 *            The latitude of the location.
+	 * @param longitude
+	 *            The longitude of the location.
+	 * @return True if the location lies within the area.
+	 */
+	protected boolean isLocationWithinArea(double latitude, double longitude) {
+		return isNodeWithinArea(new Node(new CommonEntityData(0, 0, new Date(0),
+				OsmUser.NONE, 0), latitude, longitude));
+	}
+
 	/**
 	 * @param container
 	 *            The container to be processed
@@ -156,6 +285,15 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 			allNodes.add(container);
 		}
 
+		if (nodeLocations != null) {
+			if (container.getAction() == ChangeAction.Delete) {
+				nodeLocations.remove(node.getId());
+			} else {
+				nodeLocations.put(node.getId(), node.getLatitude(),
+						node.getLongitude());
+			}
+		}
+
 		// Only add the node if it lies within the box boundaries.
 		if (isNodeWithinArea(node)) {
 			availableNodes.set(node.getId());
@@ -192,6 +330,16 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 			}
 		}
 
+		// Fall back to the stored location of nodes which didn't change.
+		if (!inArea && nodeLocations != null) {
+			for (WayNode nodeReference : way.getWayNodes()) {
+				if (isStoredNodeWithinArea(nodeReference.getNodeId())) {
+					inArea = true;
+					break;
+				}
+			}
+		}
+
 		// If the way has at least one node in the filtered area.
 		if (inArea) {
 			availableWays.set(way.getId());
@@ -215,6 +363,20 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 		}
 	}
 
+	private boolean isStoredNodeWithinArea(long nodeId) {
+		long location = nodeLocations.get(nodeId);
+
+		if (location == NodeLocationStore.MISSING) {
+			return false;
+		}
+
+		return isLocationWithinArea(
+				FixedPrecisionCoordinateConvertor
+						.convertToDouble(NodeLocationStore.getLatitude(location)),
+				FixedPrecisionCoordinateConvertor
+						.convertToDouble(NodeLocationStore.getLongitude(location)));
+	}
+
 	/**
 	 * @param container
 	 *            The container to be processed
@@ -234,7 +396,10 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 		for (RelationMember member : relation.getMembers()) {
 			switch (member.getMemberType()) {
 			case Node:
-				inArea = availableNodes.get(member.getMemberId());
+				// Unchanged nodes are placed through their stored location.
+				inArea = availableNodes.get(member.getMemberId())
+						|| (nodeLocations != null && isStoredNodeWithinArea(member
+								.getMemberId()));
 				break;
 			case Way:
 				inArea = availableWays.get(member.getMemberId());
@@ -280,57 +445,76 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	 *            Node to be sent.
 	 */
 	private void emitChange(ChangeContainer container) {
-		changeSink.process(container);
+		if (batchEvent != null) {
+			batchEvent.addEmitted(1);
+		}
+		if (emitter != null) {
+			emitter.add(container);
+		} else {
+			changeSink.process(container);
+		}
 	}
 
 	private void pumpNodesToSink() {
+		FilterPumpEvent event = new FilterPumpEvent(getClass().getSimpleName(), "nodes");
 		ReleasableIterator<ChangeContainer> i = allNodes.iterate();
 
 		try {
 			while (i.hasNext()) {
 				ChangeContainer nodeContainer = i.next();
+				event.addRead(1);
 				if (availableNodes.get(nodeContainer.getEntityContainer()
 						.getEntity().getId())) {
 					emitChange(nodeContainer);
+					event.addEmitted(1);
 				}
 			}
 
 		} finally {
 			i.release();
+			event.commit();
 		}
 	}
 
 	private void pumpWaysToSink() {
+		FilterPumpEvent event = new FilterPumpEvent(getClass().getSimpleName(), "ways");
 		ReleasableIterator<ChangeContainer> i = allWays.iterate();
 
 		try {
 			while (i.hasNext()) {
 				ChangeContainer wayContainer = i.next();
+				event.addRead(1);
 				if (availableWays.get(wayContainer.getEntityContainer()
 						.getEntity().getId())) {
 					emitChange(wayContainer);
+					event.addEmitted(1);
 				}
 			}
 
 		} finally {
 			i.release();
+			event.commit();
 		}
 	}
 
 	private void pumpRelationsToSink() {
+		FilterPumpEvent event = new FilterPumpEvent(getClass().getSimpleName(), "relations");
 		ReleasableIterator<ChangeContainer> i = allRelations.iterate();
 
 		try {
 			while (i.hasNext()) {
 				ChangeContainer relationContainer = i.next();
+				event.addRead(1);
 				if (availableRelations.get(relationContainer
 						.getEntityContainer().getEntity().getId())) {
 					emitChange(relationContainer);
+					event.addEmitted(1);
 				}
 			}
 
 		} finally {
 			i.release();
+			event.commit();
 		}
 	}
 
@@ -338,6 +522,8 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	 * {@inheritDoc}
 	 */
 	public void complete() {
+		commitBatchEvent();
+
 		// If we've stored entities temporarily, we now need to forward the
 		// selected ones to the output.
 		if (storeEntities) {
@@ -367,6 +553,9 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 			pumpRelationsToSink();
 		}
 
+		if (nodeLocations != null) {
+			nodeLocations.commit();
+		}
 		changeSink.complete();
 	}
 
@@ -383,6 +572,9 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 		if (allRelations != null) {
 			allRelations.release();
 		}
+		if (nodeLocations != null) {
+			nodeLocations.release();
+		}
 		changeSink.release();
 	}
 
@@ -391,5 +583,6 @@ public abstract class ChangeAreaFilter implements ChangeSinkChangeSource {
 	 */
 	public void setChangeSink(ChangeSink changeSink) {
 		this.changeSink = changeSink;
+		batchEmitter = null;
 	}
 }
@@ -1,9 +1,14 @@
 // This software is released into the Public Domain.  See copying.txt for details.
 package org.openstreetmap.osmosis.replication.v0_6;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
 import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
 
 /**
  * Provides a filter for extracting all entities that lie within a specific
@@ -14,6 +19,13 @@ import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
 public class ChangeBoundingBoxFilter extends ChangeAreaFilter {
 	private Bound bound; // use a Bound for the internal representation
 
+	// The "simple" (non antimeridian crossing) parts of the bound in fixed
+	// precision, so that nodes are checked without any allocation.
+	private int[] boxTop;
+	private int[] boxBottom;
+	private int[] boxLeft;
+	private int[] boxRight;
+
 	/**
 	 * Creates a new instance with the specified geographical coordinates. When
 	 * filtering, nodes right on the edge of the box will be included.
@@ -47,37 +59,96 @@ public class ChangeBoundingBoxFilter extends ChangeAreaFilter {
 			double right, double top, double bottom,
 			boolean clipIncompleteEntities, boolean completeWays,
 			boolean completeRelations, boolean cascadingRelations) {
+		this(ChangeIdTrackerType.fromCoreType(idTrackerType), left, right,
+				top, bottom, clipIncompleteEntities, completeWays,
+				completeRelations, cascadingRelations);
+	}
+
+	/**
+	 * Creates a new instance with the specified geographical coordinates and
+	 * one of the id trackers of this plugin.
+	 * 
+	 * @see #ChangeBoundingBoxFilter(IdTrackerType, double, double, double,
+	 *      double, boolean, boolean, boolean, boolean)
+	 */
+	public ChangeBoundingBoxFilter(ChangeIdTrackerType idTrackerType, double left,
+			double right, double top, double bottom,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
 		super(idTrackerType, clipIncompleteEntities, completeWays,
 				completeRelations, cascadingRelations);
 
 		this.bound = new Bound(right, left, top, bottom, "");
+		buildBoxes();
 	}
 	
 	public ChangeBoundingBoxFilter(IdTrackerType idTrackerType, Bound bound,
 			boolean clipIncompleteEntities, boolean completeWays,
 			boolean completeRelations, boolean cascadingRelations) {
+		this(ChangeIdTrackerType.fromCoreType(idTrackerType), bound,
+				clipIncompleteEntities, completeWays, completeRelations,
+				cascadingRelations);
+	}
+
+	public ChangeBoundingBoxFilter(ChangeIdTrackerType idTrackerType, Bound bound,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
 		super(idTrackerType, clipIncompleteEntities, completeWays,
 				completeRelations, cascadingRelations);
 		this.bound = bound;
-	} 
+		buildBoxes();
+	}
+
+	private void buildBoxes() {
+		List<Bound> simpleBounds = new ArrayList<Bound>();
+		for (Bound b : bound.toSimpleBound()) {
+			simpleBounds.add(b);
+		}
+
+		boxTop = new int[simpleBounds.size()];
+		boxBottom = new int[simpleBounds.size()];
+		boxLeft = new int[simpleBounds.size()];
+		boxRight = new int[simpleBounds.size()];
+		for (int i = 0; i < simpleBounds.size(); i++) {
+			Bound b = simpleBounds.get(i);
+
+			boxTop[i] = FixedPrecisionCoordinateConvertor.convertToFixed(b.getTop());
+			boxBottom[i] = FixedPrecisionCoordinateConvertor.convertToFixed(b.getBottom());
+			boxLeft[i] = FixedPrecisionCoordinateConvertor.convertToFixed(b.getLeft());
+			boxRight[i] = FixedPrecisionCoordinateConvertor.convertToFixed(b.getRight());
+		}
+	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	protected boolean isNodeWithinArea(Node node) {
-		double latitude;
-		double longitude;
+		return isLocationWithinArea(node.getLatitude(), node.getLongitude());
+	}
 
-		latitude = node.getLatitude();
-		longitude = node.getLongitude();
+	/**
+	 * {@inheritDoc}
+	 */
+	protected boolean isLocationWithinArea(double latitude, double longitude) {
+		return isLocationWithinArea(
+				FixedPrecisionCoordinateConvertor.convertToFixed(latitude),
+				FixedPrecisionCoordinateConvertor.convertToFixed(longitude));
+	}
 
-		/*
-		 * Check the node coordinates against the bounding box by comparing them
-		 * to each "simple" bound.
-		 */
-		for (Bound b : bound.toSimpleBound()) {
-			if (b.getTop() >= latitude && b.getBottom() <= latitude
-					&& b.getLeft() <= longitude && b.getRight() >= longitude) {
+	/**
+	 * Checks a fixed precision location against each "simple" bound. Nodes
+	 * carry fixed precision coordinates, so this is exact for them.
+	 * 
+	 * @param latitude
+	 *            The latitude in fixed precision.
+	 * @param longitude
+	 *            The longitude in fixed precision.
+	 * @return True if the location is within the bound.
+	 */
+	protected boolean isLocationWithinArea(int latitude, int longitude) {
+		for (int i = 0; i < boxTop.length; i++) {
+			if (boxTop[i] >= latitude && boxBottom[i] <= latitude
+					&& boxLeft[i] <= longitude && boxRight[i] >= longitude) {
 				return true;
 			}
 		}
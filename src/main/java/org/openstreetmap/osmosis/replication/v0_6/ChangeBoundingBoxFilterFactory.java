@@ -1,11 +1,15 @@
 // This software is released into the Public Domain.  See copying.txt for details.
 package org.openstreetmap.osmosis.replication.v0_6;
 
-import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
+import java.io.File;
+
 import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
 import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
 import org.openstreetmap.osmosis.core.pipeline.v0_6.ChangeSinkChangeSourceManager;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
+import org.openstreetmap.osmosis.replication.v0_6.impl.TileIndex;
 
 /**
  * The task manager factory for a bounding box filter.
@@ -13,8 +17,9 @@ import org.openstreetmap.osmosis.core.pipeline.v0_6.ChangeSinkChangeSourceManage
  * @author Brett Henderson
  */
 public class ChangeBoundingBoxFilterFactory extends TaskManagerFactory {
-	private static final IdTrackerType DEFAULT_ID_TRACKER_TYPE = IdTrackerType.Dynamic;
+	private static final ChangeIdTrackerType DEFAULT_ID_TRACKER_TYPE = ChangeIdTrackerType.Dynamic;
 
+	private static final String ARG_ID_TRACKER_TYPE = "idTrackerType";
 	private static final String ARG_LEFT = "left";
 	private static final String ARG_RIGHT = "right";
 	private static final String ARG_TOP = "top";
@@ -28,6 +33,7 @@ public class ChangeBoundingBoxFilterFactory extends TaskManagerFactory {
 	private static final String ARG_COMPLETE_WAYS = "completeWays";
 	private static final String ARG_COMPLETE_RELATIONS = "completeRelations";
 	private static final String ARG_CASCADING_RELATIONS = "cascadingRelations";
+	private static final String ARG_NODE_LOCATION_FILE = "nodeLocationFile";
 	private static final double DEFAULT_LEFT = -180;
 	private static final double DEFAULT_RIGHT = 180;
 	private static final double DEFAULT_TOP = 90;
@@ -40,40 +46,14 @@ public class ChangeBoundingBoxFilterFactory extends TaskManagerFactory {
 
 	/**
 	 * @param taskConfig task configuration.
-	 * @return IdTrakerType, by default is {@link IdTrackerType.Dynamic}
+	 * @return IdTrakerType, by default is {@link ChangeIdTrackerType#Dynamic}
 	 */
-	protected IdTrackerType getIdTrackerType(TaskConfiguration taskConfig) {
-		return DEFAULT_ID_TRACKER_TYPE;
-	}
-
-	private double xToLon(int zoom, int x) {
-		double unit = 360 / Math.pow(2, zoom);
-		return -180 + x * unit;
-	}
-
-	private double projectF(double lat) {
-		// Project latitude to mercator
-		return Math.log(Math.tan(lat) + 1 / Math.cos(lat));
-	}
-
-	private double projectMercToLat(double y) {
-		return Math.toDegrees(Math.atan(Math.sinh(y)));
-	}
-
-	private double yToLat(int zoom, int y) {
-
-		// Convert zoom/y to mercator
-
-		// Get maximum range of mercator coordinates
-		double limitY = projectF(Math.atan(Math.sinh(Math.PI)));
-		double limitY2 = projectF((Math.atan(Math.sinh(-Math.PI))));
-		double rangeY = limitY - limitY2;
-
-		double unit = 1 / Math.pow(2, zoom);
-		double relY = limitY - rangeY * y * unit;
+	protected ChangeIdTrackerType getIdTrackerType(TaskConfiguration taskConfig) {
+		if (doesArgumentExist(taskConfig, ARG_ID_TRACKER_TYPE)) {
+			return ChangeIdTrackerType.fromName(getStringArgument(taskConfig, ARG_ID_TRACKER_TYPE));
+		}
 
-		// Mercator to latitude
-		return projectMercToLat(relY);
+		return DEFAULT_ID_TRACKER_TYPE;
 	}
 
 	/**
@@ -81,7 +61,7 @@ public class ChangeBoundingBoxFilterFactory extends TaskManagerFactory {
 	 */
 	@Override
 	protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
-		IdTrackerType idTrackerType;
+		ChangeIdTrackerType idTrackerType;
 		double left;
 		double right;
 		double top;
@@ -91,6 +71,7 @@ public class ChangeBoundingBoxFilterFactory extends TaskManagerFactory {
 		boolean completeRelations;
 		boolean cascadingRelations;
 		int zoom;
+		ChangeBoundingBoxFilter filter;
 
 		// Get the task arguments.
 		idTrackerType = getIdTrackerType(taskConfig);
@@ -110,20 +91,25 @@ public class ChangeBoundingBoxFilterFactory extends TaskManagerFactory {
 		zoom = getIntegerArgument(taskConfig, ARG_ZOOM, DEFAULT_ZOOM);
 		if (doesArgumentExist(taskConfig, ARG_X1)) {
 			int x1 = getIntegerArgument(taskConfig, ARG_X1);
-			left = xToLon(zoom, x1);
-			right = xToLon(zoom, getIntegerArgument(taskConfig, ARG_X2, x1) + 1);
+			left = TileIndex.xToLon(zoom, x1);
+			right = TileIndex.xToLon(zoom, getIntegerArgument(taskConfig, ARG_X2, x1) + 1);
 		}
 		if (doesArgumentExist(taskConfig, ARG_Y1)) {
 			int y1 = getIntegerArgument(taskConfig, ARG_Y1);
-			top = yToLat(zoom, y1);
-			bottom = yToLat(zoom,
+			top = TileIndex.yToLat(zoom, y1);
+			bottom = TileIndex.yToLat(zoom,
 					getIntegerArgument(taskConfig, ARG_Y2, y1) + 1);
 		}
 
-		return new ChangeSinkChangeSourceManager(taskConfig.getId(),
-				new ChangeBoundingBoxFilter(idTrackerType, left, right, top,
-						bottom, clipIncompleteEntities, completeWays,
-						completeRelations, cascadingRelations),
+		filter = new ChangeBoundingBoxFilter(idTrackerType, left, right, top,
+				bottom, clipIncompleteEntities, completeWays,
+				completeRelations, cascadingRelations);
+		if (doesArgumentExist(taskConfig, ARG_NODE_LOCATION_FILE)) {
+			filter.setNodeLocationStore(new NodeLocationStore(new File(
+					getStringArgument(taskConfig, ARG_NODE_LOCATION_FILE))));
+		}
+
+		return new ChangeSinkChangeSourceManager(taskConfig.getId(), filter,
 				taskConfig.getPipeArgs());
 	}
 }
@@ -0,0 +1,106 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.io.File;
+
+import org.openstreetmap.osmosis.areafilter.common.PolygonFileReader;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.PolygonGrid;
+
+/**
+ * Provides a filter for extracting all entities that lie within a polygon.
+ * The polygon is compiled into a {@link PolygonGrid} so that most nodes are
+ * placed by a single cell lookup.
+ */
+public class ChangePolygonFilter extends ChangeAreaFilter {
+	private PolygonGrid polygon;
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param idTrackerType
+	 *            Defines the id tracker implementation to use.
+	 * @param polygonFile
+	 *            The file containing the polygon in polygon file format.
+	 * @param clipIncompleteEntities
+	 *            If true, entities referring to non-existent entities will be
+	 *            modified to ensure referential integrity. For example, ways
+	 *            will be modified to only include nodes inside the area.
+	 * @param completeWays
+	 *            Include all nodes for ways which have at least one node inside
+	 *            the filtered area.
+	 * @param completeRelations
+	 *            Include all relations referenced by other relations which have
+	 *            members inside the filtered area.
+	 * @param cascadingRelations
+	 *            Include all relations that reference other relations which
+	 *            have members inside the filtered area. This is less costly
+	 *            than completeRelations.
+	 */
+	public ChangePolygonFilter(IdTrackerType idTrackerType, File polygonFile,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
+		this(ChangeIdTrackerType.fromCoreType(idTrackerType), polygonFile,
+				clipIncompleteEntities, completeWays, completeRelations,
+				cascadingRelations);
+	}
+
+	/**
+	 * Creates a new instance using one of the id trackers of this plugin.
+	 * 
+	 * @see #ChangePolygonFilter(IdTrackerType, File, boolean, boolean,
+	 *      boolean, boolean)
+	 */
+	public ChangePolygonFilter(ChangeIdTrackerType idTrackerType, File polygonFile,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
+		this(idTrackerType, new PolygonGrid(new PolygonFileReader(polygonFile)
+				.loadPolygon()), clipIncompleteEntities, completeWays,
+				completeRelations, cascadingRelations);
+	}
+
+	/**
+	 * Creates a new instance from an already compiled polygon.
+	 * 
+	 * @see #ChangePolygonFilter(IdTrackerType, File, boolean, boolean,
+	 *      boolean, boolean)
+	 */
+	public ChangePolygonFilter(IdTrackerType idTrackerType, PolygonGrid polygon,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
+		this(ChangeIdTrackerType.fromCoreType(idTrackerType), polygon,
+				clipIncompleteEntities, completeWays, completeRelations,
+				cascadingRelations);
+	}
+
+	/**
+	 * Creates a new instance from an already compiled polygon, using one of
+	 * the id trackers of this plugin.
+	 * 
+	 * @see #ChangePolygonFilter(IdTrackerType, File, boolean, boolean,
+	 *      boolean, boolean)
+	 */
+	public ChangePolygonFilter(ChangeIdTrackerType idTrackerType, PolygonGrid polygon,
+			boolean clipIncompleteEntities, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
+		super(idTrackerType, clipIncompleteEntities, completeWays,
+				completeRelations, cascadingRelations);
+		this.polygon = polygon;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected boolean isNodeWithinArea(Node node) {
+		return isLocationWithinArea(node.getLatitude(), node.getLongitude());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected boolean isLocationWithinArea(double latitude, double longitude) {
+		return polygon.contains(latitude, longitude);
+	}
+}
@@ -0,0 +1,80 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.io.File;
+
+import org.openstreetmap.osmosis.core.pipeline.common.TaskConfiguration;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManager;
+import org.openstreetmap.osmosis.core.pipeline.common.TaskManagerFactory;
+import org.openstreetmap.osmosis.core.pipeline.v0_6.ChangeSinkChangeSourceManager;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
+
+/**
+ * The task manager factory for a polygon filter.
+ */
+public class ChangePolygonFilterFactory extends TaskManagerFactory {
+	private static final ChangeIdTrackerType DEFAULT_ID_TRACKER_TYPE = ChangeIdTrackerType.Dynamic;
+
+	private static final String ARG_ID_TRACKER_TYPE = "idTrackerType";
+	private static final String ARG_FILE = "file";
+	private static final String ARG_CLIP_INCOMPLETE_ENTITIES = "clipIncompleteEntities";
+	private static final String ARG_COMPLETE_WAYS = "completeWays";
+	private static final String ARG_COMPLETE_RELATIONS = "completeRelations";
+	private static final String ARG_CASCADING_RELATIONS = "cascadingRelations";
+	private static final String ARG_NODE_LOCATION_FILE = "nodeLocationFile";
+	private static final String DEFAULT_FILE = "polygon.txt";
+	private static final boolean DEFAULT_CLIP_INCOMPLETE_ENTITIES = false;
+	private static final boolean DEFAULT_COMPLETE_WAYS = false;
+	private static final boolean DEFAULT_COMPLETE_RELATIONS = false;
+	private static final boolean DEFAULT_CASCADING_RELATIONS = false;
+
+	/**
+	 * @param taskConfig task configuration.
+	 * @return IdTrakerType, by default is {@link ChangeIdTrackerType#Dynamic}
+	 */
+	protected ChangeIdTrackerType getIdTrackerType(TaskConfiguration taskConfig) {
+		if (doesArgumentExist(taskConfig, ARG_ID_TRACKER_TYPE)) {
+			return ChangeIdTrackerType.fromName(getStringArgument(taskConfig, ARG_ID_TRACKER_TYPE));
+		}
+
+		return DEFAULT_ID_TRACKER_TYPE;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected TaskManager createTaskManagerImpl(TaskConfiguration taskConfig) {
+		File polygonFile;
+		boolean clipIncompleteEntities;
+		boolean completeWays;
+		boolean completeRelations;
+		boolean cascadingRelations;
+		ChangePolygonFilter filter;
+
+		// Get the task arguments.
+		polygonFile = new File(getStringArgument(taskConfig, ARG_FILE,
+				DEFAULT_FILE));
+		clipIncompleteEntities = getBooleanArgument(taskConfig,
+				ARG_CLIP_INCOMPLETE_ENTITIES, DEFAULT_CLIP_INCOMPLETE_ENTITIES);
+		completeWays = getBooleanArgument(taskConfig, ARG_COMPLETE_WAYS,
+				DEFAULT_COMPLETE_WAYS);
+		completeRelations = getBooleanArgument(taskConfig,
+				ARG_COMPLETE_RELATIONS, DEFAULT_COMPLETE_RELATIONS);
+		cascadingRelations = getBooleanArgument(taskConfig,
+				ARG_CASCADING_RELATIONS, DEFAULT_CASCADING_RELATIONS);
+
+		filter = new ChangePolygonFilter(getIdTrackerType(taskConfig), polygonFile,
+				clipIncompleteEntities, completeWays, completeRelations,
+				cascadingRelations);
+		if (doesArgumentExist(taskConfig, ARG_NODE_LOCATION_FILE)) {
+			filter.setNodeLocationStore(new NodeLocationStore(new File(
+					getStringArgument(taskConfig, ARG_NODE_LOCATION_FILE))));
+		}
+
+		return new ChangeSinkChangeSourceManager(taskConfig.getId(), filter,
+				taskConfig.getPipeArgs());
+	}
+}
@@ -0,0 +1,807 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.sort.v0_6.ChangeForStreamableApplierComparator;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.BatchChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeBatcher;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeSpool;
+import org.openstreetmap.osmosis.replication.v0_6.impl.FilterBatchEvent;
+import org.openstreetmap.osmosis.replication.v0_6.impl.FilterPumpEvent;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ParentIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionLocator;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionSetPool;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionSetTracker;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SharedChangeContainer;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SpliterMetrics;
+import org.openstreetmap.osmosis.replication.v0_6.impl.TileIndex;
+
+/**
+ * Filters a change stream into many regions at once. This applies the same
+ * rules as {@link ChangeAreaFilter}, but instead of one filter per region
+ * tracking its own ids, each entity id is mapped to the set of regions it
+ * belongs to. Way nodes and relation members are therefore only looked up
+ * once for all regions, and memory does not grow with the region count.
+ * <p>
+ * Each change is routed to the sinks of the regions it belongs to. The sinks
+ * are indexed by region index as used by the {@link RegionLocator}, either a
+ * {@link RegionIndex} or a {@link TileIndex}. When
+ * entities have to be held back until the end of the stream, they are stored
+ * once in a shared {@link ChangeSpool} and routed to all their regions in a
+ * single scan.
+ * <p>
+ * Every region receives its changes in input order, so a stream sorted once
+ * upfront yields sorted regions. The changes are collected into batches per
+ * region which are passed on when full and at the end of the stream. The
+ * batch of a region is only allocated once it receives a change, regions
+ * without changes cost no more than their sink.
+ * <p>
+ * With a {@link ParentIndex}, ways and relations without a change of their
+ * own are also sent to the regions a node of theirs moved into. Those are
+ * merged into the held back entities in
+ * {@link ChangeForStreamableApplierComparator} order.
+ * <p>
+ * Regions lying within a region of another filter can be filtered from the
+ * output of that region, with the same result as from the whole stream. Such
+ * a filter only looks up the node location store and the parent index.
+ */
+public class MultiRegionChangeAreaFilter implements BatchChangeSink {
+
+	// Smaller than usual, a batch is held for every region.
+	private static final int REGION_BATCH_SIZE = 256;
+
+	private RegionLocator regionLocator;
+	private ChangeSink[] regionSinks;
+	private ChangeBatcher[] regionBatchers;
+
+	private RegionSetPool regionSets;
+	private RegionSetTracker availableNodes; // Nodes within each region.
+	private RegionSetTracker requiredNodes; // Nodes needed to complete
+											// referencing entities.
+	private RegionSetTracker availableWays; // Ways within each region.
+	private RegionSetTracker availableRelations; // Relations within each
+													// region.
+	private boolean completeWays;
+	private boolean storeEntities;
+	private boolean cascadingRelations;
+	// Holds all entities, or only the held-back relations in the
+	// cascadingRelations case.
+	private ChangeSpool spool;
+	private NodeLocationStore nodeLocations;
+	private boolean updateNodeLocations;
+	private ParentIndex parentIndex;
+	private boolean updateParentIndex;
+	private RegionSetTracker enteredNodes; // Regions each node moved into.
+	private RegionSetTracker parentRegions; // Regions of unchanged parents.
+	private Comparator<ChangeContainer> parentOrder;
+	private SpliterMetrics metrics;
+	private int[] metricRegions;
+	private FilterBatchEvent batchEvent;
+
+	private int[] matches;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param regionLocator
+	 *            Locates the regions containing a node.
+	 * @param regionSinks
+	 *            The destination of each region, in region index order.
+	 * @param completeWays
+	 *            Include all nodes for ways which have at least one node inside
+	 *            the filtered area.
+	 * @param completeRelations
+	 *            Include all relations referenced by other relations which have
+	 *            members inside the filtered area.
+	 * @param cascadingRelations
+	 *            Make sure that a relation referencing a relation which is
+	 *            included will also be included.
+	 */
+	public MultiRegionChangeAreaFilter(RegionLocator regionLocator,
+			List<? extends ChangeSink> regionSinks, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations) {
+		this(regionLocator, regionSinks, completeWays, completeRelations, cascadingRelations,
+				ChangeSpool.DEFAULT_MEMORY_LIMIT);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param regionLocator
+	 *            Locates the regions containing a node.
+	 * @param regionSinks
+	 *            The destination of each region, in region index order.
+	 * @param completeWays
+	 *            Include all nodes for ways which have at least one node inside
+	 *            the filtered area.
+	 * @param completeRelations
+	 *            Include all relations referenced by other relations which have
+	 *            members inside the filtered area.
+	 * @param cascadingRelations
+	 *            Make sure that a relation referencing a relation which is
+	 *            included will also be included.
+	 * @param spoolMemoryLimit
+	 *            The number of bytes of held back changes kept in memory before
+	 *            they are moved to a temporary file.
+	 */
+	public MultiRegionChangeAreaFilter(RegionLocator regionLocator,
+			List<? extends ChangeSink> regionSinks, boolean completeWays,
+			boolean completeRelations, boolean cascadingRelations, long spoolMemoryLimit) {
+		this.regionLocator = regionLocator;
+		this.regionSinks = regionSinks.toArray(new ChangeSink[regionSinks.size()]);
+		regionBatchers = new ChangeBatcher[this.regionSinks.length];
+
+		// The same option rules as the single region filter apply.
+		this.completeWays = completeWays || completeRelations;
+		this.cascadingRelations = cascadingRelations && !completeRelations
+				&& !completeWays;
+
+		regionSets = new RegionSetPool();
+		availableNodes = new RegionSetTracker(regionSets);
+		requiredNodes = new RegionSetTracker(regionSets);
+		availableWays = new RegionSetTracker(regionSets);
+		availableRelations = new RegionSetTracker(regionSets);
+
+		matches = new int[regionLocator.getRegionCount()];
+
+		storeEntities = completeWays || completeRelations;
+		if (storeEntities || this.cascadingRelations) {
+			spool = new ChangeSpool("afc", spoolMemoryLimit);
+		}
+	}
+
+
+	/**
+	 * Enables placing ways and relations through the stored location of
+	 * nodes that are not part of the change stream. Every node change updates
+	 * the store, the caller commits it once the interval is complete and keeps
+	 * ownership of the store.
+	 *
+	 * @param nodeLocations
+	 *            The node location store, or null to disable.
+	 */
+	public void setNodeLocationStore(NodeLocationStore nodeLocations) {
+		setNodeLocationStore(nodeLocations, true);
+	}
+
+
+	/**
+	 * Enables placing ways and relations through the stored location of
+	 * nodes, optionally leaving the updates to another filter reading the
+	 * same stream.
+	 *
+	 * @param nodeLocations
+	 *            The node location store, or null to disable.
+	 * @param update
+	 *            If false, the store is only looked up and node changes must
+	 *            be written to it by another filter processed first.
+	 */
+	public void setNodeLocationStore(NodeLocationStore nodeLocations, boolean update) {
+		this.nodeLocations = nodeLocations;
+		this.updateNodeLocations = update;
+	}
+
+
+	/**
+	 * Enables pulling in unchanged ways and relations referencing nodes that
+	 * moved into a region. Every way and relation change is recorded in the
+	 * index, the caller commits it once the interval is complete and keeps
+	 * ownership of the index.
+	 * <p>
+	 * Nodes are only known to have moved if a node location store is set as
+	 * well, otherwise every changed node is treated as having entered all of
+	 * its regions.
+	 *
+	 * @param parentIndex
+	 *            The parent index, or null to disable.
+	 */
+	public void setParentIndex(ParentIndex parentIndex) {
+		setParentIndex(parentIndex, true);
+	}
+
+
+	/**
+	 * Enables pulling in unchanged ways and relations referencing nodes that
+	 * moved into a region, optionally leaving the updates to another filter.
+	 * <p>
+	 * A filter that only looks the index up is meant to receive the output
+	 * of the filter updating it. Unchanged parents that filter pulled in are
+	 * skipped, they are pulled in again for the regions of this filter.
+	 *
+	 * @param parentIndex
+	 *            The parent index, or null to disable.
+	 * @param update
+	 *            If false, the index is only looked up and changes must be
+	 *            recorded in it by another filter processed first.
+	 */
+	public void setParentIndex(ParentIndex parentIndex, boolean update) {
+		this.parentIndex = parentIndex;
+		this.updateParentIndex = update;
+		enteredNodes = parentIndex != null ? new RegionSetTracker(regionSets) : null;
+		parentOrder = new ChangeForStreamableApplierComparator();
+	}
+
+
+	/**
+	 * Counts the changes found within each region as they arrive.
+	 *
+	 * @param metrics
+	 *            The metrics to record into, or null to disable.
+	 */
+	public void setMetrics(SpliterMetrics metrics) {
+		setMetrics(metrics, null);
+	}
+
+
+	/**
+	 * Counts the changes found within each region as they arrive, for
+	 * regions known to the metrics under other indexes.
+	 *
+	 * @param metrics
+	 *            The metrics to record into, or null to disable.
+	 * @param metricRegions
+	 *            The metrics region index of each region, null if they are
+	 *            the same.
+	 */
+	public void setMetrics(SpliterMetrics metrics, int[] metricRegions) {
+		this.metrics = metrics;
+		this.metricRegions = metricRegions;
+	}
+
+
+	/**
+	 * Returns the number of ids currently tracked in any region.
+	 *
+	 * @return The id count.
+	 */
+	public long getTrackedIdCount() {
+		long count = availableNodes.size() + availableWays.size() + availableRelations.size();
+
+		if (requiredNodes != null) {
+			count += requiredNodes.size();
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * Returns the number of distinct region sets seen so far.
+	 *
+	 * @return The region set count.
+	 */
+	public int getRegionSetCount() {
+		return regionSets.size();
+	}
+
+
+	/**
+	 * Returns the encoded size of the changes held back until the end of the
+	 * stream.
+	 *
+	 * @return The byte count.
+	 */
+	public long getSpooledByteCount() {
+		return spool != null ? spool.getByteCount() : 0;
+	}
+
+
+	/**
+	 * Returns the encoded size of the held back changes moved to a temporary
+	 * file.
+	 *
+	 * @return The byte count, zero if the spool stayed within its memory limit.
+	 */
+	public long getSpilledByteCount() {
+		return spool != null ? spool.getSpilledByteCount() : 0;
+	}
+
+
+	/**
+	 * Indicates if the held back changes exceeded the spool memory limit and
+	 * were moved to a temporary file.
+	 *
+	 * @return True if the spool was spilled.
+	 */
+	public boolean isSpoolSpilled() {
+		return spool != null && spool.isSpilled();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void initialize(Map<String, Object> metaData) {
+		for (ChangeSink regionSink : regionSinks) {
+			regionSink.initialize(metaData);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void process(ChangeContainer changeContainer) {
+		if (batchEvent == null) {
+			batchEvent = new FilterBatchEvent(getClass().getSimpleName(), regionSinks.length);
+		}
+		if (batchEvent.addChange(classify(changeContainer))) {
+			commitBatchEvent();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void process(ChangeContainer[] changes, int count) {
+		int nodes = 0;
+		int ways = 0;
+		int relations = 0;
+
+		if (batchEvent == null) {
+			batchEvent = new FilterBatchEvent(getClass().getSimpleName(), regionSinks.length);
+		}
+		for (int i = 0; i < count; i++) {
+			switch (classify(changes[i])) {
+			case Node:
+				nodes++;
+				break;
+			case Way:
+				ways++;
+				break;
+			case Relation:
+				relations++;
+				break;
+			default:
+				break;
+			}
+		}
+		if (batchEvent.addChanges(nodes, ways, relations)) {
+			commitBatchEvent();
+		}
+	}
+
+
+	/**
+	 * Passes a change to the processing method of its entity type.
+	 *
+	 * @return The entity type of the change.
+	 */
+	private EntityType classify(ChangeContainer changeContainer) {
+		EntityContainer ec = changeContainer.getEntityContainer();
+
+		if (parentIndex != null) {
+			if (updateParentIndex) {
+				parentIndex.add(ec, changeContainer.getAction());
+			} else if (isPulledParent(ec.getEntity())) {
+				return ec.getEntity().getType();
+			}
+		}
+		if (ec instanceof NodeContainer) {
+			processNodeChange(changeContainer);
+		} else if (ec instanceof WayContainer) {
+			processWayChange(changeContainer);
+		} else if (ec instanceof RelationContainer) {
+			processRelationChange(changeContainer);
+		}
+
+		return ec.getEntity().getType();
+	}
+
+
+	/**
+	 * Indicates if an entity is an unchanged parent pulled into the stream by
+	 * the filter updating the parent index.
+	 */
+	private boolean isPulledParent(Entity entity) {
+		return entity.getType() != EntityType.Node
+				&& !parentIndex.isChanged(ParentIndex.key(entity.getType(), entity.getId()));
+	}
+
+
+	private void commitBatchEvent() {
+		if (batchEvent != null) {
+			batchEvent.commit();
+			batchEvent = null;
+		}
+	}
+
+
+	private void processNodeChange(ChangeContainer container) {
+		Node node;
+		int regions;
+		int previousRegions;
+
+		node = (Node) container.getEntityContainer().getEntity();
+
+		// Check if we're storing entities for later.
+		if (storeEntities) {
+			spool.add(container);
+		}
+
+		regions = regionSets.intern(matches, regionLocator.findRegions(
+				node.getLatitude(), node.getLongitude(), matches));
+
+		if (enteredNodes != null && container.getAction() != ChangeAction.Delete) {
+			// Against the previous interval, also when this one is
+			// processed again.
+			previousRegions = getStoredNodeRegions(node.getId(), true);
+			enteredNodes.add(node.getId(), regionSets.difference(regions, previousRegions));
+		}
+
+		if (nodeLocations != null && updateNodeLocations) {
+			if (container.getAction() == ChangeAction.Delete) {
+				nodeLocations.remove(node.getId());
+			} else {
+				nodeLocations.put(node.getId(), node.getLatitude(), node.getLongitude());
+			}
+		}
+
+		if (regions != RegionSetPool.EMPTY) {
+			availableNodes.add(node.getId(), regions);
+			countChangeIn(regions);
+
+			// If we're not storing entities, we pass it on immediately.
+			if (!storeEntities) {
+				emitChange(container, regions);
+			}
+		}
+	}
+
+
+	private void processWayChange(ChangeContainer container) {
+		Way way;
+		int regions;
+
+		way = (Way) container.getEntityContainer().getEntity();
+
+		// Check if we're storing entities for later.
+		if (storeEntities) {
+			spool.add(container);
+		}
+
+		// A way belongs to every region holding at least one of its nodes.
+		regions = RegionSetPool.EMPTY;
+		for (WayNode nodeReference : way.getWayNodes()) {
+			regions = regionSets.union(regions, getNodeRegions(nodeReference.getNodeId()));
+		}
+
+		if (regions != RegionSetPool.EMPTY) {
+			availableWays.add(way.getId(), regions);
+			countChangeIn(regions);
+
+			// If complete ways are desired, all nodes become required in
+			// every region of the way. Nodes already available in a region
+			// are unaffected by this.
+			if (completeWays) {
+				for (WayNode nodeReference : way.getWayNodes()) {
+					requiredNodes.add(nodeReference.getNodeId(), regions);
+				}
+			}
+
+			// If we're not storing entities, we pass it on immediately.
+			if (!storeEntities) {
+				emitChange(container, regions);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the regions of a referenced node. Nodes that are not within any
+	 * region in this stream are placed through their stored location if
+	 * available.
+	 */
+	private int getNodeRegions(long nodeId) {
+		int regions;
+
+		regions = availableNodes.get(nodeId);
+		if (regions == RegionSetPool.EMPTY) {
+			regions = getStoredNodeRegions(nodeId, false);
+		}
+
+		return regions;
+	}
+
+
+	private int getStoredNodeRegions(long nodeId, boolean committed) {
+		long location;
+
+		if (nodeLocations == null) {
+			return RegionSetPool.EMPTY;
+		}
+
+		location = committed ? nodeLocations.getCommitted(nodeId) : nodeLocations.get(nodeId);
+		if (location == NodeLocationStore.MISSING) {
+			return RegionSetPool.EMPTY;
+		}
+
+		return regionSets.intern(matches, regionLocator.findRegions(
+				NodeLocationStore.getLatitude(location),
+				NodeLocationStore.getLongitude(location), matches));
+	}
+
+
+	private void processRelationChange(ChangeContainer container) {
+		Relation relation;
+		int regions;
+
+		relation = (Relation) container.getEntityContainer().getEntity();
+
+		// A relation belongs to every region holding at least one of its
+		// members.
+		regions = RegionSetPool.EMPTY;
+		for (RelationMember member : relation.getMembers()) {
+			switch (member.getMemberType()) {
+			case Node:
+				regions = regionSets.union(regions, getNodeRegions(member.getMemberId()));
+				break;
+			case Way:
+				regions = regionSets.union(regions, availableWays.get(member.getMemberId()));
+				break;
+			case Relation:
+				regions = regionSets.union(regions, availableRelations.get(member.getMemberId()));
+				break;
+			default:
+				break;
+			}
+		}
+
+		// Check if we're storing entities for later.
+		if (storeEntities || cascadingRelations) {
+			spool.add(container);
+		}
+
+		if (regions != RegionSetPool.EMPTY) {
+			availableRelations.add(relation.getId(), regions);
+			countChangeIn(regions);
+
+			// If we're not storing entities, we pass it on immediately.
+			if (!storeEntities && !cascadingRelations) {
+				emitChange(container, regions);
+			}
+		}
+	}
+
+
+	private void countChangeIn(int regions) {
+		if (metrics != null) {
+			metrics.addRegionChangeIn(regionSets.get(regions), metricRegions);
+		}
+	}
+
+
+	/**
+	 * Sends a change to the sinks of its regions.
+	 *
+	 * @return The number of regions.
+	 */
+	private int emitChange(ChangeContainer container, int regions) {
+		int[] regionList = regionSets.get(regions);
+		ChangeContainer emitted = container;
+
+		// Lets the region writers share work done for the change.
+		if (regionList.length > 1) {
+			emitted = new SharedChangeContainer(container);
+		}
+		for (int region : regionList) {
+			ChangeBatcher regionBatcher = regionBatchers[region];
+
+			if (regionBatcher == null) {
+				regionBatcher = new ChangeBatcher(regionSinks[region], REGION_BATCH_SIZE);
+				regionBatchers[region] = regionBatcher;
+			}
+			regionBatcher.add(emitted);
+		}
+		if (batchEvent != null) {
+			batchEvent.addEmitted(regionList.length);
+		}
+
+		return regionList.length;
+	}
+
+
+	private RegionSetTracker availableTrackerFor(Entity entity) {
+		switch (entity.getType()) {
+		case Node:
+			return availableNodes;
+		case Way:
+			return availableWays;
+		case Relation:
+			return availableRelations;
+		default:
+			return null;
+		}
+	}
+
+
+	private int emitParent(ChangeContainer container) {
+		Entity entity = container.getEntityContainer().getEntity();
+
+		return emitChange(container, parentRegions.get(ParentIndex.key(entity.getType(), entity.getId())));
+	}
+
+
+	/**
+	 * Sends the held back entities to their regions in input order, merging
+	 * in the unchanged parents.
+	 */
+	private void pumpToSinks(List<ChangeContainer> parents) {
+		FilterPumpEvent event = new FilterPumpEvent(getClass().getSimpleName(), "all");
+		ReleasableIterator<ChangeContainer> i = spool.iterate();
+		int nextParent = 0;
+
+		try {
+			while (i.hasNext()) {
+				ChangeContainer container = i.next();
+				Entity entity = container.getEntityContainer().getEntity();
+				RegionSetTracker available = availableTrackerFor(entity);
+
+				event.addRead(1);
+				while (nextParent < parents.size() && parentOrder.compare(parents.get(nextParent), container) < 0) {
+					event.addEmitted(emitParent(parents.get(nextParent++)));
+				}
+
+				if (available != null) {
+					int regions = available.get(entity.getId());
+					if (regions != RegionSetPool.EMPTY) {
+						event.addEmitted(emitChange(container, regions));
+					}
+				}
+			}
+
+			while (nextParent < parents.size()) {
+				event.addEmitted(emitParent(parents.get(nextParent++)));
+			}
+
+		} finally {
+			i.release();
+			event.commit();
+		}
+	}
+
+
+	/**
+	 * Finds the unchanged ways and relations above the nodes that moved into
+	 * a region and records the regions they are to be sent to. Parents are
+	 * followed up through relations, each only as far as it gains new
+	 * regions.
+	 *
+	 * @return The parents, sorted.
+	 */
+	private List<ChangeContainer> findUnchangedParents() {
+		RegionSetTracker reached;
+		Deque<Long> pendingKeys;
+		List<ChangeContainer> parents;
+		FilterPumpEvent event;
+
+		event = new FilterPumpEvent(getClass().getSimpleName(), "parents");
+		reached = new RegionSetTracker(regionSets);
+		pendingKeys = new ArrayDeque<Long>();
+		for (long nodeId : enteredNodes.getIds()) {
+			long key = ParentIndex.key(EntityType.Node, nodeId);
+			reached.add(key, enteredNodes.get(nodeId));
+			pendingKeys.add(key);
+		}
+
+		while (!pendingKeys.isEmpty()) {
+			long child = pendingKeys.poll();
+			int regions = reached.get(child);
+
+			for (long parent : parentIndex.getParents(child)) {
+				int before;
+
+				// Changed parents are part of the stream already.
+				if (parentIndex.isChanged(parent)) {
+					continue;
+				}
+
+				before = reached.get(parent);
+				reached.add(parent, regions);
+				if (reached.get(parent) != before) {
+					pendingKeys.add(parent);
+				}
+			}
+		}
+
+		parents = new ArrayList<ChangeContainer>();
+		for (long key : reached.getIds()) {
+			if (ParentIndex.getType(key) != EntityType.Node) {
+				EntityContainer parent = parentIndex.getEntity(key);
+
+				if (parent != null) {
+					parents.add(new ChangeContainer(parent, ChangeAction.Modify));
+				}
+			}
+		}
+		Collections.sort(parents, parentOrder);
+		parentRegions = reached;
+		event.addRead(reached.size());
+		event.addEmitted(parents.size());
+		event.commit();
+
+		return parents;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void complete() {
+		List<ChangeContainer> parents;
+
+		commitBatchEvent();
+
+		if (parentIndex != null) {
+			parents = findUnchangedParents();
+		} else {
+			parents = Collections.emptyList();
+		}
+
+		// If we've stored entities temporarily, we now need to forward the
+		// selected ones to the output.
+		if (storeEntities) {
+			// Merge required ids into available ids.
+			availableNodes.addAll(requiredNodes);
+			requiredNodes = null;
+
+			// Send the selected entities to the output.
+			pumpToSinks(parents);
+		} else if (cascadingRelations) {
+			pumpToSinks(parents);
+		} else {
+			for (ChangeContainer parent : parents) {
+				emitParent(parent);
+			}
+		}
+
+		for (ChangeBatcher regionBatcher : regionBatchers) {
+			if (regionBatcher != null) {
+				regionBatcher.flush();
+			}
+		}
+		for (ChangeSink regionSink : regionSinks) {
+			regionSink.complete();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void release() {
+		if (spool != null) {
+			spool.release();
+		}
+		for (ChangeSink regionSink : regionSinks) {
+			regionSink.release();
+		}
+	}
+}
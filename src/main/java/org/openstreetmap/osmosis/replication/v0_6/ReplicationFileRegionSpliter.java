@@ -1,25 +1,48 @@
 package org.openstreetmap.osmosis.replication.v0_6;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
-import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
 import org.openstreetmap.osmosis.core.sort.v0_6.ChangeForStreamableApplierComparator;
-import org.openstreetmap.osmosis.core.sort.v0_6.ChangeSorter;
 import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.core.task.v0_6.RunnableChangeSource;
+import org.openstreetmap.osmosis.core.util.PropertiesPersister;
 import org.openstreetmap.osmosis.replication.common.FileReplicationStore;
+import org.openstreetmap.osmosis.replication.common.ReplicationFileSequenceFormatter;
 import org.openstreetmap.osmosis.replication.common.ReplicationState;
 import org.openstreetmap.osmosis.replication.common.ReplicationStore;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeBatcher;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeFanOut;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeSinkWorkerPool;
+import org.openstreetmap.osmosis.replication.v0_6.impl.CompactChangeSorter;
+import org.openstreetmap.osmosis.replication.v0_6.impl.IntervalCheckpoint;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
+import org.openstreetmap.osmosis.replication.v0_6.impl.OutputFilePool;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ParentIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.PipelinedChangeReader;
 import org.openstreetmap.osmosis.replication.v0_6.impl.Region;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionHierarchy;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionSaveStateEvent;
 import org.openstreetmap.osmosis.replication.v0_6.impl.ReplicationDownloaderConfiguration;
-import org.openstreetmap.osmosis.replication.v0_6.impl.ReplicationFileMergerConfiguration;
 import org.openstreetmap.osmosis.replication.v0_6.impl.ReplicationFileRegionConfiguration;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ReplicationFileSpliterConfiguration;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SharedXmlChangeWriter;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SpliterMetrics;
+import org.openstreetmap.osmosis.replication.v0_6.impl.StageTimingChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.TileIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.TilePyramidWriter;
 import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
-import org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter;
 
 public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 
@@ -27,9 +50,18 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 			.getLogger(ReplicationFileMerger.class.getName());
 
 	private static final String CONFIG_FILE = "configuration.txt";
+	private static final String LOCAL_STATE_FILE = "state.txt";
+	private static final String STORE_STATE_FILE = "state.txt";
 	private static final String AREA_CONFIG = "area-list.json";
-
-	private HashMap<String, ChangeSink> changeSinkMap;
+	private static final String NODE_LOCATION_FILE = "node-locations.dat";
+	private static final String PARENT_INDEX_DIRECTORY = "parent-index";
+	private static final String METRICS_FILE = "metrics.prom";
+	private static final String CHECKPOINT_DIRECTORY = "checkpoint";
+	private static final String TILE_DIRECTORY = "tiles";
+	private static final String DATA_FILE_SUFFIX = ".osc.gz";
+
+	private ChangeSink intervalSink;
+	private MultiRegionChangeAreaFilter intervalFilter;
 	private HashMap<String, ReplicationStore> replicationStoreMap;
 
 	private boolean sinkActive;
@@ -37,6 +69,29 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 	private ReplicationStore activeStore;
 
 	private ReplicationFileRegionConfiguration regionConfig;
+	private long regionConfigModified;
+	private long regionConfigLength;
+	private RegionIndex regionIndex; // Of the top level regions.
+	private List<Region> processedRegions; // One per distinct geometry.
+	private int[] processedRegionOf; // For each configured region.
+	private boolean regionHierarchyEnabled;
+	private RegionHierarchy regionHierarchy; // null if disabled
+	private NodeLocationStore nodeLocations;
+	private ParentIndex parentIndex;
+	private ChangeSinkWorkerPool workerPool;
+	private OutputFilePool outputPool;
+	private SpliterMetrics metrics;
+	private boolean prometheusFileEnabled;
+	private long intervalNanos; // spent on the current interval so far
+	private IntervalCheckpoint checkpoint;
+	private long checkpointInterval;
+	private long spoolMemoryLimit;
+	private boolean parseThreadEnabled;
+	private TileIndex tileIndex;
+	private ReplicationStore tileStore;
+	private TilePyramidWriter tileWriter;
+	private long lastCheckpointTime;
+	private ReplicationState lastChangesetState;
 
 	/**
 	 * Creates a new instance.
@@ -47,22 +102,269 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 	public ReplicationFileRegionSpliter(File workingDirectory) {
 		super(workingDirectory);
 
-		regionConfig = new ReplicationFileRegionConfiguration(new File(
-				getWorkingDirectory(), AREA_CONFIG));
+		ReplicationFileSpliterConfiguration configuration;
+
+		configuration = getConfiguration();
+		regionHierarchyEnabled = configuration.isRegionHierarchyEnabled();
+
 		replicationStoreMap = new HashMap<String, ReplicationStore>();
-		for (Region region : regionConfig.getRegionList()) {
-			FileReplicationStore store = new FileReplicationStore(new File(
-					getWorkingDirectory(), region.getKey()), true);
-			if (activeStore == null) {
-				activeStore = store; // assign the first to be active
-										// replicationStore
-			}
-			replicationStoreMap.put(region.getKey(), store);
+		loadRegions(new ReplicationFileRegionConfiguration(new File(
+				getWorkingDirectory(), AREA_CONFIG)));
+
+		if (configuration.isNodeLocationIndexEnabled()) {
+			nodeLocations = new NodeLocationStore(new File(
+					getWorkingDirectory(), NODE_LOCATION_FILE));
+		}
+		if (configuration.isParentIndexEnabled()) {
+			parentIndex = new ParentIndex(new File(getWorkingDirectory(),
+					PARENT_INDEX_DIRECTORY));
+		}
+		if (configuration.getWorkerThreads() > 0) {
+			workerPool = new ChangeSinkWorkerPool(
+					configuration.getWorkerThreads());
+		}
+		outputPool = new OutputFilePool(configuration.getMaxOpenFiles(),
+				configuration.getWriterBufferLimit());
+		prometheusFileEnabled = configuration.isPrometheusFileEnabled();
+		spoolMemoryLimit = configuration.getSpoolMemoryLimit();
+		parseThreadEnabled = configuration.isParseThreadEnabled();
+		checkpointInterval = configuration.getCheckpointInterval();
+		if (configuration.getTileZoom() > 0) {
+			tileIndex = new TileIndex(configuration.getTileZoom());
+			createTileStore();
+		}
+		if (checkpointInterval > 0) {
+			checkpoint = new IntervalCheckpoint(new File(getWorkingDirectory(),
+					CHECKPOINT_DIRECTORY));
 		}
 
 		sinkActive = false;
 	}
 
+	private void createTileStore() {
+		File tileDirectory = new File(getWorkingDirectory(), TILE_DIRECTORY);
+
+		if (!tileDirectory.exists() && !tileDirectory.mkdirs()) {
+			throw new OsmosisRuntimeException(
+					"Unable to create tile directory " + tileDirectory + ".");
+		}
+		tileStore = new FileReplicationStore(tileDirectory, true);
+
+		// Tiles enabled on a running spliter start at its last saved
+		// interval, like an added region.
+		if (!new File(tileDirectory, STORE_STATE_FILE).exists()
+				&& hasState(regionConfig.getRegionList().get(0))) {
+			tileStore.saveState(activeStore.getCurrentState());
+		}
+	}
+
+	private void loadRegions(ReplicationFileRegionConfiguration newRegionConfig) {
+		File configFile = new File(getWorkingDirectory(), AREA_CONFIG);
+		HashMap<String, ReplicationStore> newStoreMap;
+		List<ReplicationStore> newStores;
+		List<ReplicationState> newStates;
+		List<String> regionKeys;
+		ReplicationState joinState;
+
+		if (newRegionConfig.getRegionList().isEmpty()) {
+			throw new OsmosisRuntimeException("No regions are defined in "
+					+ configFile + ".");
+		}
+
+		// Stores of regions still defined are kept, added regions get their
+		// data directory created.
+		newStoreMap = new HashMap<String, ReplicationStore>();
+		newStores = new ArrayList<ReplicationStore>();
+		newStates = new ArrayList<ReplicationState>();
+		regionKeys = new ArrayList<String>();
+		// When reloading, the regions being retired may hold the latest
+		// state.
+		joinState = activeStore != null ? activeStore.getCurrentState() : null;
+		for (Region region : newRegionConfig.getRegionList()) {
+			ReplicationStore store = replicationStoreMap.get(region.getKey());
+			if (store == null) {
+				File dataDirectory = new File(getWorkingDirectory(),
+						region.getKey());
+				if (!dataDirectory.exists() && !dataDirectory.mkdirs()) {
+					throw new OsmosisRuntimeException(
+							"Unable to create data directory " + dataDirectory
+									+ ".");
+				}
+				store = new FileReplicationStore(dataDirectory, true);
+			}
+			// Regions added since the last interval have no state yet.
+			ReplicationState state = null;
+			if (hasState(region)) {
+				state = store.getCurrentState();
+				if (joinState == null
+						|| state.getSequenceNumber() > joinState
+								.getSequenceNumber()) {
+					joinState = state;
+				}
+			}
+			newStoreMap.put(region.getKey(), store);
+			newStores.add(store);
+			newStates.add(state);
+			regionKeys.add(region.getKey());
+		}
+		for (String key : replicationStoreMap.keySet()) {
+			if (!newStoreMap.containsKey(key)) {
+				LOG.info("Retiring region " + key);
+			}
+		}
+
+		// Added regions start at the last saved interval, history is not
+		// reprocessed for them. Before the working directory has been
+		// initialised, all regions get their state then.
+		if (joinState != null) {
+			for (int i = 0; i < newStores.size(); i++) {
+				String key = regionKeys.get(i);
+				ReplicationState state = newStates.get(i);
+				if (state == null) {
+					LOG.info("Adding region " + key + " at sequence number "
+							+ joinState.getSequenceNumber());
+					newStores.get(i).saveState(joinState);
+				} else if (state.getSequenceNumber() < joinState
+						.getSequenceNumber()) {
+					LOG.warning("Region " + key + " resumes at sequence number "
+							+ joinState.getSequenceNumber() + " after "
+							+ state.getSequenceNumber());
+					newStores.get(i).saveState(joinState);
+				}
+			}
+		}
+		activeStore = newStores.get(0);
+
+		regionConfig = newRegionConfig;
+		replicationStoreMap = newStoreMap;
+		groupRegions();
+		if (regionHierarchyEnabled) {
+			regionHierarchy = new RegionHierarchy(processedRegions);
+			for (int i = 0; i < processedRegions.size(); i++) {
+				int parent = regionHierarchy.getParent(i);
+				if (parent >= 0) {
+					LOG.info("Region " + processedRegions.get(i).getKey()
+							+ " is filtered from region "
+							+ processedRegions.get(parent).getKey());
+				}
+			}
+			regionIndex = new RegionIndex(getRegions(regionHierarchy.getRoots()));
+		} else {
+			regionHierarchy = null;
+			regionIndex = new RegionIndex(processedRegions);
+		}
+		regionConfigModified = configFile.lastModified();
+		regionConfigLength = configFile.length();
+
+		if (metrics != null) {
+			metrics.unregister();
+		}
+		regionKeys.clear();
+		for (Region region : processedRegions) {
+			regionKeys.add(region.getKey());
+		}
+		metrics = new SpliterMetrics(regionKeys.toArray(new String[regionKeys
+				.size()]));
+		metrics.register(getWorkingDirectory().getAbsolutePath());
+	}
+
+	/**
+	 * Processes regions with the same geometry once, the first of them is
+	 * written and the others receive a link to its file.
+	 */
+	private void groupRegions() {
+		Map<String, Integer> processedByGeometry = new HashMap<String, Integer>();
+		List<Region> regions = regionConfig.getRegionList();
+
+		processedRegions = new ArrayList<Region>();
+		processedRegionOf = new int[regions.size()];
+		for (int i = 0; i < regions.size(); i++) {
+			Region region = regions.get(i);
+			Integer processed = processedByGeometry.get(region.getGeometryKey());
+
+			if (processed == null) {
+				processed = processedRegions.size();
+				processedByGeometry.put(region.getGeometryKey(), processed);
+				processedRegions.add(region);
+			} else {
+				LOG.info("Region " + region.getKey() + " shares the area of region "
+						+ processedRegions.get(processed).getKey());
+			}
+			processedRegionOf[i] = processed;
+		}
+	}
+
+	private List<Region> getRegions(int[] indexes) {
+		List<Region> regions = new ArrayList<Region>();
+
+		for (int index : indexes) {
+			regions.add(processedRegions.get(index));
+		}
+
+		return regions;
+	}
+
+	private File getDataFile(Region region, long sequenceNumber) {
+		return new ReplicationFileSequenceFormatter(new File(
+				getWorkingDirectory(), region.getKey())).getFormattedName(
+				sequenceNumber, DATA_FILE_SUFFIX);
+	}
+
+	private File getTileDirectory(long sequenceNumber) {
+		return new ReplicationFileSequenceFormatter(new File(
+				getWorkingDirectory(), TILE_DIRECTORY)).getFormattedName(
+				sequenceNumber, "");
+	}
+
+	private void linkOrCopy(File source, File target) {
+		try {
+			Files.deleteIfExists(target.toPath());
+			try {
+				Files.createLink(target.toPath(), source.toPath());
+			} catch (IOException e) {
+				LOG.fine("Unable to link " + target + ", copying instead: " + e);
+				Files.copy(source.toPath(), target.toPath());
+			} catch (UnsupportedOperationException e) {
+				Files.copy(source.toPath(), target.toPath());
+			}
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to create " + target
+					+ " from " + source + ".", e);
+		}
+	}
+
+	private boolean hasState(Region region) {
+		return new File(new File(getWorkingDirectory(), region.getKey()),
+				STORE_STATE_FILE).exists();
+	}
+
+	/**
+	 * Picks up changes of the region configuration. It may only be called
+	 * between intervals.
+	 */
+	private void reloadRegionsIfModified() {
+		File configFile = new File(getWorkingDirectory(), AREA_CONFIG);
+		ReplicationFileRegionConfiguration newRegionConfig;
+
+		if (configFile.lastModified() == regionConfigModified
+				&& configFile.length() == regionConfigLength) {
+			return;
+		}
+
+		// A configuration being edited may not be readable yet, it is
+		// retried at the next interval.
+		try {
+			newRegionConfig = new ReplicationFileRegionConfiguration(configFile);
+		} catch (RuntimeException e) {
+			LOG.log(Level.WARNING, "Unable to reload " + configFile
+					+ ", keeping the current regions.", e);
+			return;
+		}
+
+		LOG.info("Reloading regions from " + configFile);
+		loadRegions(newRegionConfig);
+	}
+
 	private Date alignDateToIntervalBoundary(Date requestedDate,
 			long intervalLength) {
 		long remainder;
@@ -131,31 +433,118 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 		return maximumTimestamp;
 	}
 
-	private HashMap<String, ChangeSink> buildResultWriter(long sequenceNumber) {
-		XmlChangeWriter xmlChangeWriter;
-		ChangeSorter changeSorter;
-		HashMap<String, ChangeSink> changeSinkMap = new HashMap<String, ChangeSink>();
-		for (Region region : regionConfig.getRegionList()) {
-			ReplicationStore store = replicationStoreMap.get(region.getKey());
-			xmlChangeWriter = store.saveData(sequenceNumber);
+	private ChangeSink buildResultWriter(long sequenceNumber) {
+		SharedXmlChangeWriter regionWriter;
+		ChangeSink regionSink;
+		ChangeSink filterSink;
+		CompactChangeSorter changeSorter;
+		List<Region> regions;
+		List<ChangeSink> regionSinks = new ArrayList<ChangeSink>();
+		reloadRegionsIfModified();
+		regions = processedRegions;
+		intervalNanos = 0;
+		for (int i = 0; i < regions.size(); i++) {
+			// Written like the store would, but entities in several regions
+			// are only formatted once and only some files are open at a
+			// time.
+			regionWriter = new SharedXmlChangeWriter(getDataFile(regions.get(i),
+					sequenceNumber), outputPool);
+
+			// Timed within the worker so that write time is measured where
+			// the writing happens.
+			regionSink = new StageTimingChangeSink(regionWriter, metrics,
+					SpliterMetrics.Stage.Write, i);
+			if (workerPool != null) {
+				regionSinks.add(workerPool.submit(regionSink));
+			} else {
+				regionSinks.add(regionSink);
+			}
+		}
+		if (regionHierarchy != null) {
+			intervalFilter = buildNestedFilter(regionHierarchy.getRoots(),
+					regionIndex, regionSinks, true);
+		} else {
+			intervalFilter = new MultiRegionChangeAreaFilter(regionIndex,
+					regionSinks, true, true, false, spoolMemoryLimit);
+			intervalFilter.setNodeLocationStore(nodeLocations);
+			intervalFilter.setParentIndex(parentIndex);
+			intervalFilter.setMetrics(metrics);
+		}
+		filterSink = intervalFilter;
+
+		// The tiles are filtered from the same sorted stream. Unchanged
+		// parents are only pulled into regions, the parent index takes each
+		// change once. The interval filter is processed first and updates the
+		// node locations, the tile filter only looks them up.
+		if (tileIndex != null) {
+			MultiRegionChangeAreaFilter tileFilter;
+
+			tileWriter = new TilePyramidWriter(tileIndex,
+					getTileDirectory(sequenceNumber), outputPool);
+			tileFilter = new MultiRegionChangeAreaFilter(tileIndex,
+					tileWriter.getTileSinks(), true, true, false,
+					spoolMemoryLimit);
+			tileFilter.setNodeLocationStore(nodeLocations, false);
+			filterSink = new ChangeFanOut(intervalFilter, tileFilter);
+		}
 
-			changeSorter = new ChangeSorter(
-					new ChangeForStreamableApplierComparator());
-			changeSorter.setChangeSink(xmlChangeWriter);
-			ChangeBoundingBoxFilter filter = new ChangeBoundingBoxFilter(IdTrackerType.Dynamic, region.getBound(), false, true,
-					true, false);
-			filter.setChangeSink(changeSorter);
-			changeSinkMap.put(region.getKey(), filter);
+		// The filter keeps the input order for every region, so the interval
+		// is sorted once for all regions.
+		changeSorter = new CompactChangeSorter(
+				new ChangeForStreamableApplierComparator(), false);
+		changeSorter.setChangeSink(new StageTimingChangeSink(filterSink,
+				metrics, SpliterMetrics.Stage.Filter, -1));
+		return new StageTimingChangeSink(changeSorter, metrics,
+				SpliterMetrics.Stage.Sort, -1);
+	}
+
+	/**
+	 * Builds the filter of some regions of the hierarchy. A region with
+	 * regions lying within it passes its changes on to a filter of those as
+	 * well as to its writer. Only the top level filter updates the node
+	 * locations and the parent index, the nested filters run during its
+	 * completion and look them up.
+	 */
+	private MultiRegionChangeAreaFilter buildNestedFilter(int[] regions,
+			RegionIndex index, List<ChangeSink> writerSinks, boolean top) {
+		List<ChangeSink> sinks = new ArrayList<ChangeSink>();
+		MultiRegionChangeAreaFilter filter;
+
+		for (int region : regions) {
+			int[] children = regionHierarchy.getChildren(region);
+
+			if (children.length > 0) {
+				sinks.add(new ChangeFanOut(writerSinks.get(region),
+						buildNestedFilter(children, new RegionIndex(
+								getRegions(children)), writerSinks, false)));
+			} else {
+				sinks.add(writerSinks.get(region));
+			}
 		}
-		return changeSinkMap;
+
+		filter = new MultiRegionChangeAreaFilter(index, sinks, true, true,
+				false, spoolMemoryLimit);
+		filter.setNodeLocationStore(nodeLocations, top);
+		filter.setParentIndex(parentIndex, top);
+		filter.setMetrics(metrics, regions);
+		return filter;
 	}
 
 	private void writeChangeset(XmlChangeReader xmlReader) {
-		final HashMap<String, ChangeSink> localChangeSink = changeSinkMap;
+		final ChangeBatcher batcher = new ChangeBatcher(intervalSink);
+		final ChangeSink localSegmentSink = checkpoint != null ? checkpoint
+				.getSegmentSink() : null;
+		final SpliterMetrics localMetrics = metrics;
 
-		xmlReader.setChangeSink(new ChangeSink() {
-			private HashMap<String, ChangeSink> suppressedWriter = localChangeSink;
+		RunnableChangeSource changeSource;
 
+		// Filtering stays on this thread, only the parsing moves.
+		if (parseThreadEnabled) {
+			changeSource = new PipelinedChangeReader(xmlReader);
+		} else {
+			changeSource = xmlReader;
+		}
+		changeSource.setChangeSink(new ChangeSink() {
 			@Override
 			public void initialize(Map<String, Object> metaData) {
 				// Suppress the call.
@@ -163,9 +552,11 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 
 			@Override
 			public void process(ChangeContainer change) {
-				for (ChangeSink changeSink : suppressedWriter.values()) {
-					changeSink.process(change);
+				localMetrics.addChangeIn();
+				if (localSegmentSink != null) {
+					localSegmentSink.process(change);
 				}
+				batcher.add(change);
 			}
 
 			@Override
@@ -179,11 +570,47 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 			}
 		});
 
-		xmlReader.run();
+		long start = System.nanoTime();
+		metrics.enter(SpliterMetrics.Stage.Parse);
+		try {
+			changeSource.run();
+			batcher.flush();
+		} finally {
+			metrics.exit();
+			intervalNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void resumeCheckpoint() {
+		ReplicationState intervalState = checkpoint.getIntervalState();
+
+		LOG.fine("Resuming interval with sequence number "
+				+ intervalState.getSequenceNumber() + " from its checkpoint");
+		currentDataState = intervalState;
+		intervalSink = buildResultWriter(currentDataState.getSequenceNumber());
+
+		long start = System.nanoTime();
+		metrics.enter(SpliterMetrics.Stage.Parse);
+		try {
+			checkpoint.replay(intervalSink);
+		} finally {
+			metrics.exit();
+			intervalNanos += System.nanoTime() - start;
+		}
+		lastCheckpointTime = System.currentTimeMillis();
 	}
 
-	private ReplicationFileMergerConfiguration getConfiguration() {
-		return new ReplicationFileMergerConfiguration(new File(
+	private void checkpointIfDue(ReplicationState replicationState) {
+		long now = System.currentTimeMillis();
+
+		if (now - lastCheckpointTime >= checkpointInterval) {
+			checkpoint.checkpoint(currentDataState, replicationState);
+			lastCheckpointTime = now;
+		}
+	}
+
+	private ReplicationFileSpliterConfiguration getConfiguration() {
+		return new ReplicationFileSpliterConfiguration(new File(
 				getWorkingDirectory(), CONFIG_FILE));
 	}
 
@@ -192,7 +619,20 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 	 */
 	@Override
 	protected void processInitialize(Map<String, Object> metaData) {
-		// Do nothing.
+		if (checkpoint != null && checkpoint.exists()) {
+			if (checkpoint.getIntervalState().getSequenceNumber() <= activeStore
+					.getCurrentState().getSequenceNumber()) {
+				// The interval was saved before the checkpoint was removed.
+				checkpoint.clear();
+			} else {
+				// Continue downloading after the last replication file in the
+				// checkpoint. The local state is read after this call.
+				new PropertiesPersister(new File(getWorkingDirectory(),
+						LOCAL_STATE_FILE)).store(checkpoint.getDownloadState()
+						.store());
+			}
+		}
+		lastCheckpointTime = System.currentTimeMillis();
 	}
 
 	/**
@@ -232,6 +672,9 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 			ReplicationStore store = replicationStoreMap.get(region.getKey());
 			store.saveState(currentDataState);
 		}
+		if (tileStore != null) {
+			tileStore.saveState(currentDataState);
+		}
 	}
 
 	/**
@@ -241,13 +684,19 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 	protected void processChangeset(XmlChangeReader xmlReader,
 			ReplicationState replicationState) {
 		int intervalLength;
-		ReplicationFileMergerConfiguration configuration;
+		ReplicationFileSpliterConfiguration configuration;
 
 		configuration = getConfiguration();
 
 		// Get the configured interval length.
 		intervalLength = configuration.getIntervalLength();
 
+		// Pick up an interval interrupted by a previous invocation.
+		if (!sinkActive && checkpoint != null && checkpoint.exists()) {
+			resumeCheckpoint();
+			sinkActive = true;
+		}
+
 		// If this is the first time through, initialise a writer for the next
 		// sequence number.
 		if (!sinkActive) {
@@ -258,7 +707,7 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 			// Initialise an output file for the new sequence number.
 			LOG.finer("Opening change sink for interval with sequence number "
 					+ currentDataState.getSequenceNumber());
-			changeSinkMap = buildResultWriter(currentDataState
+			intervalSink = buildResultWriter(currentDataState
 					.getSequenceNumber());
 		}
 
@@ -300,7 +749,7 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 				// Begin a new interval.
 				LOG.finer("Opening change sink for interval with sequence number "
 						+ currentDataState.getSequenceNumber());
-				changeSinkMap = buildResultWriter(currentDataState
+				intervalSink = buildResultWriter(currentDataState
 						.getSequenceNumber());
 			}
 
@@ -315,18 +764,90 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 
 		// Write the changeset to the writer.
 		writeChangeset(xmlReader);
+		lastChangesetState = replicationState;
 
 		// We are guaranteed to have an active writer at this point.
 		sinkActive = true;
+
+		if (checkpoint != null) {
+			checkpointIfDue(replicationState);
+		}
 	}
 
 	private void save() {
-		for (Region region : regionConfig.getRegionList()) {
-			ChangeSink cs = changeSinkMap.get(region.getKey());
-			cs.complete();
-			cs.release();
-			ReplicationStore store = replicationStoreMap.get(region.getKey());
-			store.saveState(currentDataState);
+		long start = System.nanoTime();
+
+		metrics.enter(SpliterMetrics.Stage.Save);
+		try {
+			// With workers, this only starts completing the regions in
+			// parallel.
+			intervalSink.complete();
+			if (workerPool != null) {
+				workerPool.flush();
+			}
+			// The sorter only feeds the filter on completion.
+			metrics.addInterval(intervalFilter.getTrackedIdCount(),
+					intervalFilter.getRegionSetCount(),
+					intervalFilter.getSpooledByteCount(),
+					intervalFilter.getSpilledByteCount());
+			if (intervalFilter.isSpoolSpilled()) {
+				metrics.addSpilledInterval();
+			}
+			// Node locations and parents must be durable before the state
+			// claims the interval has been processed.
+			if (nodeLocations != null) {
+				nodeLocations.commit();
+			}
+			if (parentIndex != null) {
+				parentIndex.commit();
+			}
+			List<Region> regions = regionConfig.getRegionList();
+			for (int i = 0; i < regions.size(); i++) {
+				Region region = regions.get(i);
+				int processed = processedRegionOf[i];
+				Region processedRegion = processedRegions.get(processed);
+				long sequenceNumber = currentDataState.getSequenceNumber();
+				ReplicationStore store = replicationStoreMap.get(region.getKey());
+				RegionSaveStateEvent event = new RegionSaveStateEvent(region.getKey(),
+						sequenceNumber);
+				if (processedRegion != region) {
+					linkOrCopy(getDataFile(processedRegion, sequenceNumber),
+							getDataFile(region, sequenceNumber));
+				}
+				store.saveState(currentDataState);
+				event.commit();
+				if (processedRegion == region) {
+					metrics.addRegionWritten(processed, System.currentTimeMillis());
+					metrics.addRegionBytesWritten(processed, getDataFile(region,
+							sequenceNumber).length());
+				}
+			}
+			LOG.fine("Output files were reopened " + outputPool.getReopenCount()
+					+ " times so far");
+			if (tileStore != null) {
+				tileStore.saveState(currentDataState);
+				LOG.fine("Wrote " + tileWriter.getTileCount()
+						+ " tiles for interval with sequence number "
+						+ currentDataState.getSequenceNumber());
+			}
+			// Record the replication files now contained in saved intervals
+			// before dropping the checkpoint holding them.
+			if (checkpoint != null) {
+				if (lastChangesetState != null) {
+					new PropertiesPersister(new File(getWorkingDirectory(),
+							LOCAL_STATE_FILE)).store(lastChangesetState.store());
+				}
+				checkpoint.clear();
+				lastCheckpointTime = System.currentTimeMillis();
+			}
+			intervalSink.release();
+		} finally {
+			metrics.exit();
+		}
+		metrics.addIntervalTime((intervalNanos + System.nanoTime() - start) / 1000000);
+
+		if (prometheusFileEnabled) {
+			metrics.writePrometheusFile(new File(getWorkingDirectory(), METRICS_FILE));
 		}
 	}
 
@@ -338,13 +859,8 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 		if (sinkActive) {
 			LOG.finer("Closing change sink for interval with sequence number "
 					+ currentDataState.getSequenceNumber());
-			for (Region region : regionConfig.getRegionList()) {
-				changeSinkMap.get(region.getKey()).complete();
-				replicationStoreMap.get(region.getKey()).saveState(currentDataState);
-				changeSinkMap.get(region.getKey()).release();
-			}
-			changeSinkMap.clear();
-			changeSinkMap = null;
+			save();
+			intervalSink = null;
 			sinkActive = false;
 		}
 	}
@@ -355,11 +871,25 @@ public class ReplicationFileRegionSpliter extends BaseReplicationDownloader {
 	@Override
 	protected void processRelease() {
 		if (sinkActive) {
-			for (ChangeSink changeSink : changeSinkMap.values()) {
-				changeSink.release();
-			}
+			intervalSink.release();
 			sinkActive = false;
 		}
+		if (workerPool != null) {
+			workerPool.release();
+			workerPool = null;
+		}
+		if (nodeLocations != null) {
+			nodeLocations.release();
+			nodeLocations = null;
+		}
+		if (parentIndex != null) {
+			parentIndex.release();
+			parentIndex = null;
+		}
+		if (checkpoint != null) {
+			checkpoint.release();
+		}
+		metrics.unregister();
 	}
 
 }
@@ -0,0 +1,202 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.openstreetmap.osmosis.core.filter.common.IdTracker;
+
+/**
+ * An id tracker choosing its representation from the density of the ids it
+ * sees. Ids start out in a sorted list, costing 8 bytes each. Once the ids
+ * turn out to share their 65536 id chunks densely enough for a
+ * {@link RoaringIdTracker} to be smaller, they move there for good. Sparse
+ * minutely diffs thus stay in the list while large extracts end up in
+ * bitmaps.
+ */
+public class AdaptiveIdTracker implements IdTracker {
+
+	private static final int CHUNK_BITS = 16;
+
+	/**
+	 * The list size at which the density is first looked at.
+	 */
+	private static final int FIRST_CHECK = 4096;
+
+	/**
+	 * A chunk costs the roaring tracker about 100 bytes of table and array
+	 * overhead plus 2 bytes per id, compared to 8 bytes per id in the list.
+	 */
+	private static final int DENSE_IDS_PER_CHUNK = 16;
+
+	private long[] ids;
+	private int size;
+	private boolean sorted;
+	private int nextCheck;
+	private RoaringIdTracker roaring;
+
+
+	/**
+	 * Creates a new instance.
+	 */
+	public AdaptiveIdTracker() {
+		ids = new long[16];
+		sorted = true;
+		nextCheck = FIRST_CHECK;
+	}
+
+
+	/**
+	 * Returns the tracker currently holding the ids.
+	 *
+	 * @return The roaring tracker, or this tracker while ids are kept in the
+	 *         list.
+	 */
+	IdTracker getTracker() {
+		if (roaring != null) {
+			return roaring;
+		}
+
+		return this;
+	}
+
+
+	/**
+	 * Indicates if the ids moved to the roaring representation.
+	 *
+	 * @return True if the ids are kept in bitmaps.
+	 */
+	public boolean isRoaring() {
+		return roaring != null;
+	}
+
+
+	private void sort() {
+		if (!sorted) {
+			int unique = 0;
+
+			Arrays.sort(ids, 0, size);
+			for (int i = 0; i < size; i++) {
+				if (unique == 0 || ids[unique - 1] != ids[i]) {
+					ids[unique++] = ids[i];
+				}
+			}
+			size = unique;
+			sorted = true;
+		}
+	}
+
+
+	private void checkDensity() {
+		int chunks = 0;
+
+		sort();
+		for (int i = 0; i < size; i++) {
+			if (i == 0 || (ids[i - 1] >> CHUNK_BITS) != (ids[i] >> CHUNK_BITS)) {
+				chunks++;
+			}
+		}
+
+		if (size >= chunks * DENSE_IDS_PER_CHUNK) {
+			roaring = new RoaringIdTracker();
+			for (int i = 0; i < size; i++) {
+				roaring.set(ids[i]);
+			}
+			ids = null;
+		} else {
+			nextCheck = Math.max(FIRST_CHECK, size * 2);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void set(long id) {
+		if (roaring != null) {
+			roaring.set(id);
+			return;
+		}
+
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		if (size > 0 && ids[size - 1] >= id) {
+			sorted = false;
+		}
+		ids[size++] = id;
+
+		if (size >= nextCheck) {
+			checkDensity();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		if (roaring != null) {
+			return roaring.get(id);
+		}
+
+		sort();
+		return Arrays.binarySearch(ids, 0, size, id) >= 0;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAll(IdTracker idTracker) {
+		if (roaring != null) {
+			roaring.setAll(idTracker);
+		} else {
+			for (Long id : idTracker) {
+				set(id);
+			}
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<Long> iterator() {
+		if (roaring != null) {
+			return roaring.iterator();
+		}
+
+		sort();
+		return new Iterator<Long>() {
+			private int index;
+
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+
+			@Override
+			public Long next() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+
+				return ids[index++];
+			}
+
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,25 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+/**
+ * A change sink also accepting changes in batches. Use
+ * {@link ChangeBatcher#process(ChangeSink, ChangeContainer[], int)} to pass a
+ * batch to a sink which may not support them.
+ */
+public interface BatchChangeSink extends ChangeSink {
+
+	/**
+	 * Processes a batch of changes, with the same result as processing each
+	 * change in turn.
+	 *
+	 * @param changes
+	 *            The changes, the array may be reused by the caller once the
+	 *            call returns.
+	 * @param count
+	 *            The number of changes at the start of the array.
+	 */
+	void process(ChangeContainer[] changes, int count);
+}
@@ -0,0 +1,96 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Arrays;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+/**
+ * Collects changes into batches for a sink. Sinks not implementing
+ * {@link BatchChangeSink} receive the changes one at a time.
+ */
+public class ChangeBatcher {
+
+	/**
+	 * The default number of changes per batch.
+	 */
+	public static final int BATCH_SIZE = 1024;
+
+	private ChangeSink sink;
+	private ChangeContainer[] batch;
+	private int count;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param sink
+	 *            The sink receiving the batches.
+	 */
+	public ChangeBatcher(ChangeSink sink) {
+		this(sink, BATCH_SIZE);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param sink
+	 *            The sink receiving the batches.
+	 * @param batchSize
+	 *            The number of changes per batch.
+	 */
+	public ChangeBatcher(ChangeSink sink, int batchSize) {
+		this.sink = sink;
+		batch = new ChangeContainer[batchSize];
+	}
+
+
+	/**
+	 * Adds a change, passing the batch on once it is full.
+	 *
+	 * @param change
+	 *            The change to be added.
+	 */
+	public void add(ChangeContainer change) {
+		batch[count++] = change;
+		if (count == batch.length) {
+			flush();
+		}
+	}
+
+
+	/**
+	 * Passes the changes collected so far on to the sink.
+	 */
+	public void flush() {
+		if (count > 0) {
+			process(sink, batch, count);
+			Arrays.fill(batch, 0, count, null);
+			count = 0;
+		}
+	}
+
+
+	/**
+	 * Passes a batch of changes to a sink, one at a time unless the sink
+	 * accepts batches.
+	 *
+	 * @param sink
+	 *            The sink receiving the changes.
+	 * @param changes
+	 *            The changes.
+	 * @param count
+	 *            The number of changes at the start of the array.
+	 */
+	public static void process(ChangeSink sink, ChangeContainer[] changes, int count) {
+		if (sink instanceof BatchChangeSink) {
+			((BatchChangeSink) sink).process(changes, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				sink.process(changes[i]);
+			}
+		}
+	}
+}
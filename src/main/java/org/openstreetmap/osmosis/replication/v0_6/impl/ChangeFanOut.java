@@ -0,0 +1,82 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+/**
+ * Passes every change to several sinks in turn, batches are passed on as
+ * batches.
+ */
+public class ChangeFanOut implements BatchChangeSink {
+
+	private ChangeSink[] sinks;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param sinks
+	 *            The sinks receiving the changes.
+	 */
+	public ChangeFanOut(ChangeSink... sinks) {
+		this.sinks = sinks;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void initialize(Map<String, Object> metaData) {
+		for (ChangeSink sink : sinks) {
+			sink.initialize(metaData);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer change) {
+		for (ChangeSink sink : sinks) {
+			sink.process(change);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer[] changes, int count) {
+		for (ChangeSink sink : sinks) {
+			ChangeBatcher.process(sink, changes, count);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void complete() {
+		for (ChangeSink sink : sinks) {
+			sink.complete();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		for (ChangeSink sink : sinks) {
+			sink.release();
+		}
+	}
+}
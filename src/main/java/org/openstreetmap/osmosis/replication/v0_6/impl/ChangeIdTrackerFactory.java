@@ -0,0 +1,37 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import org.openstreetmap.osmosis.core.filter.common.IdTracker;
+import org.openstreetmap.osmosis.core.filter.common.IdTrackerFactory;
+import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
+
+/**
+ * Creates id trackers of a {@link ChangeIdTrackerType}.
+ */
+public final class ChangeIdTrackerFactory {
+
+	/**
+	 * This class cannot be instantiated.
+	 */
+	private ChangeIdTrackerFactory() {
+	}
+
+
+	/**
+	 * Creates a new id tracker.
+	 *
+	 * @param idTrackerType
+	 *            The type of tracker.
+	 * @return The new tracker.
+	 */
+	public static IdTracker createInstance(ChangeIdTrackerType idTrackerType) {
+		switch (idTrackerType) {
+		case Roaring:
+			return new RoaringIdTracker();
+		case Auto:
+			return new AdaptiveIdTracker();
+		default:
+			return IdTrackerFactory.createInstance(IdTrackerType.valueOf(idTrackerType.name()));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
+
+/**
+ * The id tracker implementations available to the change area filters. The
+ * first three are those of the osmosis core.
+ */
+public enum ChangeIdTrackerType {
+	/**
+	 * The core bit set tracker.
+	 */
+	BitSet,
+
+	/**
+	 * The core sorted list tracker.
+	 */
+	IdList,
+
+	/**
+	 * The core tracker switching between bit sets and lists per segment.
+	 */
+	Dynamic,
+
+	/**
+	 * A compressed bitmap over the full 64-bit id range.
+	 */
+	Roaring,
+
+	/**
+	 * A list for sparse ids, moving to the compressed bitmap once ids are
+	 * dense.
+	 */
+	Auto;
+
+
+	/**
+	 * Finds the type of a name, ignoring case.
+	 *
+	 * @param name
+	 *            The name, for example "auto".
+	 * @return The type.
+	 */
+	public static ChangeIdTrackerType fromName(String name) {
+		for (ChangeIdTrackerType type : values()) {
+			if (type.name().equalsIgnoreCase(name)) {
+				return type;
+			}
+		}
+
+		throw new OsmosisRuntimeException("The id tracker type " + name + " is not recognised.");
+	}
+
+
+	/**
+	 * Returns the type matching a core id tracker type.
+	 *
+	 * @param idTrackerType
+	 *            The core type.
+	 * @return The type.
+	 */
+	public static ChangeIdTrackerType fromCoreType(IdTrackerType idTrackerType) {
+		return valueOf(idTrackerType.name());
+	}
+}
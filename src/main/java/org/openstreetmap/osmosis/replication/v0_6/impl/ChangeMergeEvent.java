@@ -0,0 +1,132 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A flight recorder event covering the change sorter merging its sorted runs.
+ * The event lasts until the merged changes can be read, which includes the
+ * last run being written and runs being merged ahead. The changes are then
+ * merged as they are read, that time is recorded without the time taken by
+ * the output.
+ */
+public class ChangeMergeEvent {
+
+	private Object event; // null if not recorded
+	private long readNanos;
+
+
+	/**
+	 * Creates and begins a new instance.
+	 *
+	 * @param changes
+	 *            The number of changes sorted.
+	 * @param runs
+	 *            The number of sorted runs.
+	 */
+	public ChangeMergeEvent(long changes, long runs) {
+		if (FlightEvents.isAvailable()) {
+			event = Recorded.begin(changes, runs);
+		}
+	}
+
+
+	/**
+	 * Indicates if the event is being recorded, there is no need to time the
+	 * reads otherwise.
+	 *
+	 * @return True if enabled.
+	 */
+	public boolean isEnabled() {
+		return event != null && Recorded.isEnabled(event);
+	}
+
+
+	/**
+	 * Ends the event once the merged changes can be read.
+	 */
+	public void end() {
+		if (event != null) {
+			Recorded.end(event);
+		}
+	}
+
+
+	/**
+	 * Adds time spent reading merged changes.
+	 *
+	 * @param nanos
+	 *            The time in nanoseconds.
+	 */
+	public void addReadTime(long nanos) {
+		readNanos += nanos;
+	}
+
+
+	/**
+	 * Records the event once all changes are read.
+	 */
+	public void commit() {
+		if (event != null) {
+			Recorded.commit(event, readNanos);
+		}
+	}
+
+
+	/**
+	 * The recorded event, only loaded if the flight recorder is available.
+	 */
+	@Name("org.openstreetmap.osmosis.replication.ChangeMerge")
+	@Label("Change Merge")
+	@Category({"Osmosis", "Replication"})
+	@Description("The sorted runs of an interval merged by the change sorter.")
+	@StackTrace(false)
+	static class Recorded extends Event {
+
+		@Label("Changes")
+		long changes;
+
+		@Label("Runs")
+		long runs;
+
+		@Label("Read Time")
+		@Description("Time spent reading the merged changes, not counting the output.")
+		@Timespan(Timespan.NANOSECONDS)
+		long readTime;
+
+
+		static Object begin(long changes, long runs) {
+			Recorded event = new Recorded();
+
+			event.changes = changes;
+			event.runs = runs;
+			event.begin();
+
+			return event;
+		}
+
+
+		static boolean isEnabled(Object begun) {
+			return ((Recorded) begun).isEnabled();
+		}
+
+
+		static void end(Object begun) {
+			((Recorded) begun).end();
+		}
+
+
+		static void commit(Object begun, long readTime) {
+			Recorded event = (Recorded) begun;
+
+			event.readTime = readTime;
+			event.commit();
+		}
+	}
+}
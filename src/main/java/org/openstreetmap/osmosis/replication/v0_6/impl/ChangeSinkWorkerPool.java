@@ -0,0 +1,273 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+/**
+ * Runs change sinks on a fixed number of worker threads. Each sink is bound
+ * to one worker and fed through that worker's bounded queue, so the calls to
+ * a sink keep their order while different sinks run in parallel. The
+ * producer blocks while a queue is full.
+ * <p>
+ * Calls on the returned sinks only enqueue work, a batch of changes is
+ * enqueued as a single task. {@link #flush()} waits for all of it to be done.
+ * A failure in a worker is rethrown to the producer by the next call.
+ */
+public class ChangeSinkWorkerPool implements Releasable {
+
+	private static final Logger LOG = Logger.getLogger(ChangeSinkWorkerPool.class.getName());
+
+	private static final int QUEUE_CAPACITY = 10000;
+
+	private Worker[] workers;
+	private int nextWorker;
+	private volatile Throwable failure;
+
+
+	/**
+	 * Creates a new instance and starts its worker threads.
+	 *
+	 * @param threadCount
+	 *            The number of worker threads.
+	 */
+	public ChangeSinkWorkerPool(int threadCount) {
+		workers = new Worker[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = new Worker("change-sink-worker-" + i);
+			workers[i].start();
+		}
+	}
+
+
+	/**
+	 * Returns a sink running the calls of the specified sink on one of the
+	 * workers. Sinks are distributed over the workers in turn.
+	 *
+	 * @param sink
+	 *            The sink to be run on a worker.
+	 * @return The sink enqueueing calls for the worker.
+	 */
+	public ChangeSink submit(ChangeSink sink) {
+		Worker worker = workers[nextWorker];
+
+		nextWorker = (nextWorker + 1) % workers.length;
+
+		return new WorkerChangeSink(worker, sink);
+	}
+
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new OsmosisRuntimeException("A change sink worker failed.", failure);
+		}
+	}
+
+
+	private void put(Worker worker, Task task) {
+		checkFailure();
+		try {
+			worker.queue.put(task);
+		} catch (InterruptedException e) {
+			throw new OsmosisRuntimeException("Interrupted while waiting for a change sink worker.", e);
+		}
+	}
+
+
+	/**
+	 * Waits until all workers are done with the work enqueued so far.
+	 */
+	public void flush() {
+		CountDownLatch latch = new CountDownLatch(workers.length);
+
+		for (Worker worker : workers) {
+			put(worker, new Task(Task.BARRIER, null, null, latch));
+		}
+
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new OsmosisRuntimeException("Interrupted while waiting for the change sink workers.", e);
+		}
+
+		checkFailure();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		for (Worker worker : workers) {
+			try {
+				worker.queue.put(new Task(Task.STOP, null, null, null));
+				worker.join();
+			} catch (InterruptedException e) {
+				throw new OsmosisRuntimeException("Interrupted while stopping a change sink worker.", e);
+			}
+		}
+	}
+
+
+	/**
+	 * A unit of work for a worker.
+	 */
+	private static class Task {
+		static final int INITIALIZE = 0;
+		static final int PROCESS = 1;
+		static final int COMPLETE = 2;
+		static final int RELEASE = 3;
+		static final int BARRIER = 4;
+		static final int STOP = 5;
+		static final int PROCESS_BATCH = 6;
+
+		private int type;
+		private ChangeSink sink;
+		private Object argument;
+		private CountDownLatch latch;
+
+
+		Task(int type, ChangeSink sink, Object argument, CountDownLatch latch) {
+			this.type = type;
+			this.sink = sink;
+			this.argument = argument;
+			this.latch = latch;
+		}
+	}
+
+
+	/**
+	 * Runs the tasks of its queue in order.
+	 */
+	private class Worker extends Thread {
+		private BlockingQueue<Task> queue;
+
+
+		Worker(String name) {
+			super(name);
+			queue = new ArrayBlockingQueue<Task>(QUEUE_CAPACITY);
+		}
+
+
+		@SuppressWarnings("unchecked")
+		private void runTask(Task task) {
+			switch (task.type) {
+			case Task.INITIALIZE:
+				task.sink.initialize((Map<String, Object>) task.argument);
+				break;
+			case Task.PROCESS:
+				task.sink.process((ChangeContainer) task.argument);
+				break;
+			case Task.PROCESS_BATCH:
+				ChangeContainer[] batch = (ChangeContainer[]) task.argument;
+				ChangeBatcher.process(task.sink, batch, batch.length);
+				break;
+			case Task.COMPLETE:
+				task.sink.complete();
+				break;
+			case Task.RELEASE:
+				task.sink.release();
+				break;
+			default:
+				break;
+			}
+		}
+
+
+		@Override
+		public void run() {
+			while (true) {
+				Task task;
+
+				try {
+					task = queue.take();
+				} catch (InterruptedException e) {
+					LOG.log(Level.WARNING, "Change sink worker interrupted.", e);
+					return;
+				}
+
+				if (task.type == Task.STOP) {
+					return;
+				}
+				if (task.type == Task.BARRIER) {
+					task.latch.countDown();
+					continue;
+				}
+
+				// After a failure the remaining work is dropped, releases still
+				// run so that files get closed.
+				if (failure == null || task.type == Task.RELEASE) {
+					try {
+						runTask(task);
+					} catch (Throwable t) {
+						if (failure == null) {
+							failure = t;
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Enqueues all calls for its worker.
+	 */
+	private class WorkerChangeSink implements BatchChangeSink {
+		private Worker worker;
+		private ChangeSink sink;
+
+
+		WorkerChangeSink(Worker worker, ChangeSink sink) {
+			this.worker = worker;
+			this.sink = sink;
+		}
+
+
+		@Override
+		public void initialize(Map<String, Object> metaData) {
+			put(worker, new Task(Task.INITIALIZE, sink, metaData, null));
+		}
+
+
+		@Override
+		public void process(ChangeContainer change) {
+			put(worker, new Task(Task.PROCESS, sink, change, null));
+		}
+
+
+		@Override
+		public void process(ChangeContainer[] changes, int count) {
+			// The caller may reuse its array.
+			put(worker, new Task(Task.PROCESS_BATCH, sink, Arrays.copyOf(changes, count), null));
+		}
+
+
+		@Override
+		public void complete() {
+			put(worker, new Task(Task.COMPLETE, sink, null, null));
+		}
+
+
+		@Override
+		public void release() {
+			// Releasing must not be skipped because of an earlier failure.
+			try {
+				worker.queue.put(new Task(Task.RELEASE, sink, null, null));
+			} catch (InterruptedException e) {
+				throw new OsmosisRuntimeException("Interrupted while waiting for a change sink worker.", e);
+			}
+		}
+	}
+}
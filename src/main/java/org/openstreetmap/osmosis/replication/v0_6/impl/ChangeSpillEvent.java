@@ -0,0 +1,77 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event covering the change sorter sorting a run of changes
+ * and writing it to disk.
+ */
+public class ChangeSpillEvent {
+
+	private Object event; // null if not recorded
+
+
+	/**
+	 * Creates and begins a new instance.
+	 *
+	 * @param run
+	 *            The number of the run, starting at 1.
+	 * @param changes
+	 *            The number of changes in the run.
+	 */
+	public ChangeSpillEvent(long run, int changes) {
+		if (FlightEvents.isAvailable()) {
+			event = Recorded.begin(run, changes);
+		}
+	}
+
+
+	/**
+	 * Ends the event and records it.
+	 */
+	public void commit() {
+		if (event != null) {
+			Recorded.commit(event);
+		}
+	}
+
+
+	/**
+	 * The recorded event, only loaded if the flight recorder is available.
+	 */
+	@Name("org.openstreetmap.osmosis.replication.ChangeSpill")
+	@Label("Change Spill")
+	@Category({"Osmosis", "Replication"})
+	@Description("A run of changes sorted and written to disk by the change sorter.")
+	@StackTrace(false)
+	static class Recorded extends Event {
+
+		@Label("Run")
+		long run;
+
+		@Label("Changes")
+		int changes;
+
+
+		static Object begin(long run, int changes) {
+			Recorded event = new Recorded();
+
+			event.run = run;
+			event.changes = changes;
+			event.begin();
+
+			return event;
+		}
+
+
+		static void commit(Object begun) {
+			((Recorded) begun).commit();
+		}
+	}
+}
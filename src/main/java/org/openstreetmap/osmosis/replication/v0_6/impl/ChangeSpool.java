@@ -0,0 +1,266 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.store.DataInputStoreReader;
+import org.openstreetmap.osmosis.core.store.DataOutputStoreWriter;
+import org.openstreetmap.osmosis.core.store.ObjectStreamIterator;
+import org.openstreetmap.osmosis.core.store.ObjectWriter;
+
+/**
+ * Holds every change of an interval once, in arrival order, regardless of its
+ * entity type and of the number of regions it will be routed to. The changes
+ * are read back in a single scan once all region memberships are known.
+ * <p>
+ * Changes are kept in memory in the compact serialization until they exceed
+ * the memory limit. The encoded changes are then moved to a temporary file
+ * which receives all further changes, so a small interval never touches the
+ * disk.
+ */
+public class ChangeSpool implements Releasable {
+
+	/**
+	 * The memory limit of a spool created without one, in bytes.
+	 */
+	public static final long DEFAULT_MEMORY_LIMIT = 16L * 1024 * 1024;
+
+	private static final Logger LOG = Logger.getLogger(ChangeSpool.class.getName());
+
+	private String storageFilePrefix;
+	private long memoryLimit;
+	private MemoryBuffer memory;
+	private OutputStream target;
+	private DataOutputStream dataOutStream;
+	private ObjectWriter writer;
+	private File file;
+	private boolean writing;
+	private long count;
+	private long bytes;
+
+
+	/**
+	 * Creates a new instance with the default memory limit.
+	 *
+	 * @param storageFilePrefix
+	 *            The prefix of the temporary file holding the changes.
+	 */
+	public ChangeSpool(String storageFilePrefix) {
+		this(storageFilePrefix, DEFAULT_MEMORY_LIMIT);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param storageFilePrefix
+	 *            The prefix of the temporary file holding the changes.
+	 * @param memoryLimit
+	 *            The number of encoded bytes held in memory before the changes
+	 *            are moved to a temporary file.
+	 */
+	public ChangeSpool(String storageFilePrefix, long memoryLimit) {
+		this.storageFilePrefix = storageFilePrefix;
+		this.memoryLimit = memoryLimit;
+
+		memory = new MemoryBuffer();
+		target = memory;
+		// The writer is bound to this stream for its lifetime, spilling only
+		// replaces the target behind it.
+		dataOutStream = new DataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				target.write(b);
+				bytes++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				target.write(b, off, len);
+				bytes += len;
+			}
+
+			@Override
+			public void flush() throws IOException {
+				target.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				target.close();
+			}
+		});
+		writer = new CompactChangeWriter(new DataOutputStoreWriter(dataOutStream));
+		writing = true;
+		count = 0;
+		bytes = 0;
+	}
+
+
+	/**
+	 * Adds a change to the spool.
+	 *
+	 * @param change
+	 *            The change to be stored.
+	 */
+	public void add(ChangeContainer change) {
+		if (!writing) {
+			throw new OsmosisRuntimeException("No changes can be added once iteration has started.");
+		}
+
+		writer.writeObject(change);
+		count++;
+
+		if (file == null && memory.size() > memoryLimit) {
+			spill();
+		}
+	}
+
+
+	private void spill() {
+		try {
+			file = File.createTempFile(storageFilePrefix, null);
+			OutputStream fileOutStream = new BufferedOutputStream(new FileOutputStream(file), 65536);
+
+			dataOutStream.flush();
+			memory.writeTo(fileOutStream);
+			target = fileOutStream;
+			memory = null;
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to create the spool file " + file + ".", e);
+		}
+
+		LOG.fine("Spool exceeded " + memoryLimit + " bytes after " + count + " changes, continuing in " + file
+				+ ".");
+	}
+
+
+	/**
+	 * Indicates if the changes have been moved to a temporary file.
+	 *
+	 * @return True if the memory limit was exceeded.
+	 */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+
+	/**
+	 * Returns the stored changes in the order they were added. No further
+	 * changes may be added once iteration has started.
+	 *
+	 * @return The change iterator, it must be released.
+	 */
+	public ReleasableIterator<ChangeContainer> iterate() {
+		InputStream inStream;
+		DataInputStream dataInStream;
+
+		try {
+			if (writing) {
+				dataOutStream.close();
+				writing = false;
+			}
+
+			if (file != null) {
+				inStream = new BufferedInputStream(new FileInputStream(file), 65536);
+			} else {
+				inStream = memory.toInputStream();
+			}
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to read the spool file " + file + ".", e);
+		}
+
+		dataInStream = new DataInputStream(inStream);
+		return new ObjectStreamIterator<ChangeContainer>(dataInStream,
+				new CompactChangeReader(new DataInputStoreReader(dataInStream)));
+	}
+
+
+	/**
+	 * Returns the number of stored changes.
+	 *
+	 * @return The change count.
+	 */
+	public long size() {
+		return count;
+	}
+
+
+	/**
+	 * Returns the number of encoded bytes of the stored changes.
+	 *
+	 * @return The byte count.
+	 */
+	public long getByteCount() {
+		return bytes;
+	}
+
+
+	/**
+	 * Returns the number of encoded bytes moved to the temporary file, which
+	 * once spilled holds every change.
+	 *
+	 * @return The byte count, zero if the spool is held in memory.
+	 */
+	public long getSpilledByteCount() {
+		return file != null ? bytes : 0;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		if (writing) {
+			try {
+				dataOutStream.close();
+			} catch (IOException e) {
+				// We cannot throw an exception within a release method.
+				LOG.log(Level.WARNING, "Unable to close the spool file " + file + ".", e);
+			}
+			writing = false;
+		}
+
+		memory = null;
+		if (file != null) {
+			if (!file.delete()) {
+				LOG.warning("Unable to delete the spool file " + file + ".");
+			}
+			file = null;
+		}
+	}
+
+
+	/**
+	 * Exposes the buffer for reading without copying it.
+	 */
+	private static class MemoryBuffer extends ByteArrayOutputStream {
+
+		MemoryBuffer() {
+			super(8192);
+		}
+
+
+		public InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
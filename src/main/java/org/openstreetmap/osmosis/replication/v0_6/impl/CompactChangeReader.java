@@ -0,0 +1,279 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.store.ObjectReader;
+import org.openstreetmap.osmosis.core.store.StoreReader;
+import org.openstreetmap.osmosis.core.store.Storeable;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+
+/**
+ * Reads changes written by {@link CompactChangeWriter}. The string and user
+ * tables are rebuilt while reading, so a reader must see the stream from the
+ * start of the writer that wrote it.
+ */
+public class CompactChangeReader implements ObjectReader {
+
+	private static final EntityType[] ENTITY_TYPES = EntityType.values();
+	private static final ChangeAction[] CHANGE_ACTIONS = ChangeAction.values();
+
+	private StoreReader storeReader;
+	private byte[] buffer;
+	private int position;
+	private List<String> strings;
+	private List<OsmUser> users;
+	private long lastId;
+	private long lastChangesetId;
+	private long lastTimestamp;
+	private int lastLatitude;
+	private int lastLongitude;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param storeReader
+	 *            The store holding the encoded changes.
+	 */
+	public CompactChangeReader(StoreReader storeReader) {
+		this.storeReader = storeReader;
+		buffer = new byte[256];
+		strings = new ArrayList<String>();
+		users = new ArrayList<OsmUser>();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Storeable readObject() {
+		int header;
+		long id;
+		int version;
+		Date timestamp;
+		long changesetId;
+		OsmUser user;
+		int tagCount;
+		List<Tag> tags;
+		CommonEntityData entityData;
+		EntityContainer entityContainer;
+		Entity entity;
+
+		fill();
+
+		header = readByte();
+		id = lastId + readSigned();
+		lastId = id;
+		version = (int) readSigned();
+		timestamp = null;
+		if ((header & CompactChangeWriter.FLAG_TIMESTAMP) != 0) {
+			lastTimestamp += readSigned();
+			timestamp = new Date(lastTimestamp);
+		}
+		changesetId = lastChangesetId + readSigned();
+		lastChangesetId = changesetId;
+		user = readUser();
+
+		tagCount = (int) readUnsigned();
+		tags = new ArrayList<Tag>(tagCount);
+		for (int i = 0; i < tagCount; i++) {
+			tags.add(new Tag(readString(), readString()));
+		}
+		entityData = new CommonEntityData(id, version, timestamp, user, changesetId, tags);
+
+		switch (ENTITY_TYPES[header & 0x3]) {
+		case Node:
+			entity = readNode(entityData, (header & CompactChangeWriter.FLAG_RAW_COORDINATES) != 0);
+			entityContainer = new NodeContainer((Node) entity);
+			break;
+		case Way:
+			entity = readWay(entityData);
+			entityContainer = new WayContainer((Way) entity);
+			break;
+		case Relation:
+			entity = readRelation(entityData);
+			entityContainer = new RelationContainer((Relation) entity);
+			break;
+		default:
+			throw new OsmosisRuntimeException("Unexpected entity type in header " + header + ".");
+		}
+
+		// Meta tags follow the entity specific fields.
+		if ((header & CompactChangeWriter.FLAG_META_TAGS) != 0) {
+			int metaTagCount = (int) readUnsigned();
+			for (int i = 0; i < metaTagCount; i++) {
+				entity.getMetaTags().put(readString(), readString());
+			}
+		}
+
+		return new ChangeContainer(entityContainer, CHANGE_ACTIONS[(header >> 2) & 0x3]);
+	}
+
+
+	private Node readNode(CommonEntityData entityData, boolean rawCoordinates) {
+		double latitude;
+		double longitude;
+
+		if (rawCoordinates) {
+			latitude = Double.longBitsToDouble(readFixed());
+			longitude = Double.longBitsToDouble(readFixed());
+		} else {
+			lastLatitude += (int) readSigned();
+			lastLongitude += (int) readSigned();
+			latitude = FixedPrecisionCoordinateConvertor.convertToDouble(lastLatitude);
+			longitude = FixedPrecisionCoordinateConvertor.convertToDouble(lastLongitude);
+		}
+
+		return new Node(entityData, latitude, longitude);
+	}
+
+
+	private Way readWay(CommonEntityData entityData) {
+		int count = (int) readUnsigned();
+		List<WayNode> wayNodes = new ArrayList<WayNode>(count);
+		long nodeId = 0;
+
+		for (int i = 0; i < count; i++) {
+			nodeId += readSigned();
+			wayNodes.add(new WayNode(nodeId));
+		}
+
+		return new Way(entityData, wayNodes);
+	}
+
+
+	private Relation readRelation(CommonEntityData entityData) {
+		int count = (int) readUnsigned();
+		List<RelationMember> members = new ArrayList<RelationMember>(count);
+		long memberId = 0;
+
+		for (int i = 0; i < count; i++) {
+			EntityType memberType = ENTITY_TYPES[readByte()];
+			memberId += readSigned();
+			members.add(new RelationMember(memberId, memberType, readString()));
+		}
+
+		return new Relation(entityData, members);
+	}
+
+
+	private OsmUser readUser() {
+		int index = (int) readUnsigned();
+
+		if (index > 0) {
+			return users.get(index - 1);
+		} else {
+			int userId = (int) readSigned();
+			String name = readString();
+			OsmUser user = OsmUser.NONE.getId() == userId && OsmUser.NONE.getName().equals(name) ? OsmUser.NONE
+					: new OsmUser(userId, name);
+
+			if (users.size() < CompactChangeWriter.MAX_TABLE_SIZE) {
+				users.add(user);
+			}
+			return user;
+		}
+	}
+
+
+	private String readString() {
+		int index = (int) readUnsigned();
+
+		if (index > 0) {
+			return strings.get(index - 1);
+		} else {
+			int length = (int) readUnsigned();
+			String value = new String(buffer, position, length, CompactChangeWriter.UTF8);
+
+			position += length;
+			if (strings.size() < CompactChangeWriter.MAX_TABLE_SIZE
+					&& value.length() <= CompactChangeWriter.MAX_TABLE_STRING_LENGTH) {
+				strings.add(value);
+			}
+			return value;
+		}
+	}
+
+
+	private int readByte() {
+		return buffer[position++] & 0xFF;
+	}
+
+
+	private long readFixed() {
+		long value = 0;
+
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (buffer[position++] & 0xFF);
+		}
+
+		return value;
+	}
+
+
+	private long readUnsigned() {
+		long value = 0;
+		int shift = 0;
+		int b;
+
+		do {
+			b = buffer[position++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+
+
+	private long readSigned() {
+		long value = readUnsigned();
+
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+
+	/**
+	 * Reads the next encoded change from the store into the buffer.
+	 */
+	private void fill() {
+		int length = storeReader.readInteger();
+		int i;
+
+		if (length > buffer.length) {
+			buffer = new byte[Math.max(buffer.length * 2, length)];
+		}
+		for (i = 0; i + 8 <= length; i += 8) {
+			long value = storeReader.readLong();
+			for (int j = 7; j >= 0; j--) {
+				buffer[i + j] = (byte) value;
+				value >>>= 8;
+			}
+		}
+		for (; i < length; i++) {
+			buffer[i] = storeReader.readByte();
+		}
+		position = 0;
+	}
+}
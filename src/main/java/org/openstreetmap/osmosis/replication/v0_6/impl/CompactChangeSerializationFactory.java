@@ -0,0 +1,35 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import org.openstreetmap.osmosis.core.store.ObjectReader;
+import org.openstreetmap.osmosis.core.store.ObjectSerializationFactory;
+import org.openstreetmap.osmosis.core.store.ObjectWriter;
+import org.openstreetmap.osmosis.core.store.StoreClassRegister;
+import org.openstreetmap.osmosis.core.store.StoreReader;
+import org.openstreetmap.osmosis.core.store.StoreWriter;
+
+/**
+ * Serializes changes in a compact format for temporary stores holding nothing
+ * but changes. It replaces the generic serialization of
+ * {@link org.openstreetmap.osmosis.core.store.SingleClassObjectSerializationFactory}
+ * which writes every field and string in full.
+ */
+public class CompactChangeSerializationFactory implements ObjectSerializationFactory {
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ObjectReader createObjectReader(StoreReader storeReader, StoreClassRegister storeClassRegister) {
+		return new CompactChangeReader(storeReader);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ObjectWriter createObjectWriter(StoreWriter storeWriter, StoreClassRegister storeClassRegister) {
+		return new CompactChangeWriter(storeWriter);
+	}
+}
@@ -0,0 +1,146 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Comparator;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.sort.common.FileBasedSort;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSinkChangeSource;
+
+/**
+ * Sorts changes like {@link org.openstreetmap.osmosis.core.sort.v0_6.ChangeSorter}
+ * but spills them to disk in the compact change format. The sorted changes
+ * are passed on in batches.
+ * <p>
+ * Writing each sorted run and merging the runs are recorded as flight
+ * recorder events.
+ */
+public class CompactChangeSorter implements ChangeSinkChangeSource, BatchChangeSink {
+
+	/**
+	 * The number of changes after which the file based sort sorts its buffer
+	 * and writes it out as a run.
+	 */
+	private static final int RUN_LENGTH = 16384;
+
+	private FileBasedSort<ChangeContainer> fileBasedSort;
+	private ChangeSink changeSink;
+	private long count;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param comparator
+	 *            The comparator to use for sorting.
+	 * @param useCompression
+	 *            If true, the spill files are also gzip compressed.
+	 */
+	public CompactChangeSorter(Comparator<ChangeContainer> comparator, boolean useCompression) {
+		fileBasedSort = new FileBasedSort<ChangeContainer>(new CompactChangeSerializationFactory(), comparator,
+				useCompression);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void initialize(Map<String, Object> metaData) {
+		changeSink.initialize(metaData);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer change) {
+		add(change);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer[] changes, int count) {
+		for (int i = 0; i < count; i++) {
+			add(changes[i]);
+		}
+	}
+
+
+	private void add(ChangeContainer change) {
+		ChangeSpillEvent event;
+
+		count++;
+		if (count % RUN_LENGTH != 0) {
+			fileBasedSort.add(change);
+			return;
+		}
+
+		// This change fills the buffer, adding it writes the run.
+		event = new ChangeSpillEvent(count / RUN_LENGTH, RUN_LENGTH);
+		fileBasedSort.add(change);
+		event.commit();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setChangeSink(ChangeSink changeSink) {
+		this.changeSink = changeSink;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void complete() {
+		ChangeMergeEvent event = new ChangeMergeEvent(count, (count + RUN_LENGTH - 1) / RUN_LENGTH);
+		ReleasableIterator<ChangeContainer> iterator = fileBasedSort.iterate();
+		ChangeBatcher batcher = new ChangeBatcher(changeSink);
+		boolean timed;
+
+		event.end();
+		timed = event.isEnabled();
+		try {
+			// The runs are merged as the changes are read, the time the
+			// output takes is left out.
+			long start = timed ? System.nanoTime() : 0;
+			while (iterator.hasNext()) {
+				ChangeContainer change = iterator.next();
+
+				if (timed) {
+					event.addReadTime(System.nanoTime() - start);
+					batcher.add(change);
+					start = System.nanoTime();
+				} else {
+					batcher.add(change);
+				}
+			}
+			event.commit();
+			batcher.flush();
+			changeSink.complete();
+		} finally {
+			iterator.release();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		fileBasedSort.release();
+		changeSink.release();
+	}
+}
@@ -0,0 +1,293 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.store.ObjectWriter;
+import org.openstreetmap.osmosis.core.store.StoreWriter;
+import org.openstreetmap.osmosis.core.store.Storeable;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+
+/**
+ * Writes changes in the compact format read by {@link CompactChangeReader}.
+ * Each change is encoded into a buffer which is then passed to the store in
+ * as few calls as possible.
+ * <p>
+ * Ids, changeset ids, timestamps and coordinates are written as varint
+ * deltas of the previous change, way nodes and members as deltas within
+ * their entity. Short strings and users are written once per stream and
+ * referenced by their index afterwards.
+ */
+public class CompactChangeWriter implements ObjectWriter {
+
+	/**
+	 * The maximum number of strings and of users remembered per stream.
+	 */
+	static final int MAX_TABLE_SIZE = 1 << 16;
+
+	/**
+	 * Longer strings are always written in full, they rarely repeat.
+	 */
+	static final int MAX_TABLE_STRING_LENGTH = 64;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int FLAG_TIMESTAMP = 1 << 4;
+	static final int FLAG_META_TAGS = 1 << 5;
+	static final int FLAG_RAW_COORDINATES = 1 << 6;
+
+	private StoreWriter storeWriter;
+	private byte[] buffer;
+	private int position;
+	private Map<String, Integer> strings;
+	private Map<OsmUser, Integer> users;
+	private long lastId;
+	private long lastChangesetId;
+	private long lastTimestamp;
+	private int lastLatitude;
+	private int lastLongitude;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param storeWriter
+	 *            The store receiving the encoded changes.
+	 */
+	public CompactChangeWriter(StoreWriter storeWriter) {
+		this.storeWriter = storeWriter;
+		buffer = new byte[256];
+		strings = new HashMap<String, Integer>();
+		users = new HashMap<OsmUser, Integer>();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeObject(Storeable value) {
+		ChangeContainer change;
+		Entity entity;
+		int header;
+
+		if (!(value instanceof ChangeContainer)) {
+			throw new OsmosisRuntimeException("Only changes can be written, found " + value.getClass().getName()
+					+ ".");
+		}
+		change = (ChangeContainer) value;
+		entity = change.getEntityContainer().getEntity();
+
+		position = 0;
+
+		header = entity.getType().ordinal() | (change.getAction().ordinal() << 2);
+		if (entity.getTimestamp() != null) {
+			header |= FLAG_TIMESTAMP;
+		}
+		if (!entity.getMetaTags().isEmpty()) {
+			header |= FLAG_META_TAGS;
+		}
+		if (entity instanceof Node && !isFixedPrecision((Node) entity)) {
+			header |= FLAG_RAW_COORDINATES;
+		}
+		writeByte(header);
+
+		writeSigned(entity.getId() - lastId);
+		lastId = entity.getId();
+		writeSigned(entity.getVersion());
+		if (entity.getTimestamp() != null) {
+			long timestamp = entity.getTimestamp().getTime();
+			writeSigned(timestamp - lastTimestamp);
+			lastTimestamp = timestamp;
+		}
+		writeSigned(entity.getChangesetId() - lastChangesetId);
+		lastChangesetId = entity.getChangesetId();
+		writeUser(entity.getUser());
+
+		writeUnsigned(entity.getTags().size());
+		for (Tag tag : entity.getTags()) {
+			writeString(tag.getKey());
+			writeString(tag.getValue());
+		}
+
+		if (entity instanceof Node) {
+			writeNode((Node) entity, (header & FLAG_RAW_COORDINATES) != 0);
+		} else if (entity instanceof Way) {
+			writeWay((Way) entity);
+		} else if (entity instanceof Relation) {
+			writeRelation((Relation) entity);
+		} else {
+			throw new OsmosisRuntimeException("Entity type " + entity.getType() + " is not supported.");
+		}
+
+		if ((header & FLAG_META_TAGS) != 0) {
+			writeUnsigned(entity.getMetaTags().size());
+			for (Map.Entry<String, Object> metaTag : entity.getMetaTags().entrySet()) {
+				writeString(metaTag.getKey());
+				writeString(metaTag.getValue().toString());
+			}
+		}
+
+		flush();
+	}
+
+
+	private boolean isFixedPrecision(Node node) {
+		return FixedPrecisionCoordinateConvertor.convertToDouble(FixedPrecisionCoordinateConvertor
+				.convertToFixed(node.getLatitude())) == node.getLatitude()
+				&& FixedPrecisionCoordinateConvertor.convertToDouble(FixedPrecisionCoordinateConvertor
+						.convertToFixed(node.getLongitude())) == node.getLongitude();
+	}
+
+
+	private void writeNode(Node node, boolean rawCoordinates) {
+		if (rawCoordinates) {
+			writeFixed(Double.doubleToLongBits(node.getLatitude()));
+			writeFixed(Double.doubleToLongBits(node.getLongitude()));
+		} else {
+			int latitude = FixedPrecisionCoordinateConvertor.convertToFixed(node.getLatitude());
+			int longitude = FixedPrecisionCoordinateConvertor.convertToFixed(node.getLongitude());
+
+			writeSigned((long) latitude - lastLatitude);
+			writeSigned((long) longitude - lastLongitude);
+			lastLatitude = latitude;
+			lastLongitude = longitude;
+		}
+	}
+
+
+	private void writeWay(Way way) {
+		List<WayNode> wayNodes = way.getWayNodes();
+		long lastNodeId = 0;
+
+		writeUnsigned(wayNodes.size());
+		for (WayNode wayNode : wayNodes) {
+			writeSigned(wayNode.getNodeId() - lastNodeId);
+			lastNodeId = wayNode.getNodeId();
+		}
+	}
+
+
+	private void writeRelation(Relation relation) {
+		List<RelationMember> members = relation.getMembers();
+		long lastMemberId = 0;
+
+		writeUnsigned(members.size());
+		for (RelationMember member : members) {
+			writeByte(member.getMemberType().ordinal());
+			writeSigned(member.getMemberId() - lastMemberId);
+			lastMemberId = member.getMemberId();
+			writeString(member.getMemberRole());
+		}
+	}
+
+
+	private void writeUser(OsmUser user) {
+		Integer index = users.get(user);
+
+		if (index != null) {
+			writeUnsigned(index + 1);
+		} else {
+			writeUnsigned(0);
+			writeSigned(user.getId());
+			writeString(user.getName());
+			if (users.size() < MAX_TABLE_SIZE) {
+				users.put(user, users.size());
+			}
+		}
+	}
+
+
+	private void writeString(String value) {
+		Integer index = strings.get(value);
+
+		if (index != null) {
+			writeUnsigned(index + 1);
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+
+			writeUnsigned(0);
+			writeUnsigned(bytes.length);
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+
+			if (strings.size() < MAX_TABLE_SIZE && value.length() <= MAX_TABLE_STRING_LENGTH) {
+				strings.put(value, strings.size());
+			}
+		}
+	}
+
+
+	private void ensureCapacity(int length) {
+		if (position + length > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + length)];
+			System.arraycopy(buffer, 0, newBuffer, 0, position);
+			buffer = newBuffer;
+		}
+	}
+
+
+	private void writeByte(int value) {
+		ensureCapacity(1);
+		buffer[position++] = (byte) value;
+	}
+
+
+	private void writeFixed(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >>> shift);
+		}
+	}
+
+
+	private void writeUnsigned(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+
+	private void writeSigned(long value) {
+		// Zig-zag encoding keeps small negative deltas short.
+		writeUnsigned((value << 1) ^ (value >> 63));
+	}
+
+
+	/**
+	 * Passes the encoded change to the store, eight bytes per call where
+	 * possible.
+	 */
+	private void flush() {
+		int i;
+
+		storeWriter.writeInteger(position);
+		for (i = 0; i + 8 <= position; i += 8) {
+			long value = 0;
+			for (int j = 0; j < 8; j++) {
+				value = (value << 8) | (buffer[i + j] & 0xFF);
+			}
+			storeWriter.writeLong(value);
+		}
+		for (; i < position; i++) {
+			storeWriter.writeByte(buffer[i]);
+		}
+	}
+}
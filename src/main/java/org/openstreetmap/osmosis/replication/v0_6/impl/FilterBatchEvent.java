@@ -0,0 +1,164 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+
+/**
+ * A flight recorder event covering a batch of changes processed by an area
+ * filter, from the first change of the batch to the last.
+ */
+public class FilterBatchEvent {
+
+	/**
+	 * The number of changes after which a batch is committed.
+	 */
+	public static final int BATCH_SIZE = 10000;
+
+	private Object event; // null if not recorded
+	private int nodes;
+	private int ways;
+	private int relations;
+	private long emitted;
+
+
+	/**
+	 * Creates and begins a new instance.
+	 *
+	 * @param filter
+	 *            Describes the filter.
+	 * @param regions
+	 *            The number of regions filtered into.
+	 */
+	public FilterBatchEvent(String filter, int regions) {
+		if (FlightEvents.isAvailable()) {
+			event = Recorded.begin(filter, regions);
+		}
+	}
+
+
+	/**
+	 * Counts a change of the batch.
+	 *
+	 * @param type
+	 *            The entity type of the change.
+	 * @return True once the batch is full.
+	 */
+	public boolean addChange(EntityType type) {
+		switch (type) {
+		case Node:
+			nodes++;
+			break;
+		case Way:
+			ways++;
+			break;
+		case Relation:
+			relations++;
+			break;
+		default:
+			break;
+		}
+
+		return nodes + ways + relations >= BATCH_SIZE;
+	}
+
+
+	/**
+	 * Counts the changes of a batch of changes processed at once.
+	 *
+	 * @param nodeCount
+	 *            The number of node changes.
+	 * @param wayCount
+	 *            The number of way changes.
+	 * @param relationCount
+	 *            The number of relation changes.
+	 * @return True once the batch is full.
+	 */
+	public boolean addChanges(int nodeCount, int wayCount, int relationCount) {
+		nodes += nodeCount;
+		ways += wayCount;
+		relations += relationCount;
+
+		return nodes + ways + relations >= BATCH_SIZE;
+	}
+
+
+	/**
+	 * Counts a change passed on by the filter.
+	 *
+	 * @param count
+	 *            The number of sinks the change was passed to.
+	 */
+	public void addEmitted(int count) {
+		emitted += count;
+	}
+
+
+	/**
+	 * Ends the event and records it.
+	 */
+	public void commit() {
+		if (event != null) {
+			Recorded.commit(event, nodes, ways, relations, emitted);
+		}
+	}
+
+
+	/**
+	 * The recorded event, only loaded if the flight recorder is available.
+	 */
+	@Name("org.openstreetmap.osmosis.replication.FilterBatch")
+	@Label("Filter Batch")
+	@Category({"Osmosis", "Replication"})
+	@Description("A batch of changes classified by an area filter.")
+	@StackTrace(false)
+	static class Recorded extends Event {
+
+		@Label("Filter")
+		String filter;
+
+		@Label("Regions")
+		int regions;
+
+		@Label("Nodes")
+		int nodes;
+
+		@Label("Ways")
+		int ways;
+
+		@Label("Relations")
+		int relations;
+
+		@Label("Emitted")
+		@Description("Changes passed on immediately, not counting those held back.")
+		long emitted;
+
+
+		static Object begin(String filter, int regions) {
+			Recorded event = new Recorded();
+
+			event.filter = filter;
+			event.regions = regions;
+			event.begin();
+
+			return event;
+		}
+
+
+		static void commit(Object begun, int nodes, int ways, int relations, long emitted) {
+			Recorded event = (Recorded) begun;
+
+			event.nodes = nodes;
+			event.ways = ways;
+			event.relations = relations;
+			event.emitted = emitted;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event covering an area filter sending held back changes
+ * to its output at the end of the stream.
+ */
+public class FilterPumpEvent {
+
+	private Object event; // null if not recorded
+	private long read;
+	private long emitted;
+
+
+	/**
+	 * Creates and begins a new instance.
+	 *
+	 * @param filter
+	 *            Describes the filter.
+	 * @param phase
+	 *            The phase of the pump.
+	 */
+	public FilterPumpEvent(String filter, String phase) {
+		if (FlightEvents.isAvailable()) {
+			event = Recorded.begin(filter, phase);
+		}
+	}
+
+
+	/**
+	 * Counts changes read back.
+	 *
+	 * @param count
+	 *            The number of changes.
+	 */
+	public void addRead(long count) {
+		read += count;
+	}
+
+
+	/**
+	 * Counts a change sent to the output.
+	 *
+	 * @param count
+	 *            The number of sinks the change was passed to.
+	 */
+	public void addEmitted(int count) {
+		emitted += count;
+	}
+
+
+	/**
+	 * Ends the event and records it.
+	 */
+	public void commit() {
+		if (event != null) {
+			Recorded.commit(event, read, emitted);
+		}
+	}
+
+
+	/**
+	 * The recorded event, only loaded if the flight recorder is available.
+	 */
+	@Name("org.openstreetmap.osmosis.replication.FilterPump")
+	@Label("Filter Pump")
+	@Category({"Osmosis", "Replication"})
+	@Description("Held back changes read back and sent to the output of an area filter.")
+	@StackTrace(false)
+	static class Recorded extends Event {
+
+		@Label("Filter")
+		String filter;
+
+		@Label("Phase")
+		@Description("The entity type pumped, or all for a filter holding every type in one spool.")
+		String phase;
+
+		@Label("Read")
+		long read;
+
+		@Label("Emitted")
+		long emitted;
+
+
+		static Object begin(String filter, String phase) {
+			Recorded event = new Recorded();
+
+			event.filter = filter;
+			event.phase = phase;
+			event.begin();
+
+			return event;
+		}
+
+
+		static void commit(Object begun, long read, long emitted) {
+			Recorded event = (Recorded) begun;
+
+			event.read = read;
+			event.emitted = emitted;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+/**
+ * Tells if flight recorder events can be recorded. They need the jdk.jfr
+ * module, which older and trimmed down runtimes lack.
+ * <p>
+ * The event classes of this package only wrap a nested jdk.jfr event class.
+ * The nested class is only loaded if the module is available, otherwise the
+ * events record nothing.
+ */
+public final class FlightEvents {
+
+	private static final boolean AVAILABLE = checkAvailable();
+
+
+	private FlightEvents() {
+		// Static methods only.
+	}
+
+
+	private static boolean checkAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Indicates if the jdk.jfr module is available.
+	 *
+	 * @return True if events can be recorded.
+	 */
+	public static boolean isAvailable() {
+		return AVAILABLE;
+	}
+}
@@ -0,0 +1,228 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.core.util.PropertiesPersister;
+import org.openstreetmap.osmosis.replication.common.ReplicationState;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter;
+
+/**
+ * Keeps the input of the open interval on disk so that a restarted spliter
+ * can resume it without downloading its replication files again. Changes are
+ * appended to a segment file which is closed at every checkpoint, the
+ * checkpoint state then records the closed segments along with the open
+ * interval and the last replication file they contain.
+ * <p>
+ * Regions are only written when an interval is saved, so replaying the
+ * segments rebuilds the filter state of the interval exactly.
+ */
+public class IntervalCheckpoint implements Releasable {
+
+	private static final Logger LOG = Logger.getLogger(IntervalCheckpoint.class.getName());
+
+	private static final String STATE_FILE = "checkpoint.txt";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".osc.gz";
+	private static final String KEY_SEGMENTS = "segments";
+	private static final String KEY_INTERVAL_PREFIX = "interval.";
+
+	private File directory;
+	private PropertiesPersister statePersister;
+	private int segmentCount;
+	private XmlChangeWriter segmentWriter;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param directory
+	 *            The directory holding the checkpoint, created when needed.
+	 */
+	public IntervalCheckpoint(File directory) {
+		this.directory = directory;
+		statePersister = new PropertiesPersister(new File(directory, STATE_FILE));
+
+		segmentCount = 0;
+		if (statePersister.exists()) {
+			segmentCount = Integer.parseInt(statePersister.loadMap().get(KEY_SEGMENTS));
+		}
+	}
+
+
+	private File getSegmentFile(int segment) {
+		return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+
+
+	/**
+	 * Indicates if a checkpoint of an open interval exists.
+	 *
+	 * @return True if the checkpoint exists.
+	 */
+	public boolean exists() {
+		return statePersister.exists();
+	}
+
+
+	/**
+	 * Returns the state of the open interval, its sequence number and end
+	 * timestamp.
+	 *
+	 * @return The interval state.
+	 */
+	public ReplicationState getIntervalState() {
+		Map<String, String> stored = statePersister.loadMap();
+		Map<String, String> intervalProperties = new HashMap<String, String>();
+
+		for (Map.Entry<String, String> entry : stored.entrySet()) {
+			if (entry.getKey().startsWith(KEY_INTERVAL_PREFIX)) {
+				intervalProperties.put(entry.getKey().substring(KEY_INTERVAL_PREFIX.length()), entry.getValue());
+			}
+		}
+
+		return new ReplicationState(intervalProperties);
+	}
+
+
+	/**
+	 * Returns the state of the last replication file contained in the
+	 * checkpoint.
+	 *
+	 * @return The replication file state.
+	 */
+	public ReplicationState getDownloadState() {
+		return new ReplicationState(statePersister.loadMap());
+	}
+
+
+	/**
+	 * Returns the sink receiving the changes of the open interval. It remains
+	 * valid until the next checkpoint.
+	 *
+	 * @return The segment sink.
+	 */
+	public ChangeSink getSegmentSink() {
+		if (segmentWriter == null) {
+			if (!directory.exists() && !directory.mkdirs()) {
+				throw new OsmosisRuntimeException("Unable to create directory " + directory + ".");
+			}
+			segmentWriter = new XmlChangeWriter(getSegmentFile(segmentCount + 1), CompressionMethod.GZip);
+		}
+
+		return segmentWriter;
+	}
+
+
+	/**
+	 * Closes the current segment and records it in the checkpoint state.
+	 *
+	 * @param intervalState
+	 *            The state of the open interval.
+	 * @param downloadState
+	 *            The state of the last replication file written to the
+	 *            segments.
+	 */
+	public void checkpoint(ReplicationState intervalState, ReplicationState downloadState) {
+		Map<String, String> properties;
+
+		if (segmentWriter != null) {
+			segmentWriter.complete();
+			segmentWriter.release();
+			segmentWriter = null;
+			segmentCount++;
+		}
+
+		properties = downloadState.store();
+		for (Map.Entry<String, String> entry : intervalState.store().entrySet()) {
+			properties.put(KEY_INTERVAL_PREFIX + entry.getKey(), entry.getValue());
+		}
+		properties.put(KEY_SEGMENTS, Integer.toString(segmentCount));
+
+		// The state is replaced atomically, a segment only counts once it is
+		// listed there.
+		statePersister.store(properties);
+
+		LOG.finer("Checkpointed interval " + intervalState.getSequenceNumber() + " at replication file "
+				+ downloadState.getSequenceNumber() + ".");
+	}
+
+
+	/**
+	 * Sends the changes of all checkpointed segments to a sink. The sink is
+	 * neither initialized nor completed.
+	 *
+	 * @param sink
+	 *            The sink receiving the changes.
+	 */
+	public void replay(final ChangeSink sink) {
+		for (int i = 1; i <= segmentCount; i++) {
+			XmlChangeReader reader = new XmlChangeReader(getSegmentFile(i), true, CompressionMethod.GZip);
+
+			reader.setChangeSink(new ChangeSink() {
+				@Override
+				public void initialize(Map<String, Object> metaData) {
+					// Suppress the call.
+				}
+
+				@Override
+				public void process(ChangeContainer change) {
+					sink.process(change);
+				}
+
+				@Override
+				public void complete() {
+					// Suppress the call.
+				}
+
+				@Override
+				public void release() {
+					// Suppress the call.
+				}
+			});
+			reader.run();
+		}
+	}
+
+
+	/**
+	 * Removes the checkpoint once its interval has been saved.
+	 */
+	public void clear() {
+		release();
+
+		// Remove the state first, segments without it are ignored.
+		File stateFile = new File(directory, STATE_FILE);
+		if (stateFile.exists() && !stateFile.delete()) {
+			throw new OsmosisRuntimeException("Unable to delete checkpoint " + stateFile + ".");
+		}
+		for (int i = 1; i <= segmentCount + 1; i++) {
+			File segmentFile = getSegmentFile(i);
+			if (segmentFile.exists() && !segmentFile.delete()) {
+				LOG.warning("Unable to delete checkpoint segment " + segmentFile + ".");
+			}
+		}
+		segmentCount = 0;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		if (segmentWriter != null) {
+			segmentWriter.release();
+			segmentWriter = null;
+		}
+	}
+}
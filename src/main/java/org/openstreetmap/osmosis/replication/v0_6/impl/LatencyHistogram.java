@@ -0,0 +1,155 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of non-negative values in the style of HdrHistogram.
+ * Values below 64 are counted exactly, larger values in 32 linear buckets per
+ * power of two, so any value is reported within about 3% of its true size.
+ * The bucket array only grows as far as the largest value recorded, keeping
+ * histograms of small latencies small.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+	private int[] counts;
+	private long count;
+	private long sum;
+	private long max;
+
+
+	/**
+	 * Creates a new instance.
+	 */
+	public LatencyHistogram() {
+		counts = new int[SUB_BUCKET_COUNT];
+	}
+
+
+	private static int indexOf(long value) {
+		int exponent;
+		int shift;
+
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		exponent = 63 - Long.numberOfLeadingZeros(value);
+		shift = exponent - SUB_BUCKET_BITS + 1;
+
+		return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_HALF
+				+ (int) ((value >>> shift) - SUB_BUCKET_HALF);
+	}
+
+
+	/**
+	 * Returns the largest value counted in a bucket.
+	 */
+	private static long highestValueAt(int index) {
+		int offset;
+		int shift;
+
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		offset = index - SUB_BUCKET_COUNT;
+		shift = offset / SUB_BUCKET_HALF + 1;
+
+		return ((long) (offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF + 1) << shift) - 1;
+	}
+
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            The value, for example a latency in milliseconds.
+	 */
+	public synchronized void record(long value) {
+		int index;
+
+		value = Math.max(0, value);
+		index = indexOf(value);
+		if (index >= counts.length) {
+			counts = Arrays.copyOf(counts, index + SUB_BUCKET_HALF);
+		}
+		counts[index]++;
+		count++;
+		sum += value;
+		max = Math.max(max, value);
+	}
+
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return The value count.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+
+	/**
+	 * Returns the exact sum of the values recorded.
+	 *
+	 * @return The sum.
+	 */
+	public synchronized long getSum() {
+		return sum;
+	}
+
+
+	/**
+	 * Returns the exact largest value recorded.
+	 *
+	 * @return The maximum, 0 if empty.
+	 */
+	public synchronized long getMax() {
+		return max;
+	}
+
+
+	/**
+	 * Returns the value below or at which a percentage of the recorded values
+	 * fall, rounded up to the end of its bucket.
+	 *
+	 * @param percentile
+	 *            The percentage, between 0 and 100.
+	 * @return The value, 0 if empty.
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		long target;
+		long seen;
+
+		if (count == 0) {
+			return 0;
+		}
+
+		target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestValueAt(i), max);
+			}
+		}
+
+		return max;
+	}
+
+
+	/**
+	 * Returns the count, median, 99th percentile and maximum at once.
+	 *
+	 * @return The snapshot.
+	 */
+	public synchronized LatencySnapshot getSnapshot() {
+		return new LatencySnapshot(count, getValueAtPercentile(50), getValueAtPercentile(99), max);
+	}
+}
@@ -0,0 +1,77 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The summary of a {@link LatencyHistogram} at one point in time, in
+ * milliseconds.
+ */
+public class LatencySnapshot {
+
+	private long count;
+	private long p50;
+	private long p99;
+	private long max;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param count
+	 *            The number of values recorded.
+	 * @param p50
+	 *            The median.
+	 * @param p99
+	 *            The 99th percentile.
+	 * @param max
+	 *            The maximum.
+	 */
+	@ConstructorProperties({"count", "p50", "p99", "max"})
+	public LatencySnapshot(long count, long p50, long p99, long max) {
+		this.count = count;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.max = max;
+	}
+
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return The value count.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+
+	/**
+	 * Returns the median.
+	 *
+	 * @return The median.
+	 */
+	public long getP50() {
+		return p50;
+	}
+
+
+	/**
+	 * Returns the 99th percentile.
+	 *
+	 * @return The 99th percentile.
+	 */
+	public long getP99() {
+		return p99;
+	}
+
+
+	/**
+	 * Returns the maximum.
+	 *
+	 * @return The maximum.
+	 */
+	public long getMax() {
+		return max;
+	}
+}
@@ -0,0 +1,343 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+
+/**
+ * A persistent node id to location index held in a memory mapped file. Every
+ * node id owns a fixed eight byte slot at offset id * 8 holding its latitude
+ * and longitude as fixed precision ints. The file is grown as a sparse file
+ * and mapped in segments on first use, so only pages holding written ids
+ * occupy disk space and nothing is held on the heap.
+ * <p>
+ * The sign bit of both stored values is flipped so that the zero bytes of
+ * never written pages read back as "no location".
+ * <p>
+ * Updates are held in memory until {@link #commit()} writes them to the file,
+ * so an interval that fails or is processed again still finds the locations
+ * as of the previous interval. Queries see the pending updates unless they
+ * ask for the committed location.
+ */
+public class NodeLocationStore implements Releasable {
+
+	/**
+	 * The value returned by {@link #get(long)} for nodes without a known
+	 * location.
+	 */
+	public static final long MISSING = 0;
+
+	private static final Logger LOG = Logger.getLogger(NodeLocationStore.class.getName());
+
+	private static final int SLOT_SIZE = 8;
+	private static final int SEGMENT_SHIFT = 24; // 16M nodes, 128MB per segment
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final long SEGMENT_SIZE = (1L << SEGMENT_SHIFT) * SLOT_SIZE;
+	private static final int SIGN_FLIP = 0x80000000;
+	private static final int INITIAL_PENDING_CAPACITY = 1024;
+	private static final long FREE_SLOT = -1; // negative ids are not stored
+
+	private File file;
+	private RandomAccessFile randomFile;
+	private FileChannel channel;
+	private MappedByteBuffer[] segments;
+	private long fileLength;
+	// Open addressing table of the updates since the last commit, a removal
+	// is held as MISSING.
+	private long[] pendingIds;
+	private long[] pendingLocations;
+	private int pendingCount;
+
+
+	/**
+	 * Creates a new instance, opening the index file or creating it if it
+	 * doesn't exist.
+	 *
+	 * @param file
+	 *            The index file.
+	 */
+	public NodeLocationStore(File file) {
+		this.file = file;
+
+		try {
+			randomFile = new RandomAccessFile(file, "rw");
+			channel = randomFile.getChannel();
+			fileLength = channel.size();
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to open node location index " + file + ".", e);
+		}
+
+		segments = new MappedByteBuffer[0];
+		clearPending(INITIAL_PENDING_CAPACITY);
+	}
+
+
+	private void clearPending(int capacity) {
+		pendingIds = new long[capacity];
+		pendingLocations = new long[capacity];
+		Arrays.fill(pendingIds, FREE_SLOT);
+		pendingCount = 0;
+	}
+
+
+	private int pendingSlotOf(long nodeId) {
+		int mask = pendingIds.length - 1;
+		long h = nodeId * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+
+		while (pendingIds[slot] != FREE_SLOT && pendingIds[slot] != nodeId) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+
+	private void putPending(long nodeId, long location) {
+		int slot = pendingSlotOf(nodeId);
+
+		if (pendingIds[slot] == FREE_SLOT) {
+			pendingIds[slot] = nodeId;
+			pendingCount++;
+		}
+		pendingLocations[slot] = location;
+
+		if (pendingCount * 2 > pendingIds.length) {
+			long[] oldIds = pendingIds;
+			long[] oldLocations = pendingLocations;
+
+			clearPending(oldIds.length * 2);
+			for (int i = 0; i < oldIds.length; i++) {
+				if (oldIds[i] != FREE_SLOT) {
+					slot = pendingSlotOf(oldIds[i]);
+					pendingIds[slot] = oldIds[i];
+					pendingLocations[slot] = oldLocations[i];
+					pendingCount++;
+				}
+			}
+		}
+	}
+
+
+	private static long encode(int latitude, int longitude) {
+		// Laid out as the big endian slot is read by getLong.
+		return ((long) (latitude ^ SIGN_FLIP) << 32) | ((longitude ^ SIGN_FLIP) & 0xFFFFFFFFL);
+	}
+
+
+	private MappedByteBuffer getSegment(int segment, boolean create) {
+		if (segment < segments.length && segments[segment] != null) {
+			return segments[segment];
+		}
+
+		// Don't grow the file just to find out that nothing is stored there.
+		if (!create && (long) segment * SEGMENT_SIZE >= fileLength) {
+			return null;
+		}
+
+		if (segment >= segments.length) {
+			segments = Arrays.copyOf(segments, segment + 1);
+		}
+
+		try {
+			// Mapping read-write beyond the end of the file extends it
+			// without allocating the pages in between.
+			segments[segment] = channel.map(FileChannel.MapMode.READ_WRITE,
+					(long) segment * SEGMENT_SIZE, SEGMENT_SIZE);
+			fileLength = channel.size();
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to map segment " + segment + " of node location index "
+					+ file + ".", e);
+		}
+
+		return segments[segment];
+	}
+
+
+	/**
+	 * Stores the location of a node.
+	 *
+	 * @param nodeId
+	 *            The node id.
+	 * @param latitude
+	 *            The latitude in fixed precision.
+	 * @param longitude
+	 *            The longitude in fixed precision.
+	 */
+	public void put(long nodeId, int latitude, int longitude) {
+		if (nodeId < 0) {
+			return;
+		}
+
+		putPending(nodeId, encode(latitude, longitude));
+	}
+
+
+	/**
+	 * Stores the location of a node.
+	 *
+	 * @param nodeId
+	 *            The node id.
+	 * @param latitude
+	 *            The latitude.
+	 * @param longitude
+	 *            The longitude.
+	 */
+	public void put(long nodeId, double latitude, double longitude) {
+		put(nodeId, FixedPrecisionCoordinateConvertor.convertToFixed(latitude),
+				FixedPrecisionCoordinateConvertor.convertToFixed(longitude));
+	}
+
+
+	/**
+	 * Forgets the location of a node.
+	 *
+	 * @param nodeId
+	 *            The node id.
+	 */
+	public void remove(long nodeId) {
+		if (nodeId < 0) {
+			return;
+		}
+
+		putPending(nodeId, MISSING);
+	}
+
+
+	/**
+	 * Returns the location of a node in encoded form. Use
+	 * {@link #getLatitude(long)} and {@link #getLongitude(long)} to decode it.
+	 *
+	 * @param nodeId
+	 *            The node id.
+	 * @return The encoded location, or {@link #MISSING} if it is not known.
+	 */
+	public long get(long nodeId) {
+		int slot;
+
+		if (nodeId < 0) {
+			return MISSING;
+		}
+
+		slot = pendingSlotOf(nodeId);
+		if (pendingIds[slot] != FREE_SLOT) {
+			return pendingLocations[slot];
+		}
+
+		return getCommitted(nodeId);
+	}
+
+
+	/**
+	 * Returns the location of a node as of the last commit, ignoring pending
+	 * updates.
+	 *
+	 * @param nodeId
+	 *            The node id.
+	 * @return The encoded location, or {@link #MISSING} if it is not known.
+	 * @see #get(long)
+	 */
+	public long getCommitted(long nodeId) {
+		MappedByteBuffer segment;
+
+		if (nodeId < 0) {
+			return MISSING;
+		}
+
+		segment = getSegment((int) (nodeId >>> SEGMENT_SHIFT), false);
+		if (segment == null) {
+			return MISSING;
+		}
+
+		return segment.getLong((int) (nodeId & SEGMENT_MASK) * SLOT_SIZE);
+	}
+
+
+	/**
+	 * Decodes the latitude of a location returned by {@link #get(long)}.
+	 *
+	 * @param location
+	 *            The encoded location.
+	 * @return The latitude in fixed precision.
+	 */
+	public static int getLatitude(long location) {
+		// Mapped buffers are big endian, the latitude is the high half.
+		return (int) (location >>> 32) ^ SIGN_FLIP;
+	}
+
+
+	/**
+	 * Decodes the longitude of a location returned by {@link #get(long)}.
+	 *
+	 * @param location
+	 *            The encoded location.
+	 * @return The longitude in fixed precision.
+	 */
+	public static int getLongitude(long location) {
+		return (int) location ^ SIGN_FLIP;
+	}
+
+
+	/**
+	 * Writes the pending updates to the file and the modified pages to disk.
+	 * Only the segments written to are forced, the others hold no modified
+	 * pages.
+	 */
+	public void commit() {
+		BitSet dirtySegments = new BitSet();
+
+		for (int i = 0; i < pendingIds.length; i++) {
+			long nodeId = pendingIds[i];
+			int segmentIndex;
+			MappedByteBuffer segment;
+
+			if (nodeId == FREE_SLOT) {
+				continue;
+			}
+
+			// Removing a location never stored doesn't grow the file.
+			segmentIndex = (int) (nodeId >>> SEGMENT_SHIFT);
+			segment = getSegment(segmentIndex, pendingLocations[i] != MISSING);
+			if (segment != null) {
+				segment.putLong((int) (nodeId & SEGMENT_MASK) * SLOT_SIZE, pendingLocations[i]);
+				dirtySegments.set(segmentIndex);
+			}
+		}
+		clearPending(INITIAL_PENDING_CAPACITY);
+
+		for (int i = dirtySegments.nextSetBit(0); i >= 0; i = dirtySegments.nextSetBit(i + 1)) {
+			segments[i].force();
+		}
+	}
+
+
+	/**
+	 * Closes the file, discarding updates not committed.
+	 */
+	@Override
+	public void release() {
+		if (randomFile != null) {
+			clearPending(INITIAL_PENDING_CAPACITY);
+			segments = new MappedByteBuffer[0];
+			try {
+				randomFile.close();
+			} catch (IOException e) {
+				// We cannot throw an exception within a release method.
+				LOG.log(Level.WARNING, "Unable to close node location index " + file + ".", e);
+			}
+			randomFile = null;
+			channel = null;
+		}
+	}
+}
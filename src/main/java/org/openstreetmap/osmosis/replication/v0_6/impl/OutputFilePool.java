@@ -0,0 +1,340 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.osmosis.xml.common.CompressionActivator;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+
+/**
+ * Bounds the files held open and the memory used by many gzip outputs
+ * written at once. Each output collects its bytes in an append buffer of its
+ * own and only opens its file to drain that buffer. At most a fixed number of
+ * files are open, the least recently drained one is closed to make room and
+ * reopened in append mode when needed again.
+ * <p>
+ * Every time a file is opened, a new gzip member is started. Gzip readers,
+ * including those of osmosis, read the members as one stream. The buffer of
+ * an output is drained once it is full. Once the buffers of all outputs
+ * exceed the buffer limit, the largest buffers are drained until they are
+ * back at half the limit, so memory does not grow with the number of outputs
+ * and small buffers are not drained into tiny gzip members.
+ * <p>
+ * Each output accounts its own buffer. The pool only takes part once an
+ * output has buffered a few kilobytes or drains, writes don't synchronize on
+ * the pool. Outputs may be written from several threads as long as each
+ * output is used by one thread at a time.
+ */
+public class OutputFilePool {
+
+	/**
+	 * The number of files held open by a pool created without a limit.
+	 */
+	public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+	/**
+	 * The buffer limit of a pool created without one, in bytes.
+	 */
+	public static final long DEFAULT_BUFFER_LIMIT = 64L * 1024 * 1024;
+
+	// The size at which an output drains its buffer regardless of the others.
+	private static final int APPEND_BUFFER_SIZE = 65536;
+
+	// The bytes an output buffers before adding them to the pool total.
+	private static final int REPORT_LENGTH = 4096;
+
+	private static final Comparator<PooledOutputStream> LARGEST_FIRST = new Comparator<PooledOutputStream>() {
+		@Override
+		public int compare(PooledOutputStream o1, PooledOutputStream o2) {
+			return o1.sortLength > o2.sortLength ? -1 : (o1.sortLength == o2.sortLength ? 0 : 1);
+		}
+	};
+
+	private int maxOpenFiles;
+	private long bufferLimit;
+	private AtomicLong bufferedBytes; // As reported by the outputs.
+	private AtomicBoolean relieving;
+	private Set<PooledOutputStream> outputs;
+	// In least recently used order.
+	private LinkedHashMap<PooledOutputStream, Boolean> openOutputs;
+	private long reopenCount;
+	private long relieveCount;
+
+
+	/**
+	 * Creates a new instance with the default limits.
+	 */
+	public OutputFilePool() {
+		this(DEFAULT_MAX_OPEN_FILES, DEFAULT_BUFFER_LIMIT);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param maxOpenFiles
+	 *            The number of files held open. Threads draining at the same
+	 *            time may exceed it by one file each.
+	 * @param bufferLimit
+	 *            The number of bytes buffered by all outputs before the
+	 *            largest buffers are drained.
+	 */
+	public OutputFilePool(int maxOpenFiles, long bufferLimit) {
+		this.maxOpenFiles = maxOpenFiles;
+		this.bufferLimit = bufferLimit;
+
+		bufferedBytes = new AtomicLong();
+		relieving = new AtomicBoolean();
+		outputs = new HashSet<PooledOutputStream>();
+		openOutputs = new LinkedHashMap<PooledOutputStream, Boolean>(16, 0.75f, true);
+	}
+
+
+	/**
+	 * Creates an output writing a gzip file. The file is replaced when the
+	 * output drains its buffer for the first time, closing the output drains
+	 * its remaining bytes.
+	 *
+	 * @param file
+	 *            The file to be written.
+	 * @return The output stream.
+	 */
+	public synchronized OutputStream open(File file) {
+		PooledOutputStream output = new PooledOutputStream(file);
+
+		outputs.add(output);
+
+		return output;
+	}
+
+
+	/**
+	 * Returns the number of files currently open.
+	 *
+	 * @return The open file count.
+	 */
+	public synchronized int getOpenFileCount() {
+		return openOutputs.size();
+	}
+
+
+	/**
+	 * Returns the number of times a file closed to make room was opened again.
+	 *
+	 * @return The reopen count.
+	 */
+	public synchronized long getReopenCount() {
+		return reopenCount;
+	}
+
+
+	/**
+	 * Returns the number of times the buffers were drained because they
+	 * exceeded the buffer limit.
+	 *
+	 * @return The count.
+	 */
+	public synchronized long getRelieveCount() {
+		return relieveCount;
+	}
+
+
+	/**
+	 * Returns the number of bytes buffered by all outputs, not counting the
+	 * last few kilobytes of each.
+	 *
+	 * @return The buffered bytes.
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes.get();
+	}
+
+
+	/**
+	 * Drains the largest buffers until they are back at half the limit. Only
+	 * one thread does so at a time, the buffers are drained one by one
+	 * without holding the pool.
+	 */
+	private void relieve() throws IOException {
+		List<PooledOutputStream> candidates;
+
+		if (!relieving.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			synchronized (this) {
+				relieveCount++;
+				candidates = new ArrayList<PooledOutputStream>(outputs);
+			}
+			for (PooledOutputStream candidate : candidates) {
+				candidate.sortLength = candidate.bufferLength;
+			}
+			Collections.sort(candidates, LARGEST_FIRST);
+
+			for (PooledOutputStream candidate : candidates) {
+				if (bufferedBytes.get() <= bufferLimit / 2) {
+					break;
+				}
+				candidate.drain();
+			}
+		} finally {
+			relieving.set(false);
+		}
+	}
+
+
+	/**
+	 * Opens the file of an output if necessary and marks it as busy so that
+	 * it is not closed by another thread while being drained.
+	 */
+	private synchronized OutputStream acquire(PooledOutputStream output) throws IOException {
+		if (output.target == null) {
+			Iterator<PooledOutputStream> candidates = openOutputs.keySet().iterator();
+
+			while (openOutputs.size() >= maxOpenFiles && candidates.hasNext()) {
+				PooledOutputStream candidate = candidates.next();
+
+				if (!candidate.busy) {
+					candidates.remove();
+					candidate.closeTarget();
+				}
+			}
+
+			if (output.created) {
+				reopenCount++;
+			}
+			output.target = new CompressionActivator(CompressionMethod.GZip)
+					.createCompressionOutputStream(new FileOutputStream(output.file, output.created));
+			output.created = true;
+		}
+
+		openOutputs.put(output, Boolean.TRUE);
+		output.busy = true;
+
+		return output.target;
+	}
+
+
+	private synchronized void release(PooledOutputStream output) {
+		output.busy = false;
+	}
+
+
+	private synchronized void close(PooledOutputStream output) throws IOException {
+		outputs.remove(output);
+		if (openOutputs.remove(output) != null) {
+			output.closeTarget();
+		}
+	}
+
+
+	/**
+	 * Buffers the bytes of one file between the times it is open. The buffer
+	 * is guarded by the output, so that the pool may drain it from another
+	 * thread.
+	 */
+	private class PooledOutputStream extends OutputStream {
+		private File file;
+		private ByteArrayOutputStream buffer;
+		private volatile int bufferLength;
+		private int reportedLength; // The part of the buffer in the pool total.
+		private int sortLength; // Used by the relieving thread only.
+		// Guarded by the pool, except while busy.
+		private OutputStream target;
+		private boolean created;
+		private boolean busy;
+
+
+		PooledOutputStream(File file) {
+			this.file = file;
+		}
+
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			boolean overLimit = false;
+
+			synchronized (this) {
+				if (buffer == null) {
+					buffer = new ByteArrayOutputStream(1024);
+				}
+				buffer.write(b, off, len);
+				bufferLength = buffer.size();
+
+				if (bufferLength >= APPEND_BUFFER_SIZE) {
+					drain();
+				} else if (bufferLength - reportedLength >= REPORT_LENGTH) {
+					overLimit = bufferedBytes.addAndGet(bufferLength - reportedLength) > bufferLimit;
+					reportedLength = bufferLength;
+				}
+			}
+
+			// Draining other outputs must not hold this one.
+			if (overLimit) {
+				relieve();
+			}
+		}
+
+
+		synchronized void drain() throws IOException {
+			if (buffer == null) {
+				return;
+			}
+
+			try {
+				buffer.writeTo(acquire(this));
+			} finally {
+				release(this);
+			}
+			bufferedBytes.addAndGet(-reportedLength);
+			reportedLength = 0;
+			bufferLength = 0;
+			// Idle outputs hold no memory.
+			buffer = null;
+		}
+
+
+		private void closeTarget() throws IOException {
+			OutputStream closing = target;
+
+			target = null;
+			closing.close();
+		}
+
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+		}
+
+
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				drain();
+			} finally {
+				OutputFilePool.this.close(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,349 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.openstreetmap.osmosis.core.container.v0_6.EntityContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+import org.openstreetmap.osmosis.core.store.DataInputStoreReader;
+import org.openstreetmap.osmosis.core.store.DataOutputStoreWriter;
+import org.openstreetmap.osmosis.core.store.GenericObjectReader;
+import org.openstreetmap.osmosis.core.store.GenericObjectWriter;
+import org.openstreetmap.osmosis.core.store.StaticStoreClassRegister;
+import org.openstreetmap.osmosis.core.store.StoreClassRegister;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+
+/**
+ * A persistent reverse index from nodes, ways and relations to the ways and
+ * relations referencing them, together with the latest known version of every
+ * way and relation. This allows parents without a change of their own to be
+ * found when one of their members moves.
+ * <p>
+ * Entities are identified by a key combining id and type, see
+ * {@link #key(EntityType, long)}. The parents of a key are held as a sorted
+ * posting list of parent keys, delta and varint encoded. Both the posting
+ * lists and the entity versions live in {@link SortedSegmentStore}s where the
+ * newest value replaces older ones.
+ * <p>
+ * Changes are only recorded by {@link #add(EntityContainer, ChangeAction)};
+ * the posting lists are updated in one batch by {@link #commit()}, so queries
+ * always see the state as of the last commit.
+ */
+public class ParentIndex implements Releasable {
+
+	private static final SortedSegmentStore.ValueMerger NEWEST_WINS = new SortedSegmentStore.ValueMerger() {
+		@Override
+		public byte[] merge(byte[] newer, byte[] older) {
+			return newer;
+		}
+	};
+
+	private static final long[] NO_KEYS = new long[0];
+	private static final byte[] DELETED = new byte[0];
+
+	private SortedSegmentStore parents;
+	private SortedSegmentStore entities;
+	private StoreClassRegister classRegister;
+	private SortedMap<Long, EntityContainer> pending; // null for deletes
+
+
+	/**
+	 * Creates a new instance, opening the index or creating it if it doesn't
+	 * exist.
+	 *
+	 * @param directory
+	 *            The directory holding the index files.
+	 */
+	public ParentIndex(File directory) {
+		parents = new SortedSegmentStore(directory, "parents", NEWEST_WINS);
+		entities = new SortedSegmentStore(directory, "entities", NEWEST_WINS);
+		classRegister = new StaticStoreClassRegister(new Class<?>[] {WayContainer.class, RelationContainer.class});
+		pending = new TreeMap<Long, EntityContainer>();
+	}
+
+
+	/**
+	 * Builds the key identifying an entity in the index.
+	 *
+	 * @param type
+	 *            The entity type.
+	 * @param id
+	 *            The entity id.
+	 * @return The key.
+	 */
+	public static long key(EntityType type, long id) {
+		return (id << 2) | type.ordinal();
+	}
+
+
+	/**
+	 * Extracts the entity type of a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The entity type.
+	 */
+	public static EntityType getType(long key) {
+		return EntityType.values()[(int) (key & 3)];
+	}
+
+
+	/**
+	 * Extracts the entity id of a key.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The entity id.
+	 */
+	public static long getId(long key) {
+		return key >> 2;
+	}
+
+
+	/**
+	 * Records a way or relation change to be applied on the next commit.
+	 * Other entities are ignored.
+	 *
+	 * @param container
+	 *            The changed entity.
+	 * @param action
+	 *            The change action.
+	 */
+	public void add(EntityContainer container, ChangeAction action) {
+		Entity entity = container.getEntity();
+
+		if (entity.getType() == EntityType.Way || entity.getType() == EntityType.Relation) {
+			pending.put(key(entity.getType(), entity.getId()), action == ChangeAction.Delete ? null : container);
+		}
+	}
+
+
+	/**
+	 * Indicates if an entity has a change recorded since the last commit.
+	 *
+	 * @param key
+	 *            The entity key.
+	 * @return True if the entity changed.
+	 */
+	public boolean isChanged(long key) {
+		return pending.containsKey(key);
+	}
+
+
+	/**
+	 * Returns the keys of the ways and relations referencing an entity.
+	 *
+	 * @param key
+	 *            The entity key.
+	 * @return The sorted parent keys.
+	 */
+	public long[] getParents(long key) {
+		byte[] value = parents.get(key);
+
+		return value == null ? NO_KEYS : decodeKeys(value);
+	}
+
+
+	/**
+	 * Returns the latest known version of a way or relation.
+	 *
+	 * @param key
+	 *            The entity key.
+	 * @return The entity, or null if unknown or deleted.
+	 */
+	public EntityContainer getEntity(long key) {
+		byte[] value = entities.get(key);
+
+		if (value == null || value.length == 0) {
+			return null;
+		}
+
+		return (EntityContainer) new GenericObjectReader(new DataInputStoreReader(new DataInputStream(
+				new ByteArrayInputStream(value))), classRegister).readObject();
+	}
+
+
+	/**
+	 * Applies all changes recorded since the last commit to the index.
+	 */
+	public void commit() {
+		Map<Long, long[]> postings;
+		SortedMap<Long, byte[]> entityBatch;
+		SortedMap<Long, byte[]> parentBatch;
+
+		postings = new HashMap<Long, long[]>();
+		entityBatch = new TreeMap<Long, byte[]>();
+
+		for (Map.Entry<Long, EntityContainer> entry : pending.entrySet()) {
+			long parentKey = entry.getKey();
+			long[] oldChildren = getChildren(getEntity(parentKey));
+			long[] newChildren = getChildren(entry.getValue());
+
+			for (long child : oldChildren) {
+				if (Arrays.binarySearch(newChildren, child) < 0) {
+					updatePosting(postings, child, parentKey, false);
+				}
+			}
+			for (long child : newChildren) {
+				if (Arrays.binarySearch(oldChildren, child) < 0) {
+					updatePosting(postings, child, parentKey, true);
+				}
+			}
+
+			entityBatch.put(parentKey, entry.getValue() == null ? DELETED : encodeEntity(entry.getValue()));
+		}
+
+		parentBatch = new TreeMap<Long, byte[]>();
+		for (Map.Entry<Long, long[]> entry : postings.entrySet()) {
+			parentBatch.put(entry.getKey(), encodeKeys(entry.getValue()));
+		}
+
+		// Postings first. If the entity versions are lost to a crash, the
+		// interval is processed again and yields the same postings.
+		parents.write(parentBatch);
+		entities.write(entityBatch);
+		pending.clear();
+	}
+
+
+	private void updatePosting(Map<Long, long[]> postings, long child, long parent, boolean add) {
+		long[] current = postings.get(child);
+		int position;
+
+		if (current == null) {
+			current = getParents(child);
+		}
+
+		position = Arrays.binarySearch(current, parent);
+		if (add && position < 0) {
+			long[] updated = new long[current.length + 1];
+			int insert = -position - 1;
+			System.arraycopy(current, 0, updated, 0, insert);
+			updated[insert] = parent;
+			System.arraycopy(current, insert, updated, insert + 1, current.length - insert);
+			current = updated;
+		} else if (!add && position >= 0) {
+			long[] updated = new long[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, position);
+			System.arraycopy(current, position + 1, updated, position, updated.length - position);
+			current = updated;
+		}
+
+		postings.put(child, current);
+	}
+
+
+	private long[] getChildren(EntityContainer container) {
+		long[] children;
+		int count;
+
+		if (container == null) {
+			return NO_KEYS;
+		}
+
+		if (container instanceof WayContainer) {
+			Way way = ((WayContainer) container).getEntity();
+			children = new long[way.getWayNodes().size()];
+			count = 0;
+			for (WayNode wayNode : way.getWayNodes()) {
+				children[count++] = key(EntityType.Node, wayNode.getNodeId());
+			}
+		} else {
+			Relation relation = ((RelationContainer) container).getEntity();
+			children = new long[relation.getMembers().size()];
+			count = 0;
+			for (RelationMember member : relation.getMembers()) {
+				children[count++] = key(member.getMemberType(), member.getMemberId());
+			}
+		}
+
+		Arrays.sort(children);
+
+		return children;
+	}
+
+
+	private byte[] encodeEntity(EntityContainer container) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		new GenericObjectWriter(new DataOutputStoreWriter(new DataOutputStream(buffer)), classRegister)
+				.writeObject(container);
+
+		return buffer.toByteArray();
+	}
+
+
+	/**
+	 * Encodes sorted keys as the varint encoded differences between
+	 * consecutive keys.
+	 */
+	private static byte[] encodeKeys(long[] keys) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(keys.length * 3);
+		long previous = 0;
+
+		for (long key : keys) {
+			long delta = key - previous;
+			previous = key;
+
+			while ((delta & ~0x7FL) != 0) {
+				buffer.write((int) ((delta & 0x7F) | 0x80));
+				delta >>>= 7;
+			}
+			buffer.write((int) delta);
+		}
+
+		return buffer.toByteArray();
+	}
+
+
+	private static long[] decodeKeys(byte[] value) {
+		long[] keys = new long[value.length];
+		int count = 0;
+		long previous = 0;
+		int position = 0;
+
+		while (position < value.length) {
+			long delta = 0;
+			int shift = 0;
+			byte b;
+
+			do {
+				b = value[position++];
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			previous += delta;
+			keys[count++] = previous;
+		}
+
+		return Arrays.copyOf(keys, count);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		parents.release();
+		entities.release();
+	}
+}
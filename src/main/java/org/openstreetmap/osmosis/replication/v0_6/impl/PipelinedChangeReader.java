@@ -0,0 +1,151 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.store.DataPostbox;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.core.task.v0_6.RunnableChangeSource;
+
+/**
+ * Runs a change source on a dedicated thread while its changes are delivered
+ * on the calling thread, so that parsing and processing overlap. The changes
+ * pass through a bounded postbox which blocks the parser while the consumer
+ * is behind.
+ * <p>
+ * A failure on either side aborts the other, the failure of the source is
+ * rethrown on the calling thread.
+ */
+public class PipelinedChangeReader implements RunnableChangeSource {
+
+	private static final int BUFFER_CAPACITY = 10000;
+
+	private RunnableChangeSource source;
+	private ChangeSink changeSink;
+	private volatile Throwable sourceFailure;
+	private volatile boolean sourceAborted;
+	private volatile boolean consumerAborted;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param source
+	 *            The source to be run on the parsing thread.
+	 */
+	public PipelinedChangeReader(RunnableChangeSource source) {
+		this.source = source;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setChangeSink(ChangeSink changeSink) {
+		this.changeSink = changeSink;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		final DataPostbox<ChangeContainer> postbox = new DataPostbox<ChangeContainer>(BUFFER_CAPACITY);
+		Thread parser;
+		RuntimeException error = null;
+
+		final ChangeSink postboxSink = new ChangeSink() {
+			private boolean completed;
+			private boolean released;
+
+			@Override
+			public void initialize(Map<String, Object> metaData) {
+				postbox.initialize(metaData);
+			}
+
+			@Override
+			public void process(ChangeContainer change) {
+				postbox.put(change);
+			}
+
+			@Override
+			public void complete() {
+				postbox.complete();
+				completed = true;
+			}
+
+			@Override
+			public void release() {
+				if (!released) {
+					// The source gave up on its own unless the consumer
+					// aborted first.
+					if (!completed && !consumerAborted) {
+						sourceAborted = true;
+					}
+					// Without a prior complete, this aborts the consumer.
+					postbox.release();
+					released = true;
+				}
+			}
+		};
+
+		source.setChangeSink(postboxSink);
+
+		sourceFailure = null;
+		sourceAborted = false;
+		consumerAborted = false;
+		parser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					source.run();
+				} catch (Throwable t) {
+					// A failure caused by an aborted consumer is a consequence.
+					if (sourceAborted || !consumerAborted) {
+						sourceFailure = t;
+					}
+				} finally {
+					postboxSink.release();
+				}
+			}
+		}, "change-parser");
+		parser.start();
+
+		try {
+			changeSink.initialize(postbox.outputInitialize());
+			while (postbox.hasNext()) {
+				changeSink.process(postbox.getNext());
+			}
+			changeSink.complete();
+			postbox.outputComplete();
+		} catch (RuntimeException e) {
+			consumerAborted = true;
+			error = e;
+		} finally {
+			// Without a prior complete, this aborts the parser.
+			postbox.outputRelease();
+			changeSink.release();
+		}
+
+		join(parser);
+		if (sourceFailure != null) {
+			throw new OsmosisRuntimeException("Unable to read changes.", sourceFailure);
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+
+	private void join(Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new OsmosisRuntimeException("Interrupted while waiting for the change parser.", e);
+		}
+	}
+}
@@ -0,0 +1,316 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.awt.geom.Area;
+import java.awt.geom.FlatteningPathIterator;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+
+/**
+ * A polygon compiled into a raster grid over its bounds for fast point
+ * containment tests. Each cell is either entirely inside, entirely outside or
+ * crossed by the polygon outline. Only points in boundary cells are tested
+ * against the edges, and then only against the edges spanning the row of the
+ * cell.
+ * <p>
+ * X is the longitude and y the latitude, as in polygon files. Multipolygons
+ * and holes are supported through the even-odd rule.
+ */
+public class PolygonGrid {
+
+	private static final byte OUTSIDE = 0;
+	private static final byte INSIDE = 1;
+	private static final byte BOUNDARY = 2;
+
+	private static final int MIN_CELLS_PER_AXIS = 16;
+	private static final int MAX_CELLS_PER_AXIS = 1024;
+	private static final double CELLS_PER_EDGE_ROOT = 4;
+	private static final double FLATNESS = 1e-7;
+
+	private double minX;
+	private double minY;
+	private double maxX;
+	private double maxY;
+
+	private int columns;
+	private int rows;
+	private double cellWidth;
+	private double cellHeight;
+	private byte[] cells;
+
+	private double[] edgeX1;
+	private double[] edgeY1;
+	private double[] edgeX2;
+	private double[] edgeY2;
+	private int[][] rowEdges; // edges spanning each row
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param area
+	 *            The polygon, as read by the polygon file reader.
+	 */
+	public PolygonGrid(Area area) {
+		loadEdges(area);
+
+		if (edgeX1.length == 0) {
+			columns = 0;
+			rows = 0;
+			cells = new byte[0];
+			rowEdges = new int[0][];
+			return;
+		}
+
+		int side = (int) Math.ceil(Math.sqrt(edgeX1.length) * CELLS_PER_EDGE_ROOT);
+		side = Math.max(MIN_CELLS_PER_AXIS, Math.min(side, MAX_CELLS_PER_AXIS));
+		columns = side;
+		rows = side;
+		cellWidth = Math.max(maxX - minX, Double.MIN_NORMAL) / columns;
+		cellHeight = Math.max(maxY - minY, Double.MIN_NORMAL) / rows;
+
+		buildRows();
+		classifyCells();
+	}
+
+
+	private void loadEdges(Area area) {
+		List<double[]> edges = new ArrayList<double[]>();
+		PathIterator path = new FlatteningPathIterator(area.getPathIterator(null), FLATNESS);
+		double[] coords = new double[6];
+		double startX = 0;
+		double startY = 0;
+		double lastX = 0;
+		double lastY = 0;
+
+		minX = Double.MAX_VALUE;
+		minY = Double.MAX_VALUE;
+		maxX = -Double.MAX_VALUE;
+		maxY = -Double.MAX_VALUE;
+
+		while (!path.isDone()) {
+			switch (path.currentSegment(coords)) {
+			case PathIterator.SEG_MOVETO:
+				startX = coords[0];
+				startY = coords[1];
+				lastX = startX;
+				lastY = startY;
+				break;
+			case PathIterator.SEG_LINETO:
+				edges.add(new double[] {lastX, lastY, coords[0], coords[1]});
+				lastX = coords[0];
+				lastY = coords[1];
+				break;
+			case PathIterator.SEG_CLOSE:
+				if (lastX != startX || lastY != startY) {
+					edges.add(new double[] {lastX, lastY, startX, startY});
+				}
+				lastX = startX;
+				lastY = startY;
+				break;
+			default:
+				break;
+			}
+			path.next();
+		}
+
+		edgeX1 = new double[edges.size()];
+		edgeY1 = new double[edges.size()];
+		edgeX2 = new double[edges.size()];
+		edgeY2 = new double[edges.size()];
+		for (int i = 0; i < edges.size(); i++) {
+			double[] edge = edges.get(i);
+
+			edgeX1[i] = edge[0];
+			edgeY1[i] = edge[1];
+			edgeX2[i] = edge[2];
+			edgeY2[i] = edge[3];
+			minX = Math.min(minX, Math.min(edge[0], edge[2]));
+			maxX = Math.max(maxX, Math.max(edge[0], edge[2]));
+			minY = Math.min(minY, Math.min(edge[1], edge[3]));
+			maxY = Math.max(maxY, Math.max(edge[1], edge[3]));
+		}
+	}
+
+
+	private int columnOf(double x) {
+		return Math.max(0, Math.min(columns - 1, (int) ((x - minX) / cellWidth)));
+	}
+
+
+	private int rowOf(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellHeight)));
+	}
+
+
+	/**
+	 * Registers every edge with the rows it spans and marks the cells it
+	 * crosses as boundary cells.
+	 */
+	private void buildRows() {
+		int[] rowSizes = new int[rows];
+
+		cells = new byte[columns * rows];
+
+		for (int i = 0; i < edgeX1.length; i++) {
+			int lastRow = rowOf(Math.max(edgeY1[i], edgeY2[i]));
+
+			for (int row = rowOf(Math.min(edgeY1[i], edgeY2[i])); row <= lastRow; row++) {
+				rowSizes[row]++;
+			}
+		}
+		rowEdges = new int[rows][];
+		for (int row = 0; row < rows; row++) {
+			rowEdges[row] = new int[rowSizes[row]];
+			rowSizes[row] = 0;
+		}
+
+		for (int i = 0; i < edgeX1.length; i++) {
+			double bottom = Math.min(edgeY1[i], edgeY2[i]);
+			double top = Math.max(edgeY1[i], edgeY2[i]);
+
+			for (int row = rowOf(bottom); row <= rowOf(top); row++) {
+				double left;
+				double right;
+
+				if (top == bottom) {
+					left = Math.min(edgeX1[i], edgeX2[i]);
+					right = Math.max(edgeX1[i], edgeX2[i]);
+				} else {
+					// The part of the edge within the row.
+					double xAtBottom = xAt(i, Math.max(bottom, minY + row * cellHeight));
+					double xAtTop = xAt(i, Math.min(top, minY + (row + 1) * cellHeight));
+					left = Math.min(xAtBottom, xAtTop);
+					right = Math.max(xAtBottom, xAtTop);
+				}
+
+				rowEdges[row][rowSizes[row]++] = i;
+				for (int column = columnOf(left); column <= columnOf(right); column++) {
+					cells[row * columns + column] = BOUNDARY;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the x coordinate of a non horizontal edge at a y coordinate
+	 * within its span.
+	 */
+	private double xAt(int edge, double y) {
+		return edgeX1[edge] + (edgeX2[edge] - edgeX1[edge]) * (y - edgeY1[edge]) / (edgeY2[edge] - edgeY1[edge]);
+	}
+
+
+	private void classifyCells() {
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				int cell = row * columns + column;
+
+				if (cells[cell] != BOUNDARY) {
+					// No edge crosses the cell, its center decides for all of it.
+					double x = minX + (column + 0.5) * cellWidth;
+					double y = minY + (row + 0.5) * cellHeight;
+					cells[cell] = crossesOddEdgeCount(row, x, y) ? INSIDE : OUTSIDE;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * The exact even-odd test, counting the edges of the row crossed by a ray
+	 * from the point towards positive x.
+	 */
+	private boolean crossesOddEdgeCount(int row, double x, double y) {
+		int[] edges = rowEdges[row];
+		boolean inside = false;
+
+		for (int i = 0; i < edges.length; i++) {
+			int edge = edges[i];
+			double y1 = edgeY1[edge];
+			double y2 = edgeY2[edge];
+
+			if ((y1 > y) != (y2 > y)
+					&& x < edgeX1[edge] + (edgeX2[edge] - edgeX1[edge]) * (y - y1) / (y2 - y1)) {
+				inside = !inside;
+			}
+		}
+
+		return inside;
+	}
+
+
+	/**
+	 * Indicates if a point lies within the polygon.
+	 *
+	 * @param latitude
+	 *            The point latitude.
+	 * @param longitude
+	 *            The point longitude.
+	 * @return True if the point is inside.
+	 */
+	public boolean contains(double latitude, double longitude) {
+		int row;
+		byte cell;
+
+		if (longitude < minX || longitude > maxX || latitude < minY || latitude > maxY) {
+			return false;
+		}
+
+		row = rowOf(latitude);
+		cell = cells[row * columns + columnOf(longitude)];
+		if (cell == BOUNDARY) {
+			return crossesOddEdgeCount(row, longitude, latitude);
+		}
+
+		return cell == INSIDE;
+	}
+
+
+	/**
+	 * Indicates if a box lies within the polygon. Only the cells entirely
+	 * inside the polygon are relied upon, a box reaching into a cell crossed
+	 * by the outline is reported as not contained even if it is.
+	 *
+	 * @param top
+	 *            The box top latitude.
+	 * @param bottom
+	 *            The box bottom latitude.
+	 * @param left
+	 *            The box left longitude.
+	 * @param right
+	 *            The box right longitude.
+	 * @return True if every point of the box is inside.
+	 */
+	public boolean containsBox(double top, double bottom, double left, double right) {
+		if (left < minX || right > maxX || bottom < minY || top > maxY) {
+			return false;
+		}
+
+		// Cells are located as in contains, so every point of the box falls
+		// into one of the cells checked.
+		for (int row = rowOf(bottom); row <= rowOf(top); row++) {
+			for (int column = columnOf(left); column <= columnOf(right); column++) {
+				if (cells[row * columns + column] != INSIDE) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Returns the bounding box of the polygon.
+	 *
+	 * @return The bound.
+	 */
+	public Bound getBound() {
+		return new Bound(maxX, minX, maxY, minY, "");
+	}
+}
@@ -1,5 +1,7 @@
 package org.openstreetmap.osmosis.replication.v0_6.impl;
 
+import java.io.File;
+
 import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
 
 public class Region {
@@ -12,6 +14,12 @@ public class Region {
 	private Bound bound;
 	private String key;
 
+	/**
+	 * The exact area within the bound, null if the region is the whole bound.
+	 */
+	private PolygonGrid polygon;
+	private File polygonFile;
+
 	public String getName() {
 		return name;
 	}
@@ -36,6 +44,36 @@ public class Region {
 		this.key = key;
 	}
 
+	public PolygonGrid getPolygon() {
+		return polygon;
+	}
+
+	public void setPolygon(PolygonGrid polygon) {
+		this.polygon = polygon;
+	}
+
+	public File getPolygonFile() {
+		return polygonFile;
+	}
+
+	public void setPolygonFile(File polygonFile) {
+		this.polygonFile = polygonFile;
+	}
+
+	/**
+	 * Returns a key equal for regions covering the same area, either the same
+	 * bound or the same polygon file.
+	 * 
+	 * @return The geometry key.
+	 */
+	public String getGeometryKey() {
+		if (polygonFile != null) {
+			return "polygon " + polygonFile.getAbsolutePath();
+		}
+		return "bound " + bound.getTop() + "," + bound.getLeft() + ","
+				+ bound.getBottom() + "," + bound.getRight();
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("name: ").append(getName());
@@ -0,0 +1,217 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+
+/**
+ * Places each region below the smallest other region it lies within, so that
+ * it can be filtered from the changes of that region instead of the whole
+ * stream.
+ * <p>
+ * Containment is derived from the geometry and errs towards the top level. A
+ * region is only placed below a region without a polygon if its bound lies
+ * within that bound, and below a polygon region if its bound only covers
+ * polygon grid cells entirely inside the polygon. Regions close to a polygon
+ * outline therefore stay where they are. Bounds crossing the antimeridian are
+ * never nested.
+ */
+public class RegionHierarchy {
+
+	/**
+	 * Bounds are widened by this many degrees, the fixed precision resolution,
+	 * to cover the rounding of node coordinates.
+	 */
+	private static final double MARGIN = 1e-7;
+
+	private int[] parents;
+	private int[][] children;
+	private int[] roots;
+
+
+	/**
+	 * Creates a new instance. Region positions within the list are used as
+	 * region indexes.
+	 *
+	 * @param regions
+	 *            The regions, no two of them with the same geometry.
+	 */
+	public RegionHierarchy(List<Region> regions) {
+		RegionIndex index = new RegionIndex(regions);
+		int[] candidates = new int[regions.size()];
+
+		parents = new int[regions.size()];
+		for (int i = 0; i < regions.size(); i++) {
+			parents[i] = findParent(regions, i, index, candidates);
+		}
+		checkAcyclic();
+		buildChildren();
+	}
+
+
+	private static boolean crossesAntimeridian(Bound bound) {
+		return bound.getLeft() > bound.getRight();
+	}
+
+
+	private static double area(Bound bound) {
+		return (bound.getTop() - bound.getBottom()) * (bound.getRight() - bound.getLeft());
+	}
+
+
+	/**
+	 * Finds the smallest region containing a region, every such region
+	 * contains the top left corner of its bound.
+	 */
+	private static int findParent(List<Region> regions, int region, RegionIndex index, int[] candidates) {
+		Bound bound = regions.get(region).getBound();
+		int parent = -1;
+		int count;
+
+		if (crossesAntimeridian(bound)) {
+			return -1;
+		}
+
+		count = index.findRegions(bound.getTop(), bound.getLeft(), candidates);
+		for (int i = 0; i < count; i++) {
+			int candidate = candidates[i];
+
+			if (candidate != region && contains(regions.get(candidate), bound)
+					&& (parent < 0 || isSmaller(regions.get(candidate), regions.get(parent)))) {
+				parent = candidate;
+			}
+		}
+
+		return parent;
+	}
+
+
+	/**
+	 * Orders containers of the same region. Of two containers with equal
+	 * bounds, the polygon lies within the box.
+	 */
+	private static boolean isSmaller(Region region, Region other) {
+		double area = area(region.getBound());
+		double otherArea = area(other.getBound());
+
+		if (area != otherArea) {
+			return area < otherArea;
+		}
+
+		return region.getPolygon() != null && other.getPolygon() == null;
+	}
+
+
+	/**
+	 * Indicates if every node located in a bound is located in a region too.
+	 *
+	 * @param region
+	 *            The containing region.
+	 * @param bound
+	 *            The contained bound.
+	 * @return True if the bound lies within the region.
+	 */
+	public static boolean contains(Region region, Bound bound) {
+		Bound outer = region.getBound();
+
+		if (crossesAntimeridian(outer) || crossesAntimeridian(bound)) {
+			return false;
+		}
+		if (region.getPolygon() != null) {
+			return region.getPolygon().containsBox(bound.getTop() + MARGIN, bound.getBottom() - MARGIN,
+					bound.getLeft() - MARGIN, bound.getRight() + MARGIN);
+		}
+
+		return bound.getTop() <= outer.getTop() && bound.getBottom() >= outer.getBottom()
+				&& bound.getLeft() >= outer.getLeft() && bound.getRight() <= outer.getRight();
+	}
+
+
+	/**
+	 * Containment strictly shrinks the bound, except for a polygon within a
+	 * box of the same bound which is ordered by isSmaller. A cycle would mean
+	 * a broken containment test.
+	 */
+	private void checkAcyclic() {
+		for (int i = 0; i < parents.length; i++) {
+			int depth = 0;
+
+			for (int parent = parents[i]; parent >= 0; parent = parents[parent]) {
+				if (++depth > parents.length) {
+					throw new OsmosisRuntimeException("Region " + i + " is nested within itself.");
+				}
+			}
+		}
+	}
+
+
+	private void buildChildren() {
+		List<List<Integer>> childLists = new ArrayList<List<Integer>>();
+		List<Integer> rootList = new ArrayList<Integer>();
+
+		for (int i = 0; i < parents.length; i++) {
+			childLists.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < parents.length; i++) {
+			if (parents[i] < 0) {
+				rootList.add(i);
+			} else {
+				childLists.get(parents[i]).add(i);
+			}
+		}
+
+		children = new int[parents.length][];
+		for (int i = 0; i < parents.length; i++) {
+			children[i] = toArray(childLists.get(i));
+		}
+		roots = toArray(rootList);
+	}
+
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+
+		return array;
+	}
+
+
+	/**
+	 * Returns the region a region lies within.
+	 *
+	 * @param region
+	 *            The region index.
+	 * @return The parent region index, -1 for a top level region.
+	 */
+	public int getParent(int region) {
+		return parents[region];
+	}
+
+
+	/**
+	 * Returns the regions placed directly below a region.
+	 *
+	 * @param region
+	 *            The region index.
+	 * @return The child region indexes in ascending order.
+	 */
+	public int[] getChildren(int region) {
+		return children[region];
+	}
+
+
+	/**
+	 * Returns the regions not lying within any other region.
+	 *
+	 * @return The top level region indexes in ascending order.
+	 */
+	public int[] getRoots() {
+		return roots;
+	}
+}
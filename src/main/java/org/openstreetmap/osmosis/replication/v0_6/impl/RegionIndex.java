@@ -0,0 +1,251 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+
+/**
+ * A uniform grid over the bounds of a list of regions. Locating the regions
+ * containing a point only tests the regions registered in the grid cell the
+ * point falls in, instead of every configured region. Points outside the
+ * envelope of all regions are rejected without touching the grid at all.
+ * <p>
+ * Coordinates are held in the OSM fixed precision (1e-7 degree) integer
+ * representation. Bounds crossing the antimeridian are registered as their
+ * simple (non-crossing) parts.
+ * <p>
+ * Regions with a polygon are registered with the polygon bounds, points
+ * within the bounds are then tested against the polygon grid.
+ */
+public class RegionIndex implements RegionLocator {
+
+	/**
+	 * The number of grid cells to allocate per registered box. More cells
+	 * means fewer candidates per cell at the cost of more memory.
+	 */
+	private static final int CELLS_PER_BOX = 4;
+	private static final int MAX_CELLS_PER_AXIS = 1024;
+
+	private int regionCount;
+	private PolygonGrid[] regionPolygons; // null entries for plain boxes
+
+	// One entry per simple box, a region may own more than one box.
+	private int[] boxRegion;
+	private int[] boxTop;
+	private int[] boxBottom;
+	private int[] boxLeft;
+	private int[] boxRight;
+
+	// The envelope of all boxes.
+	private int envelopeTop;
+	private int envelopeBottom;
+	private int envelopeLeft;
+	private int envelopeRight;
+
+	private int columns;
+	private int rows;
+	private int[][] cells; // box indices per cell, null if empty
+
+
+	/**
+	 * Creates a new instance. Region positions within the list are used as
+	 * region indexes in query results.
+	 *
+	 * @param regions
+	 *            The regions to be indexed.
+	 */
+	public RegionIndex(List<Region> regions) {
+		List<Bound> boxes;
+		List<Integer> owners;
+
+		regionCount = regions.size();
+		regionPolygons = new PolygonGrid[regionCount];
+
+		boxes = new ArrayList<Bound>();
+		owners = new ArrayList<Integer>();
+		for (int i = 0; i < regions.size(); i++) {
+			regionPolygons[i] = regions.get(i).getPolygon();
+			for (Bound simpleBound : regions.get(i).getBound().toSimpleBound()) {
+				boxes.add(simpleBound);
+				owners.add(i);
+			}
+		}
+
+		boxRegion = new int[boxes.size()];
+		boxTop = new int[boxes.size()];
+		boxBottom = new int[boxes.size()];
+		boxLeft = new int[boxes.size()];
+		boxRight = new int[boxes.size()];
+		for (int i = 0; i < boxes.size(); i++) {
+			Bound box = boxes.get(i);
+
+			boxRegion[i] = owners.get(i);
+			boxTop[i] = FixedPrecisionCoordinateConvertor.convertToFixed(box.getTop());
+			boxBottom[i] = FixedPrecisionCoordinateConvertor.convertToFixed(box.getBottom());
+			boxLeft[i] = FixedPrecisionCoordinateConvertor.convertToFixed(box.getLeft());
+			boxRight[i] = FixedPrecisionCoordinateConvertor.convertToFixed(box.getRight());
+		}
+
+		buildGrid();
+	}
+
+
+	private void buildGrid() {
+		int boxCount;
+		int side;
+		int[] cellSizes;
+
+		boxCount = boxRegion.length;
+
+		// Start with an inverted envelope, it rejects every point if there are
+		// no boxes at all.
+		envelopeTop = Integer.MIN_VALUE;
+		envelopeBottom = Integer.MAX_VALUE;
+		envelopeLeft = Integer.MAX_VALUE;
+		envelopeRight = Integer.MIN_VALUE;
+		if (boxCount == 0) {
+			columns = 0;
+			rows = 0;
+			cells = new int[0][];
+			return;
+		}
+
+		for (int i = 0; i < boxCount; i++) {
+			envelopeTop = Math.max(envelopeTop, boxTop[i]);
+			envelopeBottom = Math.min(envelopeBottom, boxBottom[i]);
+			envelopeLeft = Math.min(envelopeLeft, boxLeft[i]);
+			envelopeRight = Math.max(envelopeRight, boxRight[i]);
+		}
+
+		side = (int) Math.ceil(Math.sqrt((double) boxCount * CELLS_PER_BOX));
+		side = Math.max(1, Math.min(side, MAX_CELLS_PER_AXIS));
+		columns = side;
+		rows = side;
+
+		// Count the boxes per cell first so that each cell array is allocated
+		// at its exact size.
+		cellSizes = new int[columns * rows];
+		for (int i = 0; i < boxCount; i++) {
+			for (int row = rowOf(boxTop[i]); row <= rowOf(boxBottom[i]); row++) {
+				for (int column = columnOf(boxLeft[i]); column <= columnOf(boxRight[i]); column++) {
+					cellSizes[row * columns + column]++;
+				}
+			}
+		}
+
+		cells = new int[columns * rows][];
+		for (int i = 0; i < cells.length; i++) {
+			if (cellSizes[i] > 0) {
+				cells[i] = new int[cellSizes[i]];
+				cellSizes[i] = 0;
+			}
+		}
+		for (int i = 0; i < boxCount; i++) {
+			for (int row = rowOf(boxTop[i]); row <= rowOf(boxBottom[i]); row++) {
+				for (int column = columnOf(boxLeft[i]); column <= columnOf(boxRight[i]); column++) {
+					int cell = row * columns + column;
+					cells[cell][cellSizes[cell]++] = i;
+				}
+			}
+		}
+	}
+
+
+	private int columnOf(int longitude) {
+		long width = (long) envelopeRight - envelopeLeft + 1;
+
+		return (int) (((long) longitude - envelopeLeft) * columns / width);
+	}
+
+
+	private int rowOf(int latitude) {
+		long height = (long) envelopeTop - envelopeBottom + 1;
+
+		return (int) (((long) envelopeTop - latitude) * rows / height);
+	}
+
+
+	/**
+	 * Returns the number of regions held by the index.
+	 *
+	 * @return The region count.
+	 */
+	@Override
+	public int getRegionCount() {
+		return regionCount;
+	}
+
+
+	/**
+	 * Finds all regions containing the specified point. Points lying right on
+	 * the edge of a region are considered inside it.
+	 *
+	 * @param latitude
+	 *            The point latitude.
+	 * @param longitude
+	 *            The point longitude.
+	 * @param result
+	 *            Receives the indexes of the matching regions, must be able
+	 *            to hold {@link #getRegionCount()} entries.
+	 * @return The number of matching regions written to the result.
+	 */
+	@Override
+	public int findRegions(double latitude, double longitude, int[] result) {
+		return findRegions(
+				FixedPrecisionCoordinateConvertor.convertToFixed(latitude),
+				FixedPrecisionCoordinateConvertor.convertToFixed(longitude),
+				result);
+	}
+
+
+	/**
+	 * Finds all regions containing the specified fixed precision point.
+	 *
+	 * @param latitude
+	 *            The point latitude in fixed precision.
+	 * @param longitude
+	 *            The point longitude in fixed precision.
+	 * @param result
+	 *            Receives the indexes of the matching regions, must be able
+	 *            to hold {@link #getRegionCount()} entries.
+	 * @return The number of matching regions written to the result.
+	 * @see #findRegions(double, double, int[])
+	 */
+	@Override
+	public int findRegions(int latitude, int longitude, int[] result) {
+		int[] candidates;
+		int count;
+
+		// Global envelope prefilter.
+		if (latitude > envelopeTop || latitude < envelopeBottom
+				|| longitude < envelopeLeft || longitude > envelopeRight) {
+			return 0;
+		}
+
+		candidates = cells[rowOf(latitude) * columns + columnOf(longitude)];
+		if (candidates == null) {
+			return 0;
+		}
+
+		count = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			int box = candidates[i];
+
+			if (boxTop[box] >= latitude && boxBottom[box] <= latitude
+					&& boxLeft[box] <= longitude && boxRight[box] >= longitude) {
+				PolygonGrid polygon = regionPolygons[boxRegion[box]];
+
+				if (polygon == null || polygon.contains(
+						FixedPrecisionCoordinateConvertor.convertToDouble(latitude),
+						FixedPrecisionCoordinateConvertor.convertToDouble(longitude))) {
+					result[count++] = boxRegion[box];
+				}
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,46 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+/**
+ * Locates the regions containing a point. Regions are identified by their
+ * index, from zero to the region count.
+ */
+public interface RegionLocator {
+
+	/**
+	 * Returns the number of regions that can be located.
+	 *
+	 * @return The region count.
+	 */
+	int getRegionCount();
+
+
+	/**
+	 * Finds all regions containing the specified point.
+	 *
+	 * @param latitude
+	 *            The point latitude.
+	 * @param longitude
+	 *            The point longitude.
+	 * @param result
+	 *            Receives the indexes of the matching regions, must be able
+	 *            to hold {@link #getRegionCount()} entries.
+	 * @return The number of matching regions written to the result.
+	 */
+	int findRegions(double latitude, double longitude, int[] result);
+
+
+	/**
+	 * Finds all regions containing the specified fixed precision point.
+	 *
+	 * @param latitude
+	 *            The point latitude in fixed precision.
+	 * @param longitude
+	 *            The point longitude in fixed precision.
+	 * @param result
+	 *            Receives the indexes of the matching regions, must be able
+	 *            to hold {@link #getRegionCount()} entries.
+	 * @return The number of matching regions written to the result.
+	 */
+	int findRegions(int latitude, int longitude, int[] result);
+}
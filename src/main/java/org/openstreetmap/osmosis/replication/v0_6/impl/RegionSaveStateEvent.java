@@ -0,0 +1,76 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event covering the state file of a region being saved.
+ */
+public class RegionSaveStateEvent {
+
+	private Object event; // null if not recorded
+
+
+	/**
+	 * Creates and begins a new instance.
+	 *
+	 * @param region
+	 *            The region key.
+	 * @param sequenceNumber
+	 *            The sequence number saved.
+	 */
+	public RegionSaveStateEvent(String region, long sequenceNumber) {
+		if (FlightEvents.isAvailable()) {
+			event = Recorded.begin(region, sequenceNumber);
+		}
+	}
+
+
+	/**
+	 * Ends the event and records it.
+	 */
+	public void commit() {
+		if (event != null) {
+			Recorded.commit(event);
+		}
+	}
+
+
+	/**
+	 * The recorded event, only loaded if the flight recorder is available.
+	 */
+	@Name("org.openstreetmap.osmosis.replication.RegionSaveState")
+	@Label("Region Save State")
+	@Category({"Osmosis", "Replication"})
+	@Description("The replication state of a region saved at the end of an interval.")
+	@StackTrace(false)
+	static class Recorded extends Event {
+
+		@Label("Region")
+		String region;
+
+		@Label("Sequence Number")
+		long sequenceNumber;
+
+
+		static Object begin(String region, long sequenceNumber) {
+			Recorded event = new Recorded();
+
+			event.region = region;
+			event.sequenceNumber = sequenceNumber;
+			event.begin();
+
+			return event;
+		}
+
+
+		static void commit(Object begun) {
+			((Recorded) begun).commit();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns sets of region indexes so that every distinct set is held once and
+ * referred to by an int handle. Entities falling into the same regions share
+ * one set, which keeps per-entity membership down to a single int regardless
+ * of the number of regions.
+ * <p>
+ * Handle 0 is always the empty set.
+ */
+public class RegionSetPool {
+
+	/**
+	 * The handle of the empty set.
+	 */
+	public static final int EMPTY = 0;
+
+	private List<int[]> sets;
+	private Map<RegionSetKey, Integer> handles;
+	private Map<Long, Integer> unions;
+
+
+	/**
+	 * Creates a new instance.
+	 */
+	public RegionSetPool() {
+		sets = new ArrayList<int[]>();
+		handles = new HashMap<RegionSetKey, Integer>();
+		unions = new HashMap<Long, Integer>();
+
+		sets.add(new int[0]);
+		handles.put(new RegionSetKey(new int[0]), EMPTY);
+	}
+
+
+	/**
+	 * Returns the handle of the set holding the specified regions.
+	 *
+	 * @param regions
+	 *            The region indexes, in any order. The array is sorted in
+	 *            place.
+	 * @param count
+	 *            The number of valid entries in the array.
+	 * @return The set handle.
+	 */
+	public int intern(int[] regions, int count) {
+		int[] set;
+		int distinct;
+
+		if (count == 0) {
+			return EMPTY;
+		}
+
+		Arrays.sort(regions, 0, count);
+		distinct = 1;
+		for (int i = 1; i < count; i++) {
+			if (regions[i] != regions[distinct - 1]) {
+				regions[distinct++] = regions[i];
+			}
+		}
+		set = Arrays.copyOf(regions, distinct);
+
+		return intern(set);
+	}
+
+
+	private int intern(int[] set) {
+		RegionSetKey key;
+		Integer handle;
+
+		key = new RegionSetKey(set);
+		handle = handles.get(key);
+		if (handle == null) {
+			handle = sets.size();
+			sets.add(set);
+			handles.put(key, handle);
+		}
+
+		return handle;
+	}
+
+
+	/**
+	 * Returns the handle of the union of two sets.
+	 *
+	 * @param first
+	 *            The first set handle.
+	 * @param second
+	 *            The second set handle.
+	 * @return The handle of the union.
+	 */
+	public int union(int first, int second) {
+		long cacheKey;
+		Integer handle;
+
+		if (first == second || second == EMPTY) {
+			return first;
+		}
+		if (first == EMPTY) {
+			return second;
+		}
+
+		cacheKey = first < second
+				? ((long) first << 32) | second
+				: ((long) second << 32) | first;
+		handle = unions.get(cacheKey);
+		if (handle == null) {
+			handle = intern(merge(sets.get(first), sets.get(second)));
+			unions.put(cacheKey, handle);
+		}
+
+		return handle;
+	}
+
+
+	/**
+	 * Returns the handle of the regions of one set that are not in another.
+	 *
+	 * @param first
+	 *            The set handle to take regions from.
+	 * @param second
+	 *            The set handle of the regions to be excluded.
+	 * @return The handle of the difference.
+	 */
+	public int difference(int first, int second) {
+		int[] firstSet;
+		int[] secondSet;
+		int[] result;
+		int count;
+		int j;
+
+		if (first == second || first == EMPTY) {
+			return EMPTY;
+		}
+		if (second == EMPTY) {
+			return first;
+		}
+
+		firstSet = sets.get(first);
+		secondSet = sets.get(second);
+		result = new int[firstSet.length];
+		count = 0;
+		j = 0;
+		for (int region : firstSet) {
+			while (j < secondSet.length && secondSet[j] < region) {
+				j++;
+			}
+			if (j >= secondSet.length || secondSet[j] != region) {
+				result[count++] = region;
+			}
+		}
+
+		return intern(result, count);
+	}
+
+
+	private int[] merge(int[] first, int[] second) {
+		int[] result;
+		int i;
+		int j;
+		int count;
+
+		result = new int[first.length + second.length];
+		i = 0;
+		j = 0;
+		count = 0;
+		while (i < first.length && j < second.length) {
+			if (first[i] < second[j]) {
+				result[count++] = first[i++];
+			} else if (first[i] > second[j]) {
+				result[count++] = second[j++];
+			} else {
+				result[count++] = first[i++];
+				j++;
+			}
+		}
+		while (i < first.length) {
+			result[count++] = first[i++];
+		}
+		while (j < second.length) {
+			result[count++] = second[j++];
+		}
+
+		return Arrays.copyOf(result, count);
+	}
+
+
+	/**
+	 * Returns the sorted region indexes of a set. The returned array must not
+	 * be modified.
+	 *
+	 * @param handle
+	 *            The set handle.
+	 * @return The region indexes.
+	 */
+	public int[] get(int handle) {
+		return sets.get(handle);
+	}
+
+
+	/**
+	 * Returns the number of distinct sets held by the pool.
+	 *
+	 * @return The set count.
+	 */
+	public int size() {
+		return sets.size();
+	}
+
+
+	/**
+	 * Wraps a set so that it can be used as a hash key by content.
+	 */
+	private static class RegionSetKey {
+		private int[] set;
+		private int hash;
+
+
+		RegionSetKey(int[] set) {
+			this.set = set;
+			this.hash = Arrays.hashCode(set);
+		}
+
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof RegionSetKey && Arrays.equals(set, ((RegionSetKey) o).set);
+		}
+	}
+}
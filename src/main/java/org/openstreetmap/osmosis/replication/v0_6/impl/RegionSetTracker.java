@@ -0,0 +1,158 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+/**
+ * Maps entity ids to region set handles of a {@link RegionSetPool}. This is
+ * the multi-region counterpart of an IdTracker: instead of a single bit, each
+ * id carries the set of regions it belongs to. Sets only ever grow, an id is
+ * never removed.
+ * <p>
+ * The ids are held in an open addressing hash table of primitive arrays so
+ * that no object is allocated per id.
+ */
+public class RegionSetTracker {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private RegionSetPool pool;
+	private long[] ids;
+	private int[] handles; // RegionSetPool.EMPTY marks a free slot
+	private int size;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param pool
+	 *            The pool the stored set handles belong to.
+	 */
+	public RegionSetTracker(RegionSetPool pool) {
+		this.pool = pool;
+
+		ids = new long[INITIAL_CAPACITY];
+		handles = new int[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+
+		return (int) (h ^ (h >>> 32));
+	}
+
+
+	private int slotOf(long id) {
+		int mask = ids.length - 1;
+		int slot = hash(id) & mask;
+
+		while (handles[slot] != RegionSetPool.EMPTY && ids[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+
+	/**
+	 * Returns the regions of an id.
+	 *
+	 * @param id
+	 *            The entity id.
+	 * @return The set handle, {@link RegionSetPool#EMPTY} if the id is not
+	 *         in any region.
+	 */
+	public int get(long id) {
+		return handles[slotOf(id)];
+	}
+
+
+	/**
+	 * Adds regions to an id.
+	 *
+	 * @param id
+	 *            The entity id.
+	 * @param handle
+	 *            The set handle of the regions to be added.
+	 */
+	public void add(long id, int handle) {
+		int slot;
+
+		if (handle == RegionSetPool.EMPTY) {
+			return;
+		}
+
+		slot = slotOf(id);
+		if (handles[slot] == RegionSetPool.EMPTY) {
+			ids[slot] = id;
+			handles[slot] = handle;
+			size++;
+			if (size * 2 > ids.length) {
+				grow();
+			}
+		} else {
+			handles[slot] = pool.union(handles[slot], handle);
+		}
+	}
+
+
+	/**
+	 * Adds all regions of another tracker to this one.
+	 *
+	 * @param other
+	 *            The tracker to be merged, it must share the same pool.
+	 */
+	public void addAll(RegionSetTracker other) {
+		for (int i = 0; i < other.ids.length; i++) {
+			if (other.handles[i] != RegionSetPool.EMPTY) {
+				add(other.ids[i], other.handles[i]);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns all ids belonging to at least one region, in no particular
+	 * order.
+	 *
+	 * @return The ids.
+	 */
+	public long[] getIds() {
+		long[] result = new long[size];
+		int count = 0;
+
+		for (int i = 0; i < ids.length; i++) {
+			if (handles[i] != RegionSetPool.EMPTY) {
+				result[count++] = ids[i];
+			}
+		}
+
+		return result;
+	}
+
+
+	private void grow() {
+		long[] oldIds = ids;
+		int[] oldHandles = handles;
+
+		ids = new long[oldIds.length * 2];
+		handles = new int[oldIds.length * 2];
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldHandles[i] != RegionSetPool.EMPTY) {
+				int slot = slotOf(oldIds[i]);
+				ids[slot] = oldIds[i];
+				handles[slot] = oldHandles[i];
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the number of ids belonging to at least one region.
+	 *
+	 * @return The id count.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,77 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A flight recorder event covering the completion of a region file, which
+ * flushes and closes the writer.
+ */
+public class RegionWriteEvent {
+
+	private Object event; // null if not recorded
+
+
+	/**
+	 * Creates and begins a new instance.
+	 *
+	 * @param region
+	 *            The region key.
+	 * @param changes
+	 *            The number of changes written to the file.
+	 */
+	public RegionWriteEvent(String region, long changes) {
+		if (FlightEvents.isAvailable()) {
+			event = Recorded.begin(region, changes);
+		}
+	}
+
+
+	/**
+	 * Ends the event and records it.
+	 */
+	public void commit() {
+		if (event != null) {
+			Recorded.commit(event);
+		}
+	}
+
+
+	/**
+	 * The recorded event, only loaded if the flight recorder is available.
+	 */
+	@Name("org.openstreetmap.osmosis.replication.RegionWrite")
+	@Label("Region Write")
+	@Category({"Osmosis", "Replication"})
+	@Description("The change file of a region flushed and closed.")
+	@StackTrace(false)
+	static class Recorded extends Event {
+
+		@Label("Region")
+		String region;
+
+		@Label("Changes")
+		long changes;
+
+
+		static Object begin(String region, long changes) {
+			Recorded event = new Recorded();
+
+			event.region = region;
+			event.changes = changes;
+			event.begin();
+
+			return event;
+		}
+
+
+		static void commit(Object begun) {
+			((Recorded) begun).commit();
+		}
+	}
+}
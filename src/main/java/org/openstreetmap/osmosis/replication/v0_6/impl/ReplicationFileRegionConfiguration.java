@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import org.openstreetmap.osmosis.areafilter.common.PolygonFileReader;
 import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
 import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
 
@@ -18,12 +19,19 @@ public class ReplicationFileRegionConfiguration {
 
 	private ArrayList<Region> regionList;
 
+	/**
+	 * Relative polygon files are resolved against this directory, null for
+	 * the current directory.
+	 */
+	private File baseDirectory;
+
 	public ArrayList<Region> getRegionList() {
 		return regionList;
 	}
 
 	public ReplicationFileRegionConfiguration(File configfile) {
 		FileReader reader;
+		baseDirectory = configfile.getAbsoluteFile().getParentFile();
 		try {
 			reader = new FileReader(configfile);
 		} catch (FileNotFoundException e) {
@@ -49,6 +57,22 @@ public class ReplicationFileRegionConfiguration {
 			Region region = new Region();
 			region.setName((String) regionJ.get("name"));
 			region.setKey((String) regionJ.get("folder"));
+
+			// A polygon narrows the region down, its bound is derived from it.
+			String polygonFile = (String) regionJ.get("polygon");
+			if (polygonFile != null) {
+				File file = new File(polygonFile);
+				if (!file.isAbsolute()) {
+					file = new File(baseDirectory, polygonFile);
+				}
+				region.setPolygonFile(file);
+				region.setPolygon(new PolygonGrid(new PolygonFileReader(
+						region.getPolygonFile()).loadPolygon()));
+				region.setBound(region.getPolygon().getBound());
+				regionList.add(region);
+				continue;
+			}
+
 			JSONObject boundJ = (JSONObject) regionJ.get("bound");
 
 			String topLeft = (String) boundJ.get("top-left");
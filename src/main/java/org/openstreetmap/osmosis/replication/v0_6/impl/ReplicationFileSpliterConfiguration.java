@@ -0,0 +1,171 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.openstreetmap.osmosis.core.util.PropertiesPersister;
+
+/**
+ * Loads replication file spliter configuration from a properties file. This
+ * holds the settings of the replication file merger configuration plus the
+ * spliter specific ones.
+ */
+public class ReplicationFileSpliterConfiguration {
+
+	private static final String KEY_INTERVAL_LENGTH = "intervalLength";
+	private static final String KEY_NODE_LOCATION_INDEX = "nodeLocationIndex";
+	private static final String KEY_PARENT_INDEX = "parentIndex";
+	private static final String KEY_WORKER_THREADS = "workerThreads";
+	private static final String KEY_PROMETHEUS_FILE = "prometheusFile";
+	private static final String KEY_CHECKPOINT_INTERVAL = "checkpointInterval";
+	private static final String KEY_SPOOL_MEMORY_LIMIT = "spoolMemoryLimit";
+	private static final String KEY_PARSE_THREAD = "parseThread";
+	private static final String KEY_TILE_ZOOM = "tileZoom";
+	private static final String KEY_MAX_OPEN_FILES = "maxOpenFiles";
+	private static final String KEY_WRITER_BUFFER_LIMIT = "writerBufferLimit";
+	private static final String KEY_REGION_HIERARCHY = "regionHierarchy";
+
+	private Properties properties;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param configFile
+	 *            The configuration file to read from.
+	 */
+	public ReplicationFileSpliterConfiguration(File configFile) {
+		properties = new PropertiesPersister(configFile).load();
+	}
+
+
+	/**
+	 * Returns the duration of each changeset interval.
+	 *
+	 * @return The interval length in milliseconds.
+	 */
+	public int getIntervalLength() {
+		return Integer.parseInt(properties.getProperty(KEY_INTERVAL_LENGTH)) * 1000;
+	}
+
+
+	/**
+	 * Indicates if node locations are to be persisted between invocations so
+	 * that ways can be placed even if none of their nodes changed.
+	 *
+	 * @return True if the node location index is enabled.
+	 */
+	public boolean isNodeLocationIndexEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(KEY_NODE_LOCATION_INDEX, "false").trim());
+	}
+
+
+	/**
+	 * Indicates if the ways and relations referencing each entity are to be
+	 * persisted between invocations so that unchanged parents of moved nodes
+	 * can be sent to their new regions.
+	 *
+	 * @return True if the parent index is enabled.
+	 */
+	public boolean isParentIndexEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(KEY_PARENT_INDEX, "false").trim());
+	}
+
+
+	/**
+	 * Returns the number of threads sorting and writing the region files.
+	 *
+	 * @return The thread count, 0 to do all work on the reading thread.
+	 */
+	public int getWorkerThreads() {
+		return Integer.parseInt(properties.getProperty(KEY_WORKER_THREADS, "0").trim());
+	}
+
+
+	/**
+	 * Indicates if the metrics are to be written in the Prometheus text
+	 * format after every interval.
+	 *
+	 * @return True if the metrics file is enabled.
+	 */
+	public boolean isPrometheusFileEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(KEY_PROMETHEUS_FILE, "false").trim());
+	}
+
+
+	/**
+	 * Returns the time between checkpoints of the open interval.
+	 *
+	 * @return The checkpoint interval in milliseconds, 0 if disabled.
+	 */
+	public long getCheckpointInterval() {
+		return Long.parseLong(properties.getProperty(KEY_CHECKPOINT_INTERVAL, "0").trim()) * 1000;
+	}
+
+
+	/**
+	 * Returns the size up to which the held back changes of an interval are
+	 * kept in memory.
+	 *
+	 * @return The spool memory limit in bytes.
+	 */
+	public long getSpoolMemoryLimit() {
+		return Long.parseLong(properties.getProperty(KEY_SPOOL_MEMORY_LIMIT, "16").trim()) * 1024 * 1024;
+	}
+
+
+	/**
+	 * Indicates if replication files are to be parsed on a dedicated thread
+	 * while the changes are filtered.
+	 *
+	 * @return True if the parse thread is enabled.
+	 */
+	public boolean isParseThreadEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(KEY_PARSE_THREAD, "false").trim());
+	}
+
+
+	/**
+	 * Returns the zoom level of the tiles each interval is additionally split
+	 * into.
+	 *
+	 * @return The tile zoom level, 0 if no tiles are written.
+	 */
+	public int getTileZoom() {
+		return Integer.parseInt(properties.getProperty(KEY_TILE_ZOOM, "0").trim());
+	}
+
+
+	/**
+	 * Returns the number of output files held open at once.
+	 *
+	 * @return The maximum number of open files.
+	 */
+	public int getMaxOpenFiles() {
+		return Integer.parseInt(properties.getProperty(KEY_MAX_OPEN_FILES,
+				Integer.toString(OutputFilePool.DEFAULT_MAX_OPEN_FILES)).trim());
+	}
+
+
+	/**
+	 * Returns the number of bytes buffered for all output files together
+	 * before they are written out.
+	 *
+	 * @return The writer buffer limit in bytes.
+	 */
+	public long getWriterBufferLimit() {
+		return Long.parseLong(properties.getProperty(KEY_WRITER_BUFFER_LIMIT, "64").trim()) * 1024 * 1024;
+	}
+
+
+	/**
+	 * Indicates if regions lying within another region are filtered from the
+	 * changes of that region instead of the whole interval.
+	 *
+	 * @return True if the region hierarchy is enabled.
+	 */
+	public boolean isRegionHierarchyEnabled() {
+		return Boolean.parseBoolean(properties.getProperty(KEY_REGION_HIERARCHY, "false").trim());
+	}
+}
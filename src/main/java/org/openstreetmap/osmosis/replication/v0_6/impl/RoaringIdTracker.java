@@ -0,0 +1,537 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.openstreetmap.osmosis.core.filter.common.IdTracker;
+
+/**
+ * A compressed bitmap id tracker in the style of Roaring bitmaps. Ids are
+ * split into chunks of 65536 by their high bits. A chunk holding few ids keeps
+ * them as a sorted array of their low 16 bits, a chunk holding many ids
+ * switches to a 8KB bitmap. Chunks are found through a hash table, so the
+ * full 64-bit id range costs nothing where no ids are set.
+ */
+public class RoaringIdTracker implements IdTracker {
+
+	private static final int CHUNK_BITS = 16;
+	private static final int LOW_MASK = (1 << CHUNK_BITS) - 1;
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Above this many ids a bitmap is smaller than the sorted array.
+	 */
+	private static final int ARRAY_LIMIT = 4096;
+
+	private long[] keys;
+	private Container[] containers;
+	private int chunkCount;
+	private long[] sortedKeys; // null while new chunks are not yet sorted
+
+	private long lastKey;
+	private Container lastContainer;
+
+
+	/**
+	 * Creates a new instance.
+	 */
+	public RoaringIdTracker() {
+		keys = new long[INITIAL_CAPACITY];
+		containers = new Container[INITIAL_CAPACITY];
+	}
+
+
+	private static int slotOf(long key, int capacity) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+
+		return (int) (hash >>> 32) & (capacity - 1);
+	}
+
+
+	private Container findContainer(long key) {
+		int mask = containers.length - 1;
+
+		if (lastContainer != null && lastKey == key) {
+			return lastContainer;
+		}
+
+		for (int slot = slotOf(key, containers.length);; slot = (slot + 1) & mask) {
+			Container container = containers[slot];
+
+			if (container == null) {
+				return null;
+			}
+			if (keys[slot] == key) {
+				lastKey = key;
+				lastContainer = container;
+				return container;
+			}
+		}
+	}
+
+
+	private int findSlot(long key) {
+		int mask = containers.length - 1;
+		int slot = slotOf(key, containers.length);
+
+		while (containers[slot] != null && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+
+	private void putContainer(long key, Container container) {
+		int slot = findSlot(key);
+
+		if (containers[slot] == null) {
+			chunkCount++;
+			sortedKeys = null;
+		}
+		keys[slot] = key;
+		containers[slot] = container;
+		lastKey = key;
+		lastContainer = container;
+
+		// Keep the table at most half full.
+		if (chunkCount * 2 > containers.length) {
+			long[] oldKeys = keys;
+			Container[] oldContainers = containers;
+
+			keys = new long[oldKeys.length * 2];
+			containers = new Container[oldContainers.length * 2];
+			for (int i = 0; i < oldContainers.length; i++) {
+				if (oldContainers[i] != null) {
+					int newSlot = findSlot(oldKeys[i]);
+					keys[newSlot] = oldKeys[i];
+					containers[newSlot] = oldContainers[i];
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void set(long id) {
+		long key = id >> CHUNK_BITS;
+		Container container = findContainer(key);
+
+		if (container == null) {
+			putContainer(key, new ArrayContainer((char) (id & LOW_MASK)));
+		} else {
+			Container updated = container.add((char) (id & LOW_MASK));
+			if (updated != container) {
+				putContainer(key, updated);
+			}
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		Container container = findContainer(id >> CHUNK_BITS);
+
+		return container != null && container.contains((char) (id & LOW_MASK));
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAll(IdTracker idTracker) {
+		if (idTracker instanceof AdaptiveIdTracker) {
+			idTracker = ((AdaptiveIdTracker) idTracker).getTracker();
+		}
+
+		if (idTracker instanceof RoaringIdTracker) {
+			// Merge whole chunks instead of single ids.
+			RoaringIdTracker other = (RoaringIdTracker) idTracker;
+
+			for (int i = 0; i < other.containers.length; i++) {
+				Container source = other.containers[i];
+
+				if (source != null) {
+					long key = other.keys[i];
+					Container container = findContainer(key);
+
+					if (container == null) {
+						putContainer(key, source.copy());
+					} else {
+						Container updated = container.addAll(source);
+						if (updated != container) {
+							putContainer(key, updated);
+						}
+					}
+				}
+			}
+		} else {
+			for (Long id : idTracker) {
+				set(id);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the number of ids set.
+	 *
+	 * @return The id count.
+	 */
+	public long size() {
+		long size = 0;
+
+		for (int i = 0; i < containers.length; i++) {
+			if (containers[i] != null) {
+				size += containers[i].cardinality();
+			}
+		}
+
+		return size;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<Long> iterator() {
+		if (sortedKeys == null) {
+			sortedKeys = new long[chunkCount];
+			for (int i = 0, j = 0; i < containers.length; i++) {
+				if (containers[i] != null) {
+					sortedKeys[j++] = keys[i];
+				}
+			}
+			Arrays.sort(sortedKeys);
+		}
+
+		return new IdIterator(sortedKeys);
+	}
+
+
+	/**
+	 * Iterates over all ids in ascending order.
+	 */
+	private class IdIterator implements Iterator<Long> {
+		private long[] chunkKeys;
+		private int chunkIndex;
+		private Container container;
+		private int lowIndex;
+		private long nextId;
+		private boolean nextAvailable;
+
+
+		IdIterator(long[] chunkKeys) {
+			this.chunkKeys = chunkKeys;
+			chunkIndex = -1;
+		}
+
+
+		@Override
+		public boolean hasNext() {
+			while (!nextAvailable) {
+				int low = container == null ? -1 : container.lowAfter(lowIndex);
+
+				if (low >= 0) {
+					lowIndex = low + 1;
+					nextId = (chunkKeys[chunkIndex] << CHUNK_BITS) | low;
+					nextAvailable = true;
+				} else if (++chunkIndex < chunkKeys.length) {
+					container = findContainer(chunkKeys[chunkIndex]);
+					lowIndex = 0;
+				} else {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+
+		@Override
+		public Long next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			nextAvailable = false;
+
+			return nextId;
+		}
+
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+
+	/**
+	 * The ids of one chunk, identified by their low 16 bits.
+	 */
+	private abstract static class Container {
+
+		/**
+		 * Adds a value, returning the container now holding the values.
+		 */
+		abstract Container add(char low);
+
+
+		/**
+		 * Adds all values of another container, returning the container now
+		 * holding the values.
+		 */
+		abstract Container addAll(Container other);
+
+
+		abstract boolean contains(char low);
+
+
+		abstract int cardinality();
+
+
+		/**
+		 * Returns the smallest value not below the given one, or -1 if there
+		 * is none.
+		 */
+		abstract int lowAfter(int low);
+
+
+		abstract Container copy();
+	}
+
+
+	/**
+	 * A sorted array of values, for chunks with few ids.
+	 */
+	private static final class ArrayContainer extends Container {
+		private char[] values;
+		private int size;
+
+
+		ArrayContainer(char low) {
+			values = new char[4];
+			values[0] = low;
+			size = 1;
+		}
+
+
+		private ArrayContainer(char[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+
+		@Override
+		Container add(char low) {
+			int index;
+
+			// Ids mostly arrive in ascending order.
+			if (values[size - 1] < low) {
+				index = size;
+			} else {
+				index = Arrays.binarySearch(values, 0, size, low);
+				if (index >= 0) {
+					return this;
+				}
+				index = -index - 1;
+			}
+
+			if (size == ARRAY_LIMIT) {
+				return toBitmap().add(low);
+			}
+			if (size == values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+			}
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = low;
+			size++;
+
+			return this;
+		}
+
+
+		@Override
+		Container addAll(Container other) {
+			if (other instanceof BitmapContainer) {
+				return other.copy().addAll(this);
+			}
+
+			// Merge the two sorted arrays.
+			ArrayContainer source = (ArrayContainer) other;
+			char[] merged = new char[size + source.size];
+			int count = 0;
+			int i = 0;
+			int j = 0;
+
+			while (i < size || j < source.size) {
+				char value;
+
+				if (j == source.size || (i < size && values[i] < source.values[j])) {
+					value = values[i++];
+				} else if (i == size || source.values[j] < values[i]) {
+					value = source.values[j++];
+				} else {
+					value = values[i++];
+					j++;
+				}
+				merged[count++] = value;
+			}
+
+			ArrayContainer result = new ArrayContainer(merged, count);
+			if (count > ARRAY_LIMIT) {
+				return result.toBitmap();
+			}
+
+			return result;
+		}
+
+
+		private BitmapContainer toBitmap() {
+			BitmapContainer bitmap = new BitmapContainer();
+
+			for (int i = 0; i < size; i++) {
+				bitmap.add(values[i]);
+			}
+
+			return bitmap;
+		}
+
+
+		@Override
+		boolean contains(char low) {
+			return Arrays.binarySearch(values, 0, size, low) >= 0;
+		}
+
+
+		@Override
+		int cardinality() {
+			return size;
+		}
+
+
+		@Override
+		int lowAfter(int low) {
+			if (low > LOW_MASK) {
+				return -1;
+			}
+
+			int index = Arrays.binarySearch(values, 0, size, (char) low);
+
+			if (index < 0) {
+				index = -index - 1;
+			}
+
+			return index < size ? values[index] : -1;
+		}
+
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, size), size);
+		}
+	}
+
+
+	/**
+	 * A bitmap over the whole chunk, for chunks with many ids.
+	 */
+	private static final class BitmapContainer extends Container {
+		private long[] words;
+		private int cardinality;
+
+
+		BitmapContainer() {
+			words = new long[(LOW_MASK + 1) / 64];
+		}
+
+
+		@Override
+		Container add(char low) {
+			long bit = 1L << low;
+			int word = low >>> 6;
+
+			if ((words[word] & bit) == 0) {
+				words[word] |= bit;
+				cardinality++;
+			}
+
+			return this;
+		}
+
+
+		@Override
+		Container addAll(Container other) {
+			if (other instanceof BitmapContainer) {
+				long[] otherWords = ((BitmapContainer) other).words;
+
+				cardinality = 0;
+				for (int i = 0; i < words.length; i++) {
+					words[i] |= otherWords[i];
+					cardinality += Long.bitCount(words[i]);
+				}
+			} else {
+				ArrayContainer source = (ArrayContainer) other;
+
+				for (int i = 0; i < source.size; i++) {
+					add(source.values[i]);
+				}
+			}
+
+			return this;
+		}
+
+
+		@Override
+		boolean contains(char low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+
+		@Override
+		int lowAfter(int low) {
+			int word = low >>> 6;
+
+			if (word >= words.length) {
+				return -1;
+			}
+
+			long bits = words[word] & (-1L << low);
+			while (bits == 0) {
+				if (++word == words.length) {
+					return -1;
+				}
+				bits = words[word];
+			}
+
+			return word * 64 + Long.numberOfTrailingZeros(bits);
+		}
+
+
+		@Override
+		Container copy() {
+			BitmapContainer copy = new BitmapContainer();
+
+			System.arraycopy(words, 0, copy.words, 0, words.length);
+			copy.cardinality = cardinality;
+
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+
+/**
+ * A change sent to several region writers. The first writer to encode it
+ * stores the encoding here for the others, which may run on other threads.
+ */
+public class SharedChangeContainer extends ChangeContainer {
+
+	private volatile byte[] xml;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param change
+	 *            The change being shared.
+	 */
+	public SharedChangeContainer(ChangeContainer change) {
+		super(change.getEntityContainer(), change.getAction());
+	}
+
+
+	/**
+	 * Returns the XML encoding of the entity, if a writer stored it.
+	 *
+	 * @return The UTF-8 encoded element, or null.
+	 */
+	public byte[] getXml() {
+		return xml;
+	}
+
+
+	/**
+	 * Stores the XML encoding of the entity. Writers racing to store it
+	 * produce the same bytes.
+	 *
+	 * @param xml
+	 *            The UTF-8 encoded element.
+	 */
+	public void setXml(byte[] xml) {
+		this.xml = xml;
+	}
+}
@@ -0,0 +1,268 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.xml.common.CompressionActivator;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.impl.OsmChangeWriter;
+import org.openstreetmap.osmosis.xml.v0_6.impl.OsmWriter;
+
+/**
+ * Writes the same document as {@link org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter}
+ * but appends entities as UTF-8 bytes encoded once per change. A
+ * {@link SharedChangeContainer} carries its encoding to the writers of all
+ * its regions, so the formatting cost does not grow with the number of
+ * overlapping regions. Only the compression remains per file.
+ * <p>
+ * Writers sharing an {@link OutputFilePool} only hold their file open while
+ * draining their buffer into it.
+ */
+public class SharedXmlChangeWriter implements BatchChangeSink {
+
+	private static final Logger LOG = Logger.getLogger(SharedXmlChangeWriter.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final ChangeAction[] ACTIONS = ChangeAction.values();
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private static final byte[] DOCUMENT_BEGIN;
+	private static final byte[] DOCUMENT_END;
+	private static final byte[][] ACTION_BEGIN;
+	private static final byte[][] ACTION_END;
+
+	// The element writers of the xml plugin, one set per thread.
+	private static final ThreadLocal<Encoder> ENCODER = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	static {
+		StringWriter text = new StringWriter();
+		OsmChangeWriter documentWriter = new OsmChangeWriter("osmChange", 0);
+
+		// The framing is taken from the element writers themselves.
+		documentWriter.setWriter(text);
+		text.write("<?xml version='1.0' encoding='UTF-8'?>" + LINE_SEPARATOR);
+		documentWriter.begin();
+		DOCUMENT_BEGIN = text.toString().getBytes(UTF8);
+
+		text.getBuffer().setLength(0);
+		documentWriter.end();
+		DOCUMENT_END = text.toString().getBytes(UTF8);
+
+		ACTION_BEGIN = new byte[ACTIONS.length][];
+		ACTION_END = new byte[ACTIONS.length][];
+		for (ChangeAction action : ACTIONS) {
+			OsmWriter actionWriter = new OsmWriter(action.name().toLowerCase(), 1, false, false);
+			actionWriter.setWriter(text);
+
+			text.getBuffer().setLength(0);
+			actionWriter.begin();
+			ACTION_BEGIN[action.ordinal()] = text.toString().getBytes(UTF8);
+
+			text.getBuffer().setLength(0);
+			actionWriter.end();
+			ACTION_END[action.ordinal()] = text.toString().getBytes(UTF8);
+		}
+	}
+
+	private File file;
+	private OutputFilePool pool;
+	private OutputStream outStream;
+	private ChangeAction lastAction;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param file
+	 *            The gzip compressed file to write.
+	 */
+	public SharedXmlChangeWriter(File file) {
+		this(file, null);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param file
+	 *            The gzip compressed file to write.
+	 * @param pool
+	 *            The pool providing the output of the file, or null to keep
+	 *            the file open until completion.
+	 */
+	public SharedXmlChangeWriter(File file, OutputFilePool pool) {
+		this.file = file;
+		this.pool = pool;
+	}
+
+
+	/**
+	 * Returns the XML encoding of the entity of a change, indented as within
+	 * an action element.
+	 *
+	 * @param change
+	 *            The change to be encoded.
+	 * @return The UTF-8 encoded element.
+	 */
+	public static byte[] encode(ChangeContainer change) {
+		byte[] xml;
+
+		if (change instanceof SharedChangeContainer) {
+			SharedChangeContainer shared = (SharedChangeContainer) change;
+
+			xml = shared.getXml();
+			if (xml == null) {
+				xml = ENCODER.get().encode(change);
+				shared.setXml(xml);
+			}
+		} else {
+			xml = ENCODER.get().encode(change);
+		}
+
+		return xml;
+	}
+
+
+	private void write(byte[] bytes) {
+		try {
+			outStream.write(bytes);
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to write data to " + file + ".", e);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void initialize(Map<String, Object> metaData) {
+		if (outStream == null) {
+			// A previous file may be hard linked elsewhere, it must not be
+			// overwritten in place.
+			if (file.exists() && !file.delete()) {
+				throw new OsmosisRuntimeException("Unable to replace file " + file + ".");
+			}
+			try {
+				if (pool != null) {
+					outStream = pool.open(file);
+				} else {
+					outStream = new BufferedOutputStream(new CompressionActivator(CompressionMethod.GZip)
+							.createCompressionOutputStream(new FileOutputStream(file)), 65536);
+				}
+			} catch (IOException e) {
+				throw new OsmosisRuntimeException("Unable to open file " + file + " for writing.", e);
+			}
+			write(DOCUMENT_BEGIN);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer change) {
+		ChangeAction action = change.getAction();
+
+		initialize(null);
+		if (action != lastAction) {
+			if (lastAction != null) {
+				write(ACTION_END[lastAction.ordinal()]);
+			}
+			write(ACTION_BEGIN[action.ordinal()]);
+			lastAction = action;
+		}
+		write(encode(change));
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer[] changes, int count) {
+		for (int i = 0; i < count; i++) {
+			process(changes[i]);
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void complete() {
+		initialize(null);
+		if (lastAction != null) {
+			write(ACTION_END[lastAction.ordinal()]);
+			lastAction = null;
+		}
+		write(DOCUMENT_END);
+
+		try {
+			outStream.close();
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to complete file " + file + ".", e);
+		} finally {
+			outStream = null;
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		if (outStream != null) {
+			try {
+				outStream.close();
+			} catch (IOException e) {
+				// We cannot throw an exception within a release method.
+				LOG.log(Level.WARNING, "Unable to close file " + file + ".", e);
+			}
+			outStream = null;
+		}
+	}
+
+
+	/**
+	 * Formats entities with the element writers of the xml plugin.
+	 */
+	private static class Encoder {
+		private StringWriter text;
+		private OsmWriter entityWriter;
+
+
+		Encoder() {
+			text = new StringWriter();
+			entityWriter = new OsmWriter("create", 1, false, false);
+			entityWriter.setWriter(text);
+		}
+
+
+		byte[] encode(ChangeContainer change) {
+			text.getBuffer().setLength(0);
+			entityWriter.process(change.getEntityContainer());
+			return text.toString().getBytes(UTF8);
+		}
+	}
+}
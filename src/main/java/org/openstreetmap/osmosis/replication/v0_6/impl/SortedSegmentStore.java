@@ -0,0 +1,681 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.lifecycle.Releasable;
+
+/**
+ * A persistent map of long keys to byte values made of immutable, memory
+ * mapped segment files. Each batch of updates is written as a new segment,
+ * lookups combine the values of all segments from newest to oldest using a
+ * {@link ValueMerger}. Once there are too many small segments, the newest
+ * ones are merged. Once the store has grown to twice its size after the last
+ * full compaction, all segments are merged, dropping superseded values.
+ * <p>
+ * A segment file holds the values followed by the sorted key array, the value
+ * offset array and a footer with the entry count and values length. Segment
+ * files are limited in length so that they can be mapped and addressed with
+ * int offsets, a merge rolls its output over into several segments with
+ * ascending key ranges. Segments are written to a temporary file and renamed
+ * into place so that a crash never leaves a partial segment behind.
+ */
+public class SortedSegmentStore implements Releasable {
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String TEMP_SUFFIX = ".tmp";
+	/**
+	 * The default limit of the length of a segment file.
+	 */
+	public static final long DEFAULT_MAX_SEGMENT_LENGTH = 1L << 30;
+
+	private static final String COMPACTED_SUFFIX = ".compacted";
+	private static final int MAX_SEGMENTS = 8;
+	private static final int FULL_COMPACTION_GROWTH = 2;
+	private static final int ENTRY_LENGTH = 12; // The key and value offset.
+	private static final int FOOTER_LENGTH = 12;
+
+
+	/**
+	 * Combines the values stored for one key in two segments.
+	 */
+	public interface ValueMerger {
+		/**
+		 * Combines two values.
+		 *
+		 * @param newer
+		 *            The value of the newer segment.
+		 * @param older
+		 *            The value of the older segment.
+		 * @return The combined value.
+		 */
+		byte[] merge(byte[] newer, byte[] older);
+	}
+
+
+	private File directory;
+	private String prefix;
+	private ValueMerger merger;
+	private long maxSegmentLength;
+	private List<Segment> segments; // oldest first
+	private long nextSegmentNumber;
+	private long compactedLength; // The length after the last full compaction.
+
+
+	/**
+	 * Creates a new instance, opening all existing segments.
+	 *
+	 * @param directory
+	 *            The directory holding the segment files.
+	 * @param prefix
+	 *            The name prefix of the segment files of this store.
+	 * @param merger
+	 *            Combines values of the same key. Values merged to an empty
+	 *            array are dropped when the oldest segment is merged.
+	 */
+	public SortedSegmentStore(File directory, String prefix, ValueMerger merger) {
+		this(directory, prefix, merger, DEFAULT_MAX_SEGMENT_LENGTH);
+	}
+
+
+	/**
+	 * Creates a new instance, opening all existing segments.
+	 *
+	 * @param directory
+	 *            The directory holding the segment files.
+	 * @param prefix
+	 *            The name prefix of the segment files of this store.
+	 * @param merger
+	 *            Combines values of the same key. Values merged to an empty
+	 *            array are dropped when the oldest segment is merged.
+	 * @param maxSegmentLength
+	 *            The length in bytes up to which a segment file is filled,
+	 *            at most {@link Integer#MAX_VALUE}. Only a single value
+	 *            longer than that gets a longer segment.
+	 */
+	public SortedSegmentStore(File directory, String prefix, ValueMerger merger, long maxSegmentLength) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.merger = merger;
+		this.maxSegmentLength = Math.min(maxSegmentLength, Integer.MAX_VALUE);
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new OsmosisRuntimeException("Unable to create directory " + directory + ".");
+		}
+
+		segments = new ArrayList<Segment>();
+		nextSegmentNumber = 0;
+		for (File file : listSegmentFiles()) {
+			long number = segmentNumber(file);
+			segments.add(new Segment(file, number));
+			nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+		}
+
+		// A store without a record counts from its current size.
+		if (getCompactedFile().exists()) {
+			compactedLength = loadCompactedLength();
+		} else {
+			saveCompactedLength(getLength());
+		}
+	}
+
+
+	private File getCompactedFile() {
+		return new File(directory, prefix + COMPACTED_SUFFIX);
+	}
+
+
+	private long loadCompactedLength() {
+		File file = getCompactedFile();
+
+		try {
+			DataInputStream input = new DataInputStream(new FileInputStream(file));
+			try {
+				return input.readLong();
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to read " + file + ".", e);
+		}
+	}
+
+
+	private void saveCompactedLength(long length) {
+		File file = getCompactedFile();
+		File tmpFile = new File(directory, prefix + COMPACTED_SUFFIX + TEMP_SUFFIX);
+
+		try {
+			FileOutputStream outputFile = new FileOutputStream(tmpFile);
+			DataOutputStream output = new DataOutputStream(outputFile);
+			try {
+				output.writeLong(length);
+				output.flush();
+				outputFile.getFD().sync();
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to write " + tmpFile + ".", e);
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new OsmosisRuntimeException("Unable to delete " + file + ".");
+		}
+		if (!tmpFile.renameTo(file)) {
+			throw new OsmosisRuntimeException("Unable to rename " + tmpFile + " to " + file + ".");
+		}
+		compactedLength = length;
+	}
+
+
+	/**
+	 * Returns the length of all segment files.
+	 *
+	 * @return The length in bytes.
+	 */
+	public long getLength() {
+		long length = 0;
+
+		for (Segment segment : segments) {
+			length += segment.length;
+		}
+
+		return length;
+	}
+
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return The segment count.
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+
+	private List<File> listSegmentFiles() {
+		List<File> files = new ArrayList<File>();
+		File[] candidates = directory.listFiles();
+
+		if (candidates != null) {
+			for (File file : candidates) {
+				String name = file.getName();
+				if (name.startsWith(prefix + "-") && name.endsWith(SEGMENT_SUFFIX)) {
+					files.add(file);
+				} else if (name.startsWith(prefix + "-") && name.endsWith(TEMP_SUFFIX)) {
+					// Left behind by an interrupted write.
+					file.delete();
+				}
+			}
+		}
+
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long n1 = segmentNumber(o1);
+				long n2 = segmentNumber(o2);
+				return n1 < n2 ? -1 : (n1 == n2 ? 0 : 1);
+			}
+		});
+
+		return files;
+	}
+
+
+	private long segmentNumber(File file) {
+		String name = file.getName();
+
+		return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+
+	/**
+	 * Returns the combined value of a key over all segments.
+	 *
+	 * @param key
+	 *            The key.
+	 * @return The value, or null if no segment holds the key.
+	 */
+	public byte[] get(long key) {
+		byte[] result = null;
+
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			byte[] value = segments.get(i).get(key);
+
+			if (value != null) {
+				result = result == null ? value : merger.merge(result, value);
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Writes a batch of values as a new segment.
+	 *
+	 * @param batch
+	 *            The values to be written, keyed in ascending order.
+	 */
+	public void write(SortedMap<Long, byte[]> batch) {
+		RollingSegmentWriter writer;
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		writer = new RollingSegmentWriter();
+		try {
+			for (Map.Entry<Long, byte[]> entry : batch.entrySet()) {
+				writer.add(entry.getKey(), entry.getValue());
+			}
+			segments.addAll(writer.finish());
+		} finally {
+			writer.release();
+		}
+
+		compact();
+	}
+
+
+	private boolean isFull(Segment segment) {
+		return segment.length >= maxSegmentLength / 2;
+	}
+
+
+	/**
+	 * Merges all segments once the store has grown enough since the last
+	 * full compaction. Otherwise merges the newest small segments once there
+	 * are too many of them, the full segments written by earlier merges are
+	 * left alone.
+	 */
+	private void compact() {
+		int first;
+
+		if (getLength() > Math.max(FULL_COMPACTION_GROWTH * compactedLength, maxSegmentLength)) {
+			merge(0);
+			return;
+		}
+
+		first = segments.size();
+		while (first > 0 && !isFull(segments.get(first - 1))) {
+			first--;
+		}
+		if (segments.size() - first > MAX_SEGMENTS) {
+			merge(first);
+		}
+	}
+
+
+	/**
+	 * Merges the segments from an index on into new segments.
+	 */
+	private void merge(int first) {
+		List<Segment> merged;
+		RollingSegmentWriter writer;
+		boolean dropEmpty;
+
+		merged = new ArrayList<Segment>(segments.subList(first, segments.size()));
+		dropEmpty = first == 0;
+
+		writer = new RollingSegmentWriter();
+		try {
+			int[] positions = new int[merged.size()];
+
+			while (true) {
+				long key = Long.MAX_VALUE;
+				boolean found = false;
+				byte[] value = null;
+
+				for (int i = 0; i < merged.size(); i++) {
+					if (positions[i] < merged.get(i).count) {
+						long candidate = merged.get(i).keyAt(positions[i]);
+						if (!found || candidate < key) {
+							key = candidate;
+							found = true;
+						}
+					}
+				}
+				if (!found) {
+					break;
+				}
+
+				// Combine from newest to oldest.
+				for (int i = merged.size() - 1; i >= 0; i--) {
+					Segment segment = merged.get(i);
+					if (positions[i] < segment.count && segment.keyAt(positions[i]) == key) {
+						byte[] segmentValue = segment.valueAt(positions[i]);
+						value = value == null ? segmentValue : merger.merge(value, segmentValue);
+						positions[i]++;
+					}
+				}
+
+				if (!dropEmpty || value.length > 0) {
+					writer.add(key, value);
+				}
+			}
+
+			segments.removeAll(merged);
+			segments.addAll(writer.finish());
+		} finally {
+			writer.release();
+		}
+
+		for (Segment segment : merged) {
+			segment.delete();
+		}
+		if (dropEmpty) {
+			saveCompactedLength(getLength());
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		for (Segment segment : segments) {
+			segment.release();
+		}
+		segments.clear();
+	}
+
+
+	/**
+	 * A read-only, memory mapped segment.
+	 */
+	private class Segment {
+		private File file;
+		private RandomAccessFile randomFile;
+		private MappedByteBuffer buffer;
+		private long length;
+		private int count;
+		private int valuesLength;
+		private int keysStart;
+		private int offsetsStart;
+
+
+		Segment(File file, long number) {
+			this.file = file;
+
+			try {
+				randomFile = new RandomAccessFile(file, "r");
+				length = randomFile.length();
+				if (length > Integer.MAX_VALUE) {
+					randomFile.close();
+					throw new OsmosisRuntimeException("Segment " + file + " is too long to be mapped.");
+				}
+				buffer = randomFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+				count = buffer.getInt((int) length - FOOTER_LENGTH);
+				valuesLength = (int) buffer.getLong((int) length - FOOTER_LENGTH + 4);
+			} catch (IOException e) {
+				throw new OsmosisRuntimeException("Unable to open segment " + file + ".", e);
+			}
+
+			keysStart = valuesLength;
+			offsetsStart = keysStart + count * 8;
+		}
+
+
+		long keyAt(int index) {
+			return buffer.getLong(keysStart + index * 8);
+		}
+
+
+		byte[] valueAt(int index) {
+			int start = buffer.getInt(offsetsStart + index * 4);
+			int end = index + 1 < count ? buffer.getInt(offsetsStart + (index + 1) * 4) : valuesLength;
+			byte[] value = new byte[end - start];
+
+			for (int i = 0; i < value.length; i++) {
+				value[i] = buffer.get(start + i);
+			}
+
+			return value;
+		}
+
+
+		byte[] get(long key) {
+			int low = 0;
+			int high = count - 1;
+
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				long middleKey = keyAt(middle);
+
+				if (middleKey < key) {
+					low = middle + 1;
+				} else if (middleKey > key) {
+					high = middle - 1;
+				} else {
+					return valueAt(middle);
+				}
+			}
+
+			return null;
+		}
+
+
+		void release() {
+			try {
+				randomFile.close();
+			} catch (IOException e) {
+				throw new OsmosisRuntimeException("Unable to close segment " + file + ".", e);
+			}
+		}
+
+
+		void delete() {
+			release();
+			if (!file.delete()) {
+				throw new OsmosisRuntimeException("Unable to delete segment " + file + ".");
+			}
+		}
+	}
+
+
+	/**
+	 * Writes a segment, the keys must be added in ascending order.
+	 */
+	private class SegmentWriter implements Releasable {
+		private long number;
+		private File file;
+		private File keysFile;
+		private File offsetsFile;
+		private FileOutputStream valuesFile;
+		private DataOutputStream values;
+		private DataOutputStream keys;
+		private DataOutputStream offsets;
+		private long valuesLength;
+		private int count;
+
+
+		SegmentWriter(long number) {
+			this.number = number;
+
+			file = new File(directory, prefix + "-" + number + TEMP_SUFFIX);
+			keysFile = new File(directory, prefix + "-" + number + ".keys" + TEMP_SUFFIX);
+			offsetsFile = new File(directory, prefix + "-" + number + ".offsets" + TEMP_SUFFIX);
+			try {
+				valuesFile = new FileOutputStream(file);
+				values = new DataOutputStream(new BufferedOutputStream(valuesFile));
+				keys = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile)));
+				offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)));
+			} catch (IOException e) {
+				release();
+				throw new OsmosisRuntimeException("Unable to create segment " + file + ".", e);
+			}
+		}
+
+
+		/**
+		 * Indicates whether a value can be added without the segment
+		 * exceeding a length. A value is always accepted by an empty segment.
+		 */
+		boolean fits(byte[] value, long maxLength) {
+			return count == 0 || getLength() + value.length + ENTRY_LENGTH <= maxLength;
+		}
+
+
+		long getLength() {
+			return valuesLength + (long) count * ENTRY_LENGTH + FOOTER_LENGTH;
+		}
+
+
+		void add(long key, byte[] value) {
+			if (getLength() + value.length + ENTRY_LENGTH > Integer.MAX_VALUE) {
+				throw new OsmosisRuntimeException("Segment " + file + " would be too long to be mapped.");
+			}
+			try {
+				keys.writeLong(key);
+				offsets.writeInt((int) valuesLength);
+				values.write(value);
+				valuesLength += value.length;
+				count++;
+			} catch (IOException e) {
+				throw new OsmosisRuntimeException("Unable to write segment " + file + ".", e);
+			}
+		}
+
+
+		Segment finish() {
+			File segmentFile;
+
+			try {
+				keys.close();
+				offsets.close();
+				appendFile(keysFile);
+				appendFile(offsetsFile);
+				values.writeInt(count);
+				values.writeLong(valuesLength);
+				values.flush();
+				valuesFile.getFD().sync();
+				values.close();
+				values = null;
+			} catch (IOException e) {
+				throw new OsmosisRuntimeException("Unable to write segment " + file + ".", e);
+			}
+
+			segmentFile = new File(directory, prefix + "-" + number + SEGMENT_SUFFIX);
+			if (!file.renameTo(segmentFile)) {
+				throw new OsmosisRuntimeException("Unable to rename " + file + " to " + segmentFile + ".");
+			}
+
+			return new Segment(segmentFile, number);
+		}
+
+
+		private void appendFile(File source) throws IOException {
+			FileInputStream input = new FileInputStream(source);
+			try {
+				byte[] buffer = new byte[65536];
+				int length;
+
+				while ((length = input.read(buffer)) > 0) {
+					values.write(buffer, 0, length);
+				}
+			} finally {
+				input.close();
+			}
+		}
+
+
+		@Override
+		public void release() {
+			closeQuietly(values);
+			closeQuietly(keys);
+			closeQuietly(offsets);
+			file.delete();
+			keysFile.delete();
+			offsetsFile.delete();
+		}
+
+
+		private void closeQuietly(DataOutputStream stream) {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// Ignore, the stream is being discarded.
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Writes entries in ascending key order into as many segments as needed
+	 * to keep each within the length limit.
+	 */
+	private class RollingSegmentWriter implements Releasable {
+		private List<Segment> finished = new ArrayList<Segment>();
+		private SegmentWriter writer;
+		private boolean complete;
+
+
+		void add(long key, byte[] value) {
+			if (writer != null && !writer.fits(value, maxSegmentLength)) {
+				finishWriter();
+			}
+			if (writer == null) {
+				writer = new SegmentWriter(nextSegmentNumber++);
+			}
+			writer.add(key, value);
+		}
+
+
+		private void finishWriter() {
+			try {
+				finished.add(writer.finish());
+			} finally {
+				writer.release();
+				writer = null;
+			}
+		}
+
+
+		List<Segment> finish() {
+			if (writer != null) {
+				finishWriter();
+			}
+			complete = true;
+
+			return finished;
+		}
+
+
+		@Override
+		public void release() {
+			if (writer != null) {
+				writer.release();
+				writer = null;
+			}
+			// Segments of a failed write must not be found when reopening.
+			if (!complete) {
+				for (Segment segment : finished) {
+					segment.delete();
+				}
+			}
+			finished.clear();
+		}
+	}
+}
@@ -0,0 +1,586 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+
+/**
+ * Collects the counters, stage timers and gauges of a replication file
+ * spliter. The metrics are published as an MXBean and can be exported in the
+ * Prometheus text format.
+ * <p>
+ * Stage time is exclusive: each thread keeps a stack of the stages it is in
+ * and time is charged to the innermost one only. Parsing a file that feeds
+ * the sorter thus only counts the time spent outside of the sorter.
+ */
+public class SpliterMetrics implements SpliterMetricsMXBean {
+
+	private static final Logger LOG = Logger.getLogger(SpliterMetrics.class.getName());
+
+	private static final String PREFIX = "osmosis_spliter_";
+
+	/**
+	 * The stages of the spliter.
+	 */
+	public enum Stage {
+		/**
+		 * Reading replication files.
+		 */
+		Parse,
+
+		/**
+		 * Sorting the changes of an interval.
+		 */
+		Sort,
+
+		/**
+		 * Assigning changes to regions.
+		 */
+		Filter,
+
+		/**
+		 * Writing the region files.
+		 */
+		Write,
+
+		/**
+		 * Saving an interval, not counting the stages above it finishes.
+		 */
+		Save
+	}
+
+	private String[] regionKeys;
+	private AtomicLong changesIn;
+	private AtomicLong intervals;
+	private AtomicLong spilledIntervals;
+	private AtomicLong spilledBytes;
+	private AtomicLongArray stageNanos;
+	private AtomicLongArray regionChangesIn;
+	private AtomicLongArray regionChangesEmitted;
+	private AtomicLongArray regionBytesWritten;
+	private long[] regionOldestChange; // of the current interval
+	private LatencyHistogram[] regionLag;
+	private LatencyHistogram intervalTime;
+	private volatile long trackedIds;
+	private volatile long regionSets;
+	private volatile long spooledBytes;
+
+	private ThreadLocal<StageClock> clocks;
+	private ObjectName objectName;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param regionKeys
+	 *            The keys of the regions, in region index order.
+	 */
+	public SpliterMetrics(String[] regionKeys) {
+		this.regionKeys = regionKeys;
+		changesIn = new AtomicLong();
+		intervals = new AtomicLong();
+		spilledIntervals = new AtomicLong();
+		spilledBytes = new AtomicLong();
+		stageNanos = new AtomicLongArray(Stage.values().length);
+		regionChangesIn = new AtomicLongArray(regionKeys.length);
+		regionChangesEmitted = new AtomicLongArray(regionKeys.length);
+		regionBytesWritten = new AtomicLongArray(regionKeys.length);
+		regionOldestChange = new long[regionKeys.length];
+		Arrays.fill(regionOldestChange, Long.MAX_VALUE);
+		regionLag = new LatencyHistogram[regionKeys.length];
+		for (int i = 0; i < regionKeys.length; i++) {
+			regionLag[i] = new LatencyHistogram();
+		}
+		intervalTime = new LatencyHistogram();
+		clocks = new ThreadLocal<StageClock>() {
+			@Override
+			protected StageClock initialValue() {
+				return new StageClock();
+			}
+		};
+	}
+
+
+	/**
+	 * Returns the key of a region.
+	 *
+	 * @param region
+	 *            The region index.
+	 * @return The region key.
+	 */
+	public String getRegionKey(int region) {
+		return regionKeys[region];
+	}
+
+
+	/**
+	 * Starts charging time of the current thread to a stage, until the
+	 * matching {@link #exit()}.
+	 *
+	 * @param stage
+	 *            The stage entered.
+	 */
+	public void enter(Stage stage) {
+		StageClock clock = clocks.get();
+		long now = System.nanoTime();
+
+		if (clock.depth > 0) {
+			stageNanos.addAndGet(clock.stages[clock.depth - 1], now - clock.mark);
+		}
+		if (clock.depth == clock.stages.length) {
+			clock.stages = Arrays.copyOf(clock.stages, clock.depth * 2);
+		}
+		clock.stages[clock.depth++] = stage.ordinal();
+		clock.mark = now;
+	}
+
+
+	/**
+	 * Returns the current thread to the stage it was in before the last
+	 * {@link #enter(Stage)}.
+	 */
+	public void exit() {
+		StageClock clock = clocks.get();
+		long now = System.nanoTime();
+
+		stageNanos.addAndGet(clock.stages[--clock.depth], now - clock.mark);
+		clock.mark = now;
+	}
+
+
+	/**
+	 * Counts a change read from a replication file.
+	 */
+	public void addChangeIn() {
+		changesIn.incrementAndGet();
+	}
+
+
+	/**
+	 * Counts a change found within regions.
+	 *
+	 * @param regions
+	 *            The region indexes.
+	 */
+	public void addRegionChangeIn(int[] regions) {
+		for (int region : regions) {
+			regionChangesIn.incrementAndGet(region);
+		}
+	}
+
+
+	/**
+	 * Counts a change found within regions of a filter covering only some of
+	 * the regions.
+	 *
+	 * @param regions
+	 *            The region indexes of the filter.
+	 * @param metricRegions
+	 *            The region index of each filter region, null if they are the
+	 *            same.
+	 */
+	public void addRegionChangeIn(int[] regions, int[] metricRegions) {
+		if (metricRegions == null) {
+			addRegionChangeIn(regions);
+			return;
+		}
+		for (int region : regions) {
+			regionChangesIn.incrementAndGet(metricRegions[region]);
+		}
+	}
+
+
+	/**
+	 * Counts a change written to a region. A region is only ever written by
+	 * one thread at a time.
+	 *
+	 * @param region
+	 *            The region index.
+	 * @param timestamp
+	 *            The timestamp of the change, or null if unknown.
+	 */
+	public void addRegionChangeEmitted(int region, Date timestamp) {
+		regionChangesEmitted.incrementAndGet(region);
+		if (timestamp != null && timestamp.getTime() < regionOldestChange[region]) {
+			regionOldestChange[region] = timestamp.getTime();
+		}
+	}
+
+
+	/**
+	 * Records the freshness of a region once the file and state of an
+	 * interval are written, measured from the oldest change of the interval.
+	 *
+	 * @param region
+	 *            The region index.
+	 * @param writtenTime
+	 *            The time the state was written, in milliseconds.
+	 */
+	public void addRegionWritten(int region, long writtenTime) {
+		if (regionOldestChange[region] != Long.MAX_VALUE) {
+			regionLag[region].record(writtenTime - regionOldestChange[region]);
+			regionOldestChange[region] = Long.MAX_VALUE;
+		}
+	}
+
+
+	/**
+	 * Records the time taken to process an interval.
+	 *
+	 * @param millis
+	 *            The wall clock time in milliseconds.
+	 */
+	public void addIntervalTime(long millis) {
+		intervalTime.record(millis);
+	}
+
+
+	/**
+	 * Counts the bytes of a file written for a region.
+	 *
+	 * @param region
+	 *            The region index.
+	 * @param bytes
+	 *            The file size.
+	 */
+	public void addRegionBytesWritten(int region, long bytes) {
+		regionBytesWritten.addAndGet(region, bytes);
+	}
+
+
+	/**
+	 * Records the end of an interval along with the gauges sampled from it.
+	 *
+	 * @param trackedIdCount
+	 *            The number of ids tracked by the filter.
+	 * @param regionSetCount
+	 *            The number of distinct region sets.
+	 * @param spooledByteCount
+	 *            The encoded size of the changes held back in the spool.
+	 * @param spilledByteCount
+	 *            The part of the spool moved to a temporary file.
+	 */
+	public void addInterval(long trackedIdCount, long regionSetCount, long spooledByteCount, long spilledByteCount) {
+		intervals.incrementAndGet();
+		trackedIds = trackedIdCount;
+		regionSets = regionSetCount;
+		spooledBytes = spooledByteCount;
+		spilledBytes.addAndGet(spilledByteCount);
+	}
+
+
+	/**
+	 * Records an interval whose spool exceeded its memory limit.
+	 */
+	public void addSpilledInterval() {
+		spilledIntervals.incrementAndGet();
+	}
+
+
+	private Map<String, Long> byRegion(AtomicLongArray values) {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+
+		for (int i = 0; i < regionKeys.length; i++) {
+			result.put(regionKeys[i], values.get(i));
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getChangesIn() {
+		return changesIn.get();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getIntervals() {
+		return intervals.get();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getSpilledIntervals() {
+		return spilledIntervals.get();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<String, Double> getStageSeconds() {
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+
+		for (Stage stage : Stage.values()) {
+			result.put(stage.name(), stageNanos.get(stage.ordinal()) / 1e9);
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<String, Long> getRegionChangesIn() {
+		return byRegion(regionChangesIn);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<String, Long> getRegionChangesEmitted() {
+		return byRegion(regionChangesEmitted);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<String, Long> getRegionBytesWritten() {
+		return byRegion(regionBytesWritten);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<String, LatencySnapshot> getRegionLag() {
+		Map<String, LatencySnapshot> result = new LinkedHashMap<String, LatencySnapshot>();
+
+		for (int i = 0; i < regionKeys.length; i++) {
+			result.put(regionKeys[i], regionLag[i].getSnapshot());
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public LatencySnapshot getIntervalTime() {
+		return intervalTime.getSnapshot();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getTrackedIds() {
+		return trackedIds;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getRegionSets() {
+		return regionSets;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getSpooledBytes() {
+		return spooledBytes;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+
+	/**
+	 * Registers the metrics with the platform MBean server. Failures are
+	 * logged, metrics are never worth failing the replication for.
+	 *
+	 * @param name
+	 *            Distinguishes spliters within the same JVM.
+	 */
+	public void register(String name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			objectName = new ObjectName("org.openstreetmap.osmosis.replication:type=ReplicationFileRegionSpliter,name="
+					+ ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			LOG.log(Level.WARNING, "Unable to register the spliter metrics.", e);
+			objectName = null;
+		}
+	}
+
+
+	/**
+	 * Removes the metrics from the platform MBean server if registered.
+	 */
+	public void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				LOG.log(Level.WARNING, "Unable to unregister the spliter metrics.", e);
+			}
+			objectName = null;
+		}
+	}
+
+
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+
+	private static void writeHeader(Writer writer, String name, String type, String help) throws IOException {
+		writer.write("# HELP " + PREFIX + name + " " + help + "\n");
+		writer.write("# TYPE " + PREFIX + name + " " + type + "\n");
+	}
+
+
+	private void writeRegionMetric(Writer writer, String name, String help, AtomicLongArray values)
+			throws IOException {
+		writeHeader(writer, name, "counter", help);
+		for (int i = 0; i < regionKeys.length; i++) {
+			writer.write(PREFIX + name + "{region=\"" + escapeLabel(regionKeys[i]) + "\"} " + values.get(i) + "\n");
+		}
+	}
+
+
+	private static void writeSummary(Writer writer, String name, String labels, LatencyHistogram histogram)
+			throws IOException {
+		String separator = labels.length() > 0 ? labels + "," : "";
+		double[] quantiles = {0.5, 0.99};
+
+		for (double quantile : quantiles) {
+			writer.write(PREFIX + name + "{" + separator + "quantile=\"" + quantile + "\"} "
+					+ histogram.getValueAtPercentile(quantile * 100) / 1e3 + "\n");
+		}
+		writer.write(PREFIX + name + "{" + separator + "quantile=\"1\"} " + histogram.getMax() / 1e3 + "\n");
+		if (labels.length() > 0) {
+			labels = "{" + labels + "}";
+		}
+		writer.write(PREFIX + name + "_sum" + labels + " " + histogram.getSum() / 1e3 + "\n");
+		writer.write(PREFIX + name + "_count" + labels + " " + histogram.getCount() + "\n");
+	}
+
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format, as read by
+	 * the node exporter text file collector. The file is replaced atomically.
+	 *
+	 * @param file
+	 *            The file to write.
+	 */
+	public void writePrometheusFile(File file) {
+		File tmpFile = new File(file.getPath() + ".tmp");
+
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+
+			try {
+				writeHeader(writer, "changes_in_total", "counter", "Changes read from replication files.");
+				writer.write(PREFIX + "changes_in_total " + changesIn.get() + "\n");
+				writeHeader(writer, "intervals_total", "counter", "Intervals saved.");
+				writer.write(PREFIX + "intervals_total " + intervals.get() + "\n");
+				writeHeader(writer, "spilled_intervals_total", "counter",
+						"Intervals whose spool exceeded the memory limit.");
+				writer.write(PREFIX + "spilled_intervals_total " + spilledIntervals.get() + "\n");
+				writeHeader(writer, "spilled_bytes_total", "counter",
+						"Size of the held back changes moved to temporary files.");
+				writer.write(PREFIX + "spilled_bytes_total " + spilledBytes.get() + "\n");
+
+				writeHeader(writer, "stage_seconds_total", "counter", "Time spent in each stage.");
+				for (Stage stage : Stage.values()) {
+					writer.write(PREFIX + "stage_seconds_total{stage=\"" + stage.name().toLowerCase() + "\"} "
+							+ stageNanos.get(stage.ordinal()) / 1e9 + "\n");
+				}
+
+				writeRegionMetric(writer, "region_changes_in_total", "Changes found within each region.",
+						regionChangesIn);
+				writeRegionMetric(writer, "region_changes_emitted_total", "Changes written to each region.",
+						regionChangesEmitted);
+				writeRegionMetric(writer, "region_bytes_written_total", "Size of the files written for each region.",
+						regionBytesWritten);
+
+				writeHeader(writer, "region_lag_seconds", "summary",
+						"Time from the oldest change of an interval until the region was written.");
+				for (int i = 0; i < regionKeys.length; i++) {
+					writeSummary(writer, "region_lag_seconds", "region=\"" + escapeLabel(regionKeys[i]) + "\"",
+							regionLag[i]);
+				}
+				writeHeader(writer, "interval_seconds", "summary", "Time taken to process each interval.");
+				writeSummary(writer, "interval_seconds", "", intervalTime);
+
+				writeHeader(writer, "tracked_ids", "gauge", "Ids tracked by the filter in the last interval.");
+				writer.write(PREFIX + "tracked_ids " + trackedIds + "\n");
+				writeHeader(writer, "region_sets", "gauge", "Distinct region sets in the last interval.");
+				writer.write(PREFIX + "region_sets " + regionSets + "\n");
+				writeHeader(writer, "spooled_bytes", "gauge", "Size of the changes held back in the last interval.");
+				writer.write(PREFIX + "spooled_bytes " + spooledBytes + "\n");
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			throw new OsmosisRuntimeException("Unable to write metrics file " + tmpFile + ".", e);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			throw new OsmosisRuntimeException("Unable to rename " + tmpFile + " to " + file + ".");
+		}
+	}
+
+
+	/**
+	 * The stages a thread is in, innermost last.
+	 */
+	private static class StageClock {
+		private int[] stages = new int[8];
+		private int depth;
+		private long mark;
+	}
+}
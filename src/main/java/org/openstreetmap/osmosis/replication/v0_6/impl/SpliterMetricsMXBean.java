@@ -0,0 +1,124 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Map;
+
+/**
+ * The management interface of the replication file spliter metrics. Counters
+ * accumulate over the life of the spliter, gauges hold the value sampled at
+ * the end of the last interval.
+ */
+public interface SpliterMetricsMXBean {
+
+	/**
+	 * Returns the number of changes read from replication files.
+	 *
+	 * @return The change count.
+	 */
+	long getChangesIn();
+
+
+	/**
+	 * Returns the number of intervals saved.
+	 *
+	 * @return The interval count.
+	 */
+	long getIntervals();
+
+
+	/**
+	 * Returns the number of intervals whose spool exceeded its memory limit
+	 * and was moved to a temporary file.
+	 *
+	 * @return The interval count.
+	 */
+	long getSpilledIntervals();
+
+
+	/**
+	 * Returns the time spent in each stage, excluding the time spent in the
+	 * stages it calls into. Work on worker threads adds up over all threads.
+	 *
+	 * @return The seconds by stage name.
+	 */
+	Map<String, Double> getStageSeconds();
+
+
+	/**
+	 * Returns the number of changes found within each region as they arrived,
+	 * before completing ways and relations.
+	 *
+	 * @return The change count by region key.
+	 */
+	Map<String, Long> getRegionChangesIn();
+
+
+	/**
+	 * Returns the number of changes written to each region.
+	 *
+	 * @return The change count by region key.
+	 */
+	Map<String, Long> getRegionChangesEmitted();
+
+
+	/**
+	 * Returns the size of the change files written for each region.
+	 *
+	 * @return The byte count by region key.
+	 */
+	Map<String, Long> getRegionBytesWritten();
+
+
+	/**
+	 * Returns the freshness of each region in milliseconds: for every
+	 * interval, the time from the oldest change written to the region until
+	 * its file and state were written.
+	 *
+	 * @return The lag summary by region key.
+	 */
+	Map<String, LatencySnapshot> getRegionLag();
+
+
+	/**
+	 * Returns the wall clock time taken to process each interval, from
+	 * reading its replication files to saving its state, in milliseconds.
+	 *
+	 * @return The processing time summary.
+	 */
+	LatencySnapshot getIntervalTime();
+
+
+	/**
+	 * Returns the number of entity ids tracked by the filter in the last
+	 * interval.
+	 *
+	 * @return The id count.
+	 */
+	long getTrackedIds();
+
+
+	/**
+	 * Returns the number of distinct region sets in the last interval.
+	 *
+	 * @return The region set count.
+	 */
+	long getRegionSets();
+
+
+	/**
+	 * Returns the encoded size of the changes held back in the spool in the
+	 * last interval.
+	 *
+	 * @return The byte count.
+	 */
+	long getSpooledBytes();
+
+
+	/**
+	 * Returns the encoded size of the held back changes moved to temporary
+	 * files over all intervals.
+	 *
+	 * @return The byte count.
+	 */
+	long getSpilledBytes();
+}
@@ -0,0 +1,134 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+/**
+ * Charges the time spent in a change sink to a stage of the spliter metrics,
+ * and optionally counts the changes written to a region. Completing a region
+ * writer is also recorded as a flight recorder event. Batches are timed as a
+ * whole.
+ */
+public class StageTimingChangeSink implements BatchChangeSink {
+
+	private ChangeSink sink;
+	private SpliterMetrics metrics;
+	private SpliterMetrics.Stage stage;
+	private int region;
+	private long changes;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param sink
+	 *            The sink being timed.
+	 * @param metrics
+	 *            The metrics to record into.
+	 * @param stage
+	 *            The stage of the sink.
+	 * @param region
+	 *            The region index whose emitted changes are counted, or -1.
+	 */
+	public StageTimingChangeSink(ChangeSink sink, SpliterMetrics metrics, SpliterMetrics.Stage stage, int region) {
+		this.sink = sink;
+		this.metrics = metrics;
+		this.stage = stage;
+		this.region = region;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void initialize(Map<String, Object> metaData) {
+		metrics.enter(stage);
+		try {
+			sink.initialize(metaData);
+		} finally {
+			metrics.exit();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer change) {
+		changes++;
+		if (region >= 0) {
+			metrics.addRegionChangeEmitted(region, change.getEntityContainer().getEntity().getTimestamp());
+		}
+
+		metrics.enter(stage);
+		try {
+			sink.process(change);
+		} finally {
+			metrics.exit();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void process(ChangeContainer[] batch, int count) {
+		changes += count;
+		if (region >= 0) {
+			for (int i = 0; i < count; i++) {
+				metrics.addRegionChangeEmitted(region, batch[i].getEntityContainer().getEntity().getTimestamp());
+			}
+		}
+
+		metrics.enter(stage);
+		try {
+			ChangeBatcher.process(sink, batch, count);
+		} finally {
+			metrics.exit();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void complete() {
+		RegionWriteEvent event = null;
+
+		if (region >= 0) {
+			event = new RegionWriteEvent(metrics.getRegionKey(region), changes);
+		}
+
+		metrics.enter(stage);
+		try {
+			sink.complete();
+		} finally {
+			metrics.exit();
+		}
+
+		if (event != null) {
+			event.commit();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release() {
+		metrics.enter(stage);
+		try {
+			sink.release();
+		} finally {
+			metrics.exit();
+		}
+	}
+}
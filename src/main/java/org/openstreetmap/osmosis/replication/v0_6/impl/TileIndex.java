@@ -0,0 +1,202 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.util.FixedPrecisionCoordinateConvertor;
+
+/**
+ * Locates the slippy map tile containing a point, every tile of a zoom level
+ * being a region. The tile is computed from the coordinates, so the cost of a
+ * lookup does not depend on the number of tiles.
+ * <p>
+ * Tile x and y are combined into the region index y * 2^zoom + x. A point
+ * lying on the edge between two tiles belongs to the tile to its east or
+ * south, points beyond the latitude limit of the projection belong to no
+ * tile.
+ */
+public class TileIndex implements RegionLocator {
+
+	/**
+	 * The highest zoom level supported, it has about a million tiles.
+	 */
+	public static final int MAX_ZOOM = 10;
+
+	private int zoom;
+	private int tilesPerAxis;
+	// Tile edges in fixed precision, one more than there are tiles per axis.
+	private int[] columnLeft;
+	private int[] rowTop;
+
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param zoom
+	 *            The zoom level of the tiles.
+	 */
+	public TileIndex(int zoom) {
+		if (zoom < 0 || zoom > MAX_ZOOM) {
+			throw new OsmosisRuntimeException("Tile zoom " + zoom + " is not between 0 and " + MAX_ZOOM + ".");
+		}
+
+		this.zoom = zoom;
+		tilesPerAxis = 1 << zoom;
+
+		// The edges are taken from the tile bounds so that a point on an edge
+		// is assigned consistently with them.
+		columnLeft = new int[tilesPerAxis + 1];
+		rowTop = new int[tilesPerAxis + 1];
+		for (int i = 0; i <= tilesPerAxis; i++) {
+			columnLeft[i] = FixedPrecisionCoordinateConvertor.convertToFixed(xToLon(zoom, i));
+			rowTop[i] = FixedPrecisionCoordinateConvertor.convertToFixed(yToLat(zoom, i));
+		}
+	}
+
+
+	/**
+	 * Returns the longitude of the western edge of a tile column.
+	 *
+	 * @param zoom
+	 *            The zoom level.
+	 * @param x
+	 *            The tile x coordinate.
+	 * @return The longitude.
+	 */
+	public static double xToLon(int zoom, int x) {
+		double unit = 360 / Math.pow(2, zoom);
+		return -180 + x * unit;
+	}
+
+
+	private static double projectF(double lat) {
+		// Project latitude to mercator
+		return Math.log(Math.tan(lat) + 1 / Math.cos(lat));
+	}
+
+
+	private static double projectMercToLat(double y) {
+		return Math.toDegrees(Math.atan(Math.sinh(y)));
+	}
+
+
+	/**
+	 * Returns the latitude of the northern edge of a tile row.
+	 *
+	 * @param zoom
+	 *            The zoom level.
+	 * @param y
+	 *            The tile y coordinate.
+	 * @return The latitude.
+	 */
+	public static double yToLat(int zoom, int y) {
+
+		// Convert zoom/y to mercator
+
+		// Get maximum range of mercator coordinates
+		double limitY = projectF(Math.atan(Math.sinh(Math.PI)));
+		double limitY2 = projectF((Math.atan(Math.sinh(-Math.PI))));
+		double rangeY = limitY - limitY2;
+
+		double unit = 1 / Math.pow(2, zoom);
+		double relY = limitY - rangeY * y * unit;
+
+		// Mercator to latitude
+		return projectMercToLat(relY);
+	}
+
+
+	/**
+	 * Returns the zoom level of the tiles.
+	 *
+	 * @return The zoom level.
+	 */
+	public int getZoom() {
+		return zoom;
+	}
+
+
+	/**
+	 * Returns the tile x coordinate of a region index.
+	 *
+	 * @param tile
+	 *            The region index of the tile.
+	 * @return The x coordinate.
+	 */
+	public int getX(int tile) {
+		return tile & (tilesPerAxis - 1);
+	}
+
+
+	/**
+	 * Returns the tile y coordinate of a region index.
+	 *
+	 * @param tile
+	 *            The region index of the tile.
+	 * @return The y coordinate.
+	 */
+	public int getY(int tile) {
+		return tile >> zoom;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getRegionCount() {
+		return tilesPerAxis * tilesPerAxis;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int findRegions(double latitude, double longitude, int[] result) {
+		return findRegions(
+				FixedPrecisionCoordinateConvertor.convertToFixed(latitude),
+				FixedPrecisionCoordinateConvertor.convertToFixed(longitude),
+				result);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int findRegions(int latitude, int longitude, int[] result) {
+		int x;
+		int y;
+
+		if (latitude > rowTop[0] || latitude < rowTop[tilesPerAxis]
+				|| longitude < columnLeft[0] || longitude > columnLeft[tilesPerAxis]) {
+			return 0;
+		}
+
+		// Computed in floating point, then corrected by at most a tile where
+		// rounding disagrees with the fixed precision edges.
+		x = clamp((int) Math.floor(
+				(FixedPrecisionCoordinateConvertor.convertToDouble(longitude) + 180) / 360 * tilesPerAxis));
+		if (longitude < columnLeft[x]) {
+			x--;
+		} else if (x < tilesPerAxis - 1 && longitude >= columnLeft[x + 1]) {
+			x++;
+		}
+
+		y = clamp((int) Math.floor((1 - projectF(Math.toRadians(
+				FixedPrecisionCoordinateConvertor.convertToDouble(latitude))) / Math.PI) / 2 * tilesPerAxis));
+		if (latitude > rowTop[y]) {
+			y--;
+		} else if (y < tilesPerAxis - 1 && latitude <= rowTop[y + 1]) {
+			y++;
+		}
+
+		result[0] = (y << zoom) | x;
+		return 1;
+	}
+
+
+	private int clamp(int coordinate) {
+		return Math.max(0, Math.min(coordinate, tilesPerAxis - 1));
+	}
+}
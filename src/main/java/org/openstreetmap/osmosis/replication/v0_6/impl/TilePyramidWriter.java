@@ -0,0 +1,170 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+
+/**
+ * Writes the changes of an interval into one file per tile of a
+ * {@link TileIndex}, laid out as zoom/x/y below a directory. Most tiles have
+ * no changes, a tile file is only created once its first change arrives.
+ * The files are written through an {@link OutputFilePool} bounding the
+ * number of them held open.
+ */
+public class TilePyramidWriter {
+
+	private static final String DATA_FILE_SUFFIX = ".osc.gz";
+
+	private TileIndex tileIndex;
+	private File directory;
+	private OutputFilePool pool;
+	private int tileCount;
+
+
+	/**
+	 * Creates a new instance. Files left in the directory by an earlier
+	 * attempt at the interval are removed.
+	 *
+	 * @param tileIndex
+	 *            The tiles to be written.
+	 * @param directory
+	 *            The directory receiving the tile files.
+	 * @param pool
+	 *            The pool providing the outputs of the tile files.
+	 */
+	public TilePyramidWriter(TileIndex tileIndex, File directory, OutputFilePool pool) {
+		this.tileIndex = tileIndex;
+		this.directory = directory;
+		this.pool = pool;
+
+		if (directory.exists()) {
+			deleteContents(directory);
+		}
+	}
+
+
+	private void deleteContents(File parent) {
+		File[] files = parent.listFiles();
+
+		if (files == null) {
+			throw new OsmosisRuntimeException("Unable to list directory " + parent + ".");
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				deleteContents(file);
+			}
+			if (!file.delete()) {
+				throw new OsmosisRuntimeException("Unable to delete " + file + ".");
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the file of a tile.
+	 *
+	 * @param tile
+	 *            The region index of the tile.
+	 * @return The tile file.
+	 */
+	public File getTileFile(int tile) {
+		return new File(directory, tileIndex.getZoom() + File.separator + tileIndex.getX(tile) + File.separator
+				+ tileIndex.getY(tile) + DATA_FILE_SUFFIX);
+	}
+
+
+	/**
+	 * Creates the sinks of all tiles, in region index order.
+	 *
+	 * @return The tile sinks.
+	 */
+	public List<ChangeSink> getTileSinks() {
+		List<ChangeSink> sinks = new ArrayList<ChangeSink>(tileIndex.getRegionCount());
+
+		for (int i = 0; i < tileIndex.getRegionCount(); i++) {
+			sinks.add(new TileSink(i));
+		}
+
+		return sinks;
+	}
+
+
+	/**
+	 * Returns the number of tile files written.
+	 *
+	 * @return The tile count.
+	 */
+	public int getTileCount() {
+		return tileCount;
+	}
+
+
+	/**
+	 * Opens the file of its tile on the first change.
+	 */
+	private class TileSink implements BatchChangeSink {
+		private int tile;
+		private SharedXmlChangeWriter writer;
+
+
+		TileSink(int tile) {
+			this.tile = tile;
+		}
+
+
+		private SharedXmlChangeWriter getWriter() {
+			if (writer == null) {
+				File file = getTileFile(tile);
+				File parent = file.getParentFile();
+
+				if (!parent.exists() && !parent.mkdirs()) {
+					throw new OsmosisRuntimeException("Unable to create directory " + parent + ".");
+				}
+				writer = new SharedXmlChangeWriter(file, pool);
+				tileCount++;
+			}
+
+			return writer;
+		}
+
+
+		@Override
+		public void initialize(Map<String, Object> metaData) {
+			// The file is opened by the first change.
+		}
+
+
+		@Override
+		public void process(ChangeContainer change) {
+			getWriter().process(change);
+		}
+
+
+		@Override
+		public void process(ChangeContainer[] changes, int count) {
+			getWriter().process(changes, count);
+		}
+
+
+		@Override
+		public void complete() {
+			if (writer != null) {
+				writer.complete();
+			}
+		}
+
+
+		@Override
+		public void release() {
+			if (writer != null) {
+				writer.release();
+			}
+		}
+	}
+}
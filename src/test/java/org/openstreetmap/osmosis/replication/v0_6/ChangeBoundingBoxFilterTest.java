@@ -1,23 +1,38 @@
 // This software is released into the Public Domain.  See copying.txt for details.
 package org.openstreetmap.osmosis.replication.v0_6;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
 import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
 import org.openstreetmap.osmosis.core.domain.v0_6.Node;
 import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
 import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
 import org.openstreetmap.osmosis.core.filter.common.IdTrackerType;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
 import org.openstreetmap.osmosis.replication.v0_6.ChangeAreaFilter;
 import org.openstreetmap.osmosis.replication.v0_6.ChangeBoundingBoxFilter;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
 import org.openstreetmap.osmosis.testutil.v0_6.SinkChangeInspector;
 
 
@@ -145,4 +160,156 @@ public class ChangeBoundingBoxFilterTest {
 		        "Node lying on South edge of filter area not considered inside area",
 		        simpleAreaFilter.isNodeWithinArea(edgeNodeSouth));
 	}
+
+
+	/**
+	 * Test nodes on both sides of the antimeridian with a box crossing it.
+	 */
+	@Test
+	public final void testIsNodeWithinAreaAntimeridian() {
+		ChangeAreaFilter antimeridianFilter = new ChangeBoundingBoxFilter(
+		        IdTrackerType.Dynamic, 170, -170, 20, -20, false, false, false, false);
+		OsmUser user = new OsmUser(12, "OsmosisTest");
+		List<Tag> tags = new ArrayList<Tag>();
+
+		assertTrue(antimeridianFilter.isNodeWithinArea(
+		        new Node(new CommonEntityData(1, 0, new Date(), user, 0, tags), 10, 175)));
+		assertTrue(antimeridianFilter.isNodeWithinArea(
+		        new Node(new CommonEntityData(2, 0, new Date(), user, 0, tags), 10, -175)));
+		assertFalse(antimeridianFilter.isNodeWithinArea(
+		        new Node(new CommonEntityData(3, 0, new Date(), user, 0, tags), 10, 0)));
+	}
+
+
+	/**
+	 * Test that a batch passes on the nodes within the area in input order.
+	 */
+	@Test
+	public final void testProcessBatch() {
+		ChangeContainer[] changes = new ChangeContainer[] {
+		        new ChangeContainer(new NodeContainer(inAreaNode), ChangeAction.Create),
+		        new ChangeContainer(new NodeContainer(outOfAreaNode), ChangeAction.Create),
+		        new ChangeContainer(new NodeContainer(edgeNodeEast), ChangeAction.Modify)};
+		List<Long> processedIds = new ArrayList<Long>();
+
+		simpleAreaFilter.process(changes, changes.length);
+		for (ChangeContainer change : entityInspector.getProcessedChanges()) {
+			processedIds.add(change.getEntityContainer().getEntity().getId());
+		}
+
+		assertEquals(Arrays.asList(1234L, 1236L), processedIds);
+	}
+
+
+	/**
+	 * Test that classifying nodes doesn't allocate.
+	 */
+	@Test
+	public final void testIsNodeWithinAreaAllocationFree() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+		long threadId = Thread.currentThread().getId();
+		int inside = 0;
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up, the second one is measured.
+			long before = allocationBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < 100000; i++) {
+				if (simpleAreaFilter.isNodeWithinArea(inAreaNode)) {
+					inside++;
+				}
+				if (simpleAreaFilter.isNodeWithinArea(outOfAreaNode)) {
+					inside++;
+				}
+			}
+			long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+			if (round == 1) {
+				// Allow for the measurement itself, far less than a byte per call.
+				assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+			}
+		}
+		assertTrue(inside == 200000);
+	}
+
+
+	/**
+	 * Test that a relation is placed through the stored location of an
+	 * unchanged node member.
+	 *
+	 * @throws IOException
+	 *             if the temporary file cannot be created.
+	 */
+	@Test
+	public final void testStoredRelationNodeMember() throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		ChangeAreaFilter filter;
+		SinkChangeInspector inspector;
+		Relation relation = new Relation(new CommonEntityData(50, 0, new Date(), new OsmUser(12, "OsmosisTest"), 0,
+				new ArrayList<Tag>()), Arrays.asList(new RelationMember(1234, EntityType.Node, "")));
+
+		try {
+			// The first stream only records the node location.
+			filter = new ChangeBoundingBoxFilter(IdTrackerType.Dynamic, -20, 20, 20, -20, false, false, false,
+					false);
+			filter.setNodeLocationStore(new NodeLocationStore(file));
+			filter.setChangeSink(new SinkChangeInspector());
+			filter.process(new ChangeContainer(new NodeContainer(inAreaNode), ChangeAction.Create));
+			filter.complete();
+			filter.release();
+
+			inspector = new SinkChangeInspector();
+			filter = new ChangeBoundingBoxFilter(IdTrackerType.Dynamic, -20, 20, 20, -20, false, false, false,
+					false);
+			filter.setNodeLocationStore(new NodeLocationStore(file));
+			filter.setChangeSink(inspector);
+			filter.process(new ChangeContainer(new RelationContainer(relation), ChangeAction.Modify));
+			filter.complete();
+			filter.release();
+
+			assertEquals(50, inspector.getLastChangeContainer().getEntityContainer().getEntity().getId());
+		} finally {
+			file.delete();
+		}
+	}
+
+
+	/**
+	 * Test that a filter only testing nodes also places a relation through
+	 * the stored location of an unchanged node member.
+	 *
+	 * @throws IOException
+	 *             if the temporary file cannot be created.
+	 */
+	@Test
+	public final void testStoredLocationWithNodeTestOnly() throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		NodeLocationStore store = new NodeLocationStore(file);
+		SinkChangeInspector inspector = new SinkChangeInspector();
+		Relation relation = new Relation(new CommonEntityData(50, 0, new Date(), new OsmUser(12, "OsmosisTest"), 0,
+				new ArrayList<Tag>()), Arrays.asList(new RelationMember(1234, EntityType.Node, "")));
+		ChangeAreaFilter filter = new ChangeAreaFilter(IdTrackerType.Dynamic, false, false, false, false) {
+			@Override
+			protected boolean isNodeWithinArea(Node node) {
+				return node.getLatitude() >= 0 && node.getLongitude() >= 0;
+			}
+		};
+
+		try {
+			store.put(1234, 10, 10);
+			store.commit();
+			filter.setNodeLocationStore(store);
+			filter.setChangeSink(inspector);
+			filter.process(new ChangeContainer(new RelationContainer(relation), ChangeAction.Modify));
+			filter.complete();
+			filter.release();
+
+			assertEquals(50, inspector.getLastChangeContainer().getEntityContainer().getEntity().getId());
+		} finally {
+			store.release();
+			file.delete();
+		}
+	}
 }
@@ -0,0 +1,169 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeBatcher;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeSinkWorkerPool;
+
+
+/**
+ * Tests running change sinks on worker threads.
+ */
+public class ChangeSinkWorkerPoolTest {
+
+	private ChangeContainer node(long id) {
+		return new ChangeContainer(new NodeContainer(new Node(new CommonEntityData(id, 1, new Date(),
+				new OsmUser(12, "OsmosisTest"), 0, new ArrayList<Tag>()), 0, 0)), ChangeAction.Modify);
+	}
+
+
+	/**
+	 * Every sink receives its calls in order and is complete after a flush.
+	 */
+	@Test
+	public void testOrderAndFlush() {
+		ChangeSinkWorkerPool pool = new ChangeSinkWorkerPool(3);
+		List<RecordingChangeSink> sinks = new ArrayList<RecordingChangeSink>();
+		List<ChangeSink> workerSinks = new ArrayList<ChangeSink>();
+
+		try {
+			for (int i = 0; i < 7; i++) {
+				RecordingChangeSink sink = new RecordingChangeSink();
+				sinks.add(sink);
+				workerSinks.add(pool.submit(sink));
+			}
+
+			for (int id = 0; id < 20000; id++) {
+				workerSinks.get(id % 7).process(node(id));
+			}
+			for (ChangeSink sink : workerSinks) {
+				sink.complete();
+			}
+			pool.flush();
+
+			for (int i = 0; i < 7; i++) {
+				RecordingChangeSink sink = sinks.get(i);
+				assertTrue(sink.completed);
+				long expected = i;
+				for (long id : sink.ids) {
+					assertEquals(expected, id);
+					expected += 7;
+				}
+				assertTrue(expected >= 20000);
+			}
+		} finally {
+			pool.release();
+		}
+	}
+
+
+	/**
+	 * Batches reach plain sinks in order although the producer reuses its
+	 * batch array.
+	 */
+	@Test
+	public void testBatches() {
+		ChangeSinkWorkerPool pool = new ChangeSinkWorkerPool(2);
+		RecordingChangeSink sink = new RecordingChangeSink();
+		ChangeBatcher batcher = new ChangeBatcher(pool.submit(sink), 100);
+
+		try {
+			for (int id = 0; id < 1050; id++) {
+				batcher.add(node(id));
+			}
+			batcher.flush();
+			pool.flush();
+
+			assertEquals(1050, sink.ids.size());
+			for (int id = 0; id < 1050; id++) {
+				assertEquals(id, sink.ids.get(id).longValue());
+			}
+		} finally {
+			pool.release();
+		}
+	}
+
+
+	/**
+	 * A failing sink is reported to the producer, releases still happen.
+	 */
+	@Test
+	public void testFailure() {
+		ChangeSinkWorkerPool pool = new ChangeSinkWorkerPool(2);
+		RecordingChangeSink sink = new RecordingChangeSink();
+		ChangeSink workerSink = pool.submit(sink);
+
+		sink.failOn = 5;
+		try {
+			for (int id = 0; id < 10; id++) {
+				workerSink.process(node(id));
+			}
+			pool.flush();
+			fail("The failure was not reported.");
+		} catch (OsmosisRuntimeException e) {
+			// Expected.
+		}
+
+		workerSink.release();
+		pool.release();
+		assertTrue(sink.released);
+		assertEquals(5, sink.ids.size());
+	}
+
+
+	/**
+	 * Records the ids it receives.
+	 */
+	private static class RecordingChangeSink implements ChangeSink {
+		private List<Long> ids = new ArrayList<Long>();
+		private long failOn = -1;
+		private boolean completed;
+		private boolean released;
+
+
+		@Override
+		public void initialize(Map<String, Object> metaData) {
+			// Nothing to do.
+		}
+
+
+		@Override
+		public void process(ChangeContainer change) {
+			long id = change.getEntityContainer().getEntity().getId();
+			if (id == failOn) {
+				throw new OsmosisRuntimeException("Failing on " + id + ".");
+			}
+			ids.add(id);
+		}
+
+
+		@Override
+		public void complete() {
+			completed = true;
+		}
+
+
+		@Override
+		public void release() {
+			released = true;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeSpool;
+
+
+/**
+ * Tests the change spool.
+ */
+public class ChangeSpoolTest {
+
+	private void checkSpool(ChangeSpool spool, int count, boolean expectSpilled) {
+		try {
+			for (int i = 0; i < count; i++) {
+				CommonEntityData data = new CommonEntityData(i, 1, new Date(i * 1000L), new OsmUser(12, "spooler"),
+						i / 10, new ArrayList<Tag>());
+				spool.add(new ChangeContainer(new NodeContainer(new Node(data, i / 100.0, -i / 100.0)),
+						ChangeAction.Modify));
+			}
+			assertEquals(expectSpilled, spool.isSpilled());
+			assertEquals(count, spool.size());
+			assertEquals(count > 0, spool.getByteCount() > 0);
+			assertEquals(expectSpilled ? spool.getByteCount() : 0, spool.getSpilledByteCount());
+
+			ReleasableIterator<ChangeContainer> iterator = spool.iterate();
+			try {
+				for (int i = 0; i < count; i++) {
+					Node node = (Node) iterator.next().getEntityContainer().getEntity();
+					assertEquals(i, node.getId());
+					assertEquals(i / 100.0, node.getLatitude(), 0);
+				}
+				assertFalse(iterator.hasNext());
+			} finally {
+				iterator.release();
+			}
+		} finally {
+			spool.release();
+		}
+	}
+
+
+	/**
+	 * A spool within its memory limit returns its changes without a file.
+	 */
+	@Test
+	public void testMemory() {
+		checkSpool(new ChangeSpool("cst"), 1000, false);
+		checkSpool(new ChangeSpool("cst"), 0, false);
+	}
+
+
+	/**
+	 * A spool exceeding its memory limit continues in a file and returns the
+	 * changes held in memory before those written to the file.
+	 */
+	@Test
+	public void testSpill() {
+		checkSpool(new ChangeSpool("cst", 1000), 1000, true);
+	}
+}
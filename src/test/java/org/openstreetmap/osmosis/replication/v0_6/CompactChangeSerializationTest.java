@@ -0,0 +1,166 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.lifecycle.ReleasableIterator;
+import org.openstreetmap.osmosis.core.sort.v0_6.ChangeForStreamableApplierComparator;
+import org.openstreetmap.osmosis.core.store.SimpleObjectStore;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.replication.v0_6.impl.CompactChangeSerializationFactory;
+import org.openstreetmap.osmosis.replication.v0_6.impl.CompactChangeSorter;
+import org.openstreetmap.osmosis.testutil.v0_6.SinkChangeInspector;
+
+
+/**
+ * Tests the compact change serialization.
+ */
+public class CompactChangeSerializationTest {
+
+	private CommonEntityData data(long id, Date timestamp, OsmUser user, String... tags) {
+		List<Tag> tagList = new ArrayList<Tag>();
+		for (int i = 0; i < tags.length; i += 2) {
+			tagList.add(new Tag(tags[i], tags[i + 1]));
+		}
+		return new CommonEntityData(id, 3, timestamp, user, 1234567, tagList);
+	}
+
+
+	private List<ChangeContainer> buildChanges() {
+		List<ChangeContainer> changes = new ArrayList<ChangeContainer>();
+		OsmUser user = new OsmUser(17, "mapper");
+		char[] longName = new char[100];
+		Arrays.fill(longName, '\u00e9');
+
+		changes.add(new ChangeContainer(new NodeContainer(new Node(
+				data(5, new Date(1400000000000L), user, "highway", "crossing", "name", new String(longName)),
+				51.5074001, -0.1277583)), ChangeAction.Create));
+		changes.add(new ChangeContainer(new NodeContainer(new Node(
+				data(-2, new Date(1300000000123L), OsmUser.NONE, "highway", "crossing"),
+				-33.8688197, 151.2092955)), ChangeAction.Modify));
+		// Not representable with seven decimals.
+		changes.add(new ChangeContainer(new NodeContainer(new Node(
+				data(Long.MAX_VALUE, null, user), Math.PI, -Math.E)), ChangeAction.Delete));
+
+		Way way = new Way(data(1L << 40, new Date(0), user, "name", "\u6771\u4eac"), Arrays.asList(
+				new WayNode(5), new WayNode(-2), new WayNode(1L << 35), new WayNode(5)));
+		way.getMetaTags().put("origin", Integer.valueOf(42));
+		changes.add(new ChangeContainer(new WayContainer(way), ChangeAction.Modify));
+
+		changes.add(new ChangeContainer(new RelationContainer(new Relation(
+				data(9, new Date(1400000000000L), new OsmUser(18, "other"), "type", "route"), Arrays.asList(
+						new RelationMember(1L << 40, EntityType.Way, "forward"),
+						new RelationMember(5, EntityType.Node, ""),
+						new RelationMember(9, EntityType.Relation, "forward")))), ChangeAction.Create));
+
+		return changes;
+	}
+
+
+	private void assertChangeEquals(ChangeContainer expected, ChangeContainer actual) {
+		Entity expectedEntity = expected.getEntityContainer().getEntity();
+		Entity actualEntity = actual.getEntityContainer().getEntity();
+
+		assertEquals(expected.getAction(), actual.getAction());
+		assertEquals(expectedEntity, actualEntity);
+		assertEquals(expectedEntity.getTimestamp(), actualEntity.getTimestamp());
+		assertEquals(expectedEntity.getUser(), actualEntity.getUser());
+		assertEquals(expectedEntity.getChangesetId(), actualEntity.getChangesetId());
+		assertEquals(new ArrayList<Tag>(expectedEntity.getTags()).toString(),
+				new ArrayList<Tag>(actualEntity.getTags()).toString());
+		assertEquals(expectedEntity.getMetaTags().size(), actualEntity.getMetaTags().size());
+	}
+
+
+	/**
+	 * Changes read back from a store equal those written, including the
+	 * strings and users referenced from the tables.
+	 */
+	@Test
+	public void testRoundTrip() {
+		List<ChangeContainer> changes = buildChanges();
+
+		for (boolean useCompression : new boolean[] {false, true}) {
+			SimpleObjectStore<ChangeContainer> store = new SimpleObjectStore<ChangeContainer>(
+					new CompactChangeSerializationFactory(), "cct", useCompression);
+			try {
+				// Written twice so that the second pass uses the tables.
+				for (int pass = 0; pass < 2; pass++) {
+					for (ChangeContainer change : changes) {
+						store.add(change);
+					}
+				}
+
+				ReleasableIterator<ChangeContainer> iterator = store.iterate();
+				try {
+					for (int pass = 0; pass < 2; pass++) {
+						for (ChangeContainer change : changes) {
+							assertChangeEquals(change, iterator.next());
+						}
+					}
+					assertFalse(iterator.hasNext());
+				} finally {
+					iterator.release();
+				}
+			} finally {
+				store.release();
+			}
+		}
+	}
+
+
+	/**
+	 * The sorter delivers the changes in comparator order.
+	 */
+	@Test
+	public void testSorter() {
+		List<ChangeContainer> changes = buildChanges();
+		CompactChangeSorter sorter = new CompactChangeSorter(new ChangeForStreamableApplierComparator(), false);
+		SinkChangeInspector inspector = new SinkChangeInspector();
+
+		sorter.setChangeSink(inspector);
+		for (int i = changes.size() - 1; i >= 0; i--) {
+			sorter.process(changes.get(i));
+		}
+		sorter.complete();
+		sorter.release();
+
+		List<ChangeContainer> processed = new ArrayList<ChangeContainer>();
+		for (ChangeContainer change : inspector.getProcessedChanges()) {
+			processed.add(change);
+		}
+		assertEquals(changes.size(), processed.size());
+		for (int i = 1; i < processed.size(); i++) {
+			assertFalse(new ChangeForStreamableApplierComparator().compare(processed.get(i - 1),
+					processed.get(i)) > 0);
+		}
+		for (ChangeContainer change : processed) {
+			Entity entity = change.getEntityContainer().getEntity();
+			if (entity.getId() == -2) {
+				assertSame(OsmUser.NONE, entity.getUser());
+			}
+		}
+	}
+}
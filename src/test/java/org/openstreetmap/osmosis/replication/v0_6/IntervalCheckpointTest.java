@@ -0,0 +1,139 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.replication.common.ReplicationState;
+import org.openstreetmap.osmosis.replication.v0_6.impl.IntervalCheckpoint;
+
+
+/**
+ * Tests the checkpoint of an open interval.
+ */
+public class IntervalCheckpointTest {
+
+	private File directory;
+
+
+	/**
+	 * Performs pre-test activities.
+	 *
+	 * @throws IOException
+	 *             if the temporary directory cannot be created.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("checkpoint", "");
+		directory.delete();
+	}
+
+
+	/**
+	 * Performs post-test activities.
+	 */
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+
+	private ChangeContainer node(long id) {
+		CommonEntityData data = new CommonEntityData(id, 1, new Date(1000), new OsmUser(12, "OsmosisTest"), 0,
+				new ArrayList<Tag>());
+		return new ChangeContainer(new NodeContainer(new Node(data, 1, 2)), ChangeAction.Create);
+	}
+
+
+	private List<Long> replay(IntervalCheckpoint checkpoint) {
+		final List<Long> ids = new ArrayList<Long>();
+
+		checkpoint.replay(new ChangeSink() {
+			@Override
+			public void initialize(Map<String, Object> metaData) {
+				throw new IllegalStateException();
+			}
+
+			@Override
+			public void process(ChangeContainer change) {
+				assertEquals(new Date(1000), change.getEntityContainer().getEntity().getTimestamp());
+				ids.add(change.getEntityContainer().getEntity().getId());
+			}
+
+			@Override
+			public void complete() {
+				throw new IllegalStateException();
+			}
+
+			@Override
+			public void release() {
+				// Do nothing.
+			}
+		});
+
+		return ids;
+	}
+
+
+	/**
+	 * Only checkpointed segments are replayed by a new instance, together with
+	 * the states recorded by the last checkpoint.
+	 */
+	@Test
+	public void testResume() {
+		IntervalCheckpoint checkpoint = new IntervalCheckpoint(directory);
+		ReplicationState intervalState = new ReplicationState(new Date(3600000), 5);
+
+		assertFalse(checkpoint.exists());
+		checkpoint.getSegmentSink().process(node(1));
+		checkpoint.getSegmentSink().process(node(2));
+		checkpoint.checkpoint(intervalState, new ReplicationState(new Date(60000), 100));
+		checkpoint.getSegmentSink().process(node(3));
+		checkpoint.checkpoint(intervalState, new ReplicationState(new Date(120000), 101));
+		// Lost by the crash below.
+		checkpoint.getSegmentSink().process(node(4));
+		checkpoint.release();
+
+		checkpoint = new IntervalCheckpoint(directory);
+		assertTrue(checkpoint.exists());
+		assertEquals(intervalState, checkpoint.getIntervalState());
+		assertEquals(new ReplicationState(new Date(120000), 101), checkpoint.getDownloadState());
+		assertEquals(Arrays.asList(1L, 2L, 3L), replay(checkpoint));
+
+		// The resumed interval continues with a new segment.
+		checkpoint.getSegmentSink().process(node(5));
+		checkpoint.checkpoint(intervalState, new ReplicationState(new Date(180000), 102));
+		assertEquals(Arrays.asList(1L, 2L, 3L, 5L), replay(checkpoint));
+
+		checkpoint.clear();
+		assertFalse(checkpoint.exists());
+		assertEquals(0, directory.listFiles().length);
+		assertEquals(0, replay(new IntervalCheckpoint(directory)).size());
+	}
+}
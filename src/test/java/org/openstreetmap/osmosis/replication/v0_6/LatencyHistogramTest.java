@@ -0,0 +1,68 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.replication.v0_6.impl.LatencyHistogram;
+
+
+/**
+ * Tests the latency histogram against exact percentiles.
+ */
+public class LatencyHistogramTest {
+
+	/**
+	 * Percentiles of a wide random distribution are within the bucket error.
+	 */
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(7);
+		long[] values = new long[100000];
+		long sum = 0;
+
+		for (int i = 0; i < values.length; i++) {
+			// Log-uniform between 1ms and about 12 days.
+			values[i] = (long) Math.exp(random.nextDouble() * 27.6);
+			histogram.record(values[i]);
+			sum += values[i];
+		}
+		Arrays.sort(values);
+
+		for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long reported = histogram.getValueAtPercentile(percentile);
+
+			assertTrue(percentile + "% reported " + reported + " for " + exact,
+					reported >= exact && reported <= exact + exact / 16 + 1);
+		}
+		assertEquals(values[values.length - 1], histogram.getMax());
+		assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+		assertEquals(sum, histogram.getSum());
+		assertEquals(values.length, histogram.getCount());
+	}
+
+
+	/**
+	 * Small values are exact, an empty histogram reports zeros.
+	 */
+	@Test
+	public void testSmallValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+		histogram.record(-5);
+
+		assertEquals(5, histogram.getSnapshot().getP50());
+		assertEquals(10, histogram.getSnapshot().getP99());
+		assertEquals(11, histogram.getSnapshot().getCount());
+	}
+}
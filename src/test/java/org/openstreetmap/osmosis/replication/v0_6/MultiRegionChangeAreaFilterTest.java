@@ -0,0 +1,546 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.sort.v0_6.ChangeForStreamableApplierComparator;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeFanOut;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ParentIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.Region;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionIndex;
+
+
+/**
+ * Tests the multi-region filter against one single region filter per region.
+ */
+public class MultiRegionChangeAreaFilterTest {
+
+	private List<Region> regions;
+	private List<ChangeContainer> changes;
+	private OsmUser user;
+
+
+	private CommonEntityData data(long id) {
+		return new CommonEntityData(id, 1, new Date(), user, 0, new ArrayList<Tag>());
+	}
+
+
+	private ChangeContainer node(long id, double latitude, double longitude) {
+		return new ChangeContainer(new NodeContainer(new Node(data(id), latitude, longitude)), ChangeAction.Modify);
+	}
+
+
+	private ChangeContainer way(long id, long... nodeIds) {
+		List<WayNode> wayNodes = new ArrayList<WayNode>();
+		for (long nodeId : nodeIds) {
+			wayNodes.add(new WayNode(nodeId));
+		}
+		return new ChangeContainer(new WayContainer(new Way(data(id), wayNodes)), ChangeAction.Modify);
+	}
+
+
+	private ChangeContainer relation(long id, EntityType memberType, long memberId) {
+		List<RelationMember> members = new ArrayList<RelationMember>();
+		members.add(new RelationMember(memberId, memberType, ""));
+		return new ChangeContainer(new RelationContainer(new Relation(data(id), members)), ChangeAction.Modify);
+	}
+
+
+	private Region region(String key, double left, double right, double top, double bottom) {
+		Region region = new Region();
+		region.setName(key);
+		region.setKey(key);
+		region.setBound(new Bound(right, left, top, bottom, ""));
+		return region;
+	}
+
+
+	/**
+	 * Performs pre-test activities.
+	 */
+	@Before
+	public void setUp() {
+		user = new OsmUser(12, "OsmosisTest");
+
+		regions = new ArrayList<Region>();
+		regions.add(region("a", -20, 20, 20, -20));
+		regions.add(region("b", 0, 40, 40, 0));
+		regions.add(region("c", 100, 110, 10, 0));
+
+		changes = new ArrayList<ChangeContainer>();
+		changes.add(node(1, 10, 10)); // a and b
+		changes.add(node(2, -10, -10)); // a
+		changes.add(node(3, 30, 30)); // b
+		changes.add(node(4, 60, 60)); // nowhere
+		changes.add(way(10, 2, 4)); // a, completes node 4
+		changes.add(way(11, 3, 4)); // b, completes node 4
+		changes.add(way(12, 4)); // nowhere
+		changes.add(way(13, 1, 2)); // a and b
+		changes.add(relation(20, EntityType.Way, 10)); // a
+		changes.add(relation(21, EntityType.Relation, 20)); // a
+		changes.add(relation(22, EntityType.Node, 4)); // nowhere
+		changes.add(relation(23, EntityType.Node, 3)); // b
+	}
+
+
+	private Set<String> runSingleRegion(Region region, boolean completeWays, boolean cascadingRelations) {
+		CollectingChangeSink sink = new CollectingChangeSink();
+		ChangeAreaFilter filter = new ChangeBoundingBoxFilter(ChangeIdTrackerType.Dynamic, region.getBound(), false,
+				completeWays, false, cascadingRelations);
+		filter.setChangeSink(sink);
+		for (ChangeContainer change : changes) {
+			filter.process(change);
+		}
+		filter.complete();
+		filter.release();
+		return sink.entities;
+	}
+
+
+	private List<Set<String>> runMultiRegion(boolean completeWays, boolean cascadingRelations) {
+		List<CollectingChangeSink> sinks = new ArrayList<CollectingChangeSink>();
+		List<Set<String>> results = new ArrayList<Set<String>>();
+		for (int i = 0; i < regions.size(); i++) {
+			sinks.add(new CollectingChangeSink());
+		}
+
+		MultiRegionChangeAreaFilter filter = new MultiRegionChangeAreaFilter(new RegionIndex(regions), sinks,
+				completeWays, false, cascadingRelations);
+		for (ChangeContainer change : changes) {
+			filter.process(change);
+		}
+		filter.complete();
+		filter.release();
+
+		for (CollectingChangeSink sink : sinks) {
+			results.add(sink.entities);
+		}
+		return results;
+	}
+
+
+	private void assertSameAsSingleRegion(boolean completeWays, boolean cascadingRelations) {
+		List<Set<String>> results = runMultiRegion(completeWays, cascadingRelations);
+
+		for (int i = 0; i < regions.size(); i++) {
+			assertEquals("Region " + regions.get(i).getKey(),
+					runSingleRegion(regions.get(i), completeWays, cascadingRelations), results.get(i));
+		}
+	}
+
+
+	/**
+	 * Plain filtering.
+	 */
+	@Test
+	public void testPlain() {
+		assertSameAsSingleRegion(false, false);
+	}
+
+
+	/**
+	 * Filtering with complete ways, as used by the splitter.
+	 */
+	@Test
+	public void testCompleteWays() {
+		List<Set<String>> results = runMultiRegion(true, false);
+
+		assertEquals(new TreeSet<String>(Arrays.asList("Node1", "Node2", "Node4", "Way10", "Way13",
+				"Relation20", "Relation21")), results.get(0));
+		assertEquals(new TreeSet<String>(Arrays.asList("Node1", "Node2", "Node3", "Node4", "Way11", "Way13",
+				"Relation23")), results.get(1));
+		assertEquals(new TreeSet<String>(), results.get(2));
+
+		assertSameAsSingleRegion(true, false);
+	}
+
+
+	/**
+	 * Filtering with cascading relations.
+	 */
+	@Test
+	public void testCascadingRelations() {
+		assertSameAsSingleRegion(false, true);
+	}
+
+
+	/**
+	 * A sorted input stream yields sorted regions.
+	 */
+	@Test
+	public void testInputOrder() {
+		ChangeForStreamableApplierComparator comparator = new ChangeForStreamableApplierComparator();
+		List<CollectingChangeSink> sinks = new ArrayList<CollectingChangeSink>();
+		for (int i = 0; i < regions.size(); i++) {
+			sinks.add(new CollectingChangeSink());
+		}
+
+		Collections.sort(changes, comparator);
+		MultiRegionChangeAreaFilter filter = new MultiRegionChangeAreaFilter(new RegionIndex(regions), sinks,
+				true, false, false);
+		for (ChangeContainer change : changes) {
+			filter.process(change);
+		}
+		filter.complete();
+		filter.release();
+
+		assertEquals(Arrays.asList("Node1", "Node2", "Node4", "Way10", "Way13", "Relation20", "Relation21"),
+				sinks.get(0).order);
+		assertEquals(Arrays.asList("Node1", "Node2", "Node3", "Node4", "Way11", "Way13", "Relation23"),
+				sinks.get(1).order);
+	}
+
+
+	/**
+	 * A way whose nodes didn't change is placed through the node location
+	 * store filled by an earlier stream.
+	 *
+	 * @throws IOException
+	 *             if the temporary file cannot be created.
+	 */
+	@Test
+	public void testNodeLocationStore() throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		NodeLocationStore store = new NodeLocationStore(file);
+
+		try {
+			List<CollectingChangeSink> sinks = new ArrayList<CollectingChangeSink>();
+			for (int i = 0; i < regions.size(); i++) {
+				sinks.add(new CollectingChangeSink());
+			}
+
+			// The first stream only records the node locations.
+			MultiRegionChangeAreaFilter filter = new MultiRegionChangeAreaFilter(new RegionIndex(regions),
+					new ArrayList<ChangeSink>(sinks), true, false, false);
+			filter.setNodeLocationStore(store);
+			filter.process(node(3, 30, 30));
+			filter.process(node(5, 5, 105));
+			filter.complete();
+			filter.release();
+			store.commit();
+
+			sinks.clear();
+			for (int i = 0; i < regions.size(); i++) {
+				sinks.add(new CollectingChangeSink());
+			}
+
+			// The second stream only retags the way.
+			filter = new MultiRegionChangeAreaFilter(new RegionIndex(regions), sinks, true, false, false);
+			filter.setNodeLocationStore(store);
+			filter.process(way(30, 3, 5));
+			filter.complete();
+			filter.release();
+
+			assertEquals(new TreeSet<String>(), sinks.get(0).entities);
+			assertEquals(new TreeSet<String>(Arrays.asList("Way30")), sinks.get(1).entities);
+			assertEquals(new TreeSet<String>(Arrays.asList("Way30")), sinks.get(2).entities);
+		} finally {
+			store.release();
+			file.delete();
+		}
+	}
+
+
+	/**
+	 * A filter with lookup-only access places ways through the store but
+	 * leaves the node changes to be written by another filter.
+	 *
+	 * @throws IOException
+	 *             if the temporary file cannot be created.
+	 */
+	@Test
+	public void testLookupOnlyNodeLocationStore() throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		NodeLocationStore store = new NodeLocationStore(file);
+
+		try {
+			List<CollectingChangeSink> sinks = new ArrayList<CollectingChangeSink>();
+			for (int i = 0; i < regions.size(); i++) {
+				sinks.add(new CollectingChangeSink());
+			}
+
+			store.put(5, 5.0, 105.0);
+			store.commit();
+
+			MultiRegionChangeAreaFilter filter = new MultiRegionChangeAreaFilter(new RegionIndex(regions),
+					new ArrayList<ChangeSink>(sinks), true, false, false);
+			filter.setNodeLocationStore(store, false);
+			filter.process(node(3, 30, 30));
+			filter.process(way(30, 5));
+			filter.complete();
+			filter.release();
+
+			assertEquals(NodeLocationStore.MISSING, store.get(3));
+			assertEquals(new TreeSet<String>(Arrays.asList("Way30")), sinks.get(2).entities);
+		} finally {
+			store.release();
+			file.delete();
+		}
+	}
+
+
+	private List<CollectingChangeSink> runWithIndexes(NodeLocationStore store, ParentIndex index,
+			ChangeContainer... stream) {
+		return runWithIndexes(store, index, true, stream);
+	}
+
+
+	private List<CollectingChangeSink> runWithIndexes(NodeLocationStore store, ParentIndex index, boolean commit,
+			ChangeContainer... stream) {
+		List<CollectingChangeSink> sinks = new ArrayList<CollectingChangeSink>();
+		for (int i = 0; i < regions.size(); i++) {
+			sinks.add(new CollectingChangeSink());
+		}
+
+		MultiRegionChangeAreaFilter filter = new MultiRegionChangeAreaFilter(new RegionIndex(regions), sinks,
+				true, false, false);
+		filter.setNodeLocationStore(store);
+		filter.setParentIndex(index);
+		for (ChangeContainer change : stream) {
+			filter.process(change);
+		}
+		filter.complete();
+		filter.release();
+		if (commit) {
+			store.commit();
+			index.commit();
+		}
+
+		return sinks;
+	}
+
+
+	/**
+	 * An unchanged way and its relation follow a node moving into another
+	 * region.
+	 *
+	 * @throws IOException
+	 *             if the temporary files cannot be created.
+	 */
+	@Test
+	public void testParentIndex() throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		File directory = File.createTempFile("parentindex", "");
+		directory.delete();
+		NodeLocationStore store = new NodeLocationStore(file);
+		ParentIndex index = new ParentIndex(directory);
+
+		try {
+			List<CollectingChangeSink> sinks = runWithIndexes(store, index, node(2, -10, -10), node(6, -15, -15),
+					way(40, 2, 6), relation(41, EntityType.Way, 40));
+			assertEquals(new TreeSet<String>(Arrays.asList("Node2", "Node6", "Way40", "Relation41")),
+					sinks.get(0).entities);
+
+			// Node 2 moves from region a into region c, the unchanged way and
+			// relation follow it in stream order.
+			sinks = runWithIndexes(store, index, node(2, 5, 105), node(7, 6, 106), way(50, 7),
+					relation(60, EntityType.Way, 50));
+			assertEquals(new TreeSet<String>(), sinks.get(0).entities);
+			assertEquals(new TreeSet<String>(), sinks.get(1).entities);
+			assertEquals(Arrays.asList("Node2", "Node7", "Way40", "Way50", "Relation41", "Relation60"),
+					sinks.get(2).order);
+
+			// Moving within region c pulls nothing in.
+			sinks = runWithIndexes(store, index, node(2, 6, 106));
+			assertEquals(new TreeSet<String>(Arrays.asList("Node2")), sinks.get(2).entities);
+		} finally {
+			store.release();
+			index.release();
+			file.delete();
+			for (File segment : directory.listFiles()) {
+				segment.delete();
+			}
+			directory.delete();
+		}
+	}
+
+
+	/**
+	 * An interval processed again after failing to save finds the node
+	 * locations of the previous interval, its moved nodes still pull in their
+	 * parents.
+	 *
+	 * @throws IOException
+	 *             if the temporary files cannot be created.
+	 */
+	@Test
+	public void testIntervalProcessedAgain() throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		File directory = File.createTempFile("parentindex", "");
+		directory.delete();
+		NodeLocationStore store = new NodeLocationStore(file);
+		ParentIndex index = new ParentIndex(directory);
+
+		try {
+			runWithIndexes(store, index, node(2, -10, -10), node(6, -15, -15), way(40, 2, 6));
+
+			// The first attempt is not committed.
+			runWithIndexes(store, index, false, node(2, 5, 105));
+			store.release();
+			index.release();
+			store = new NodeLocationStore(file);
+			index = new ParentIndex(directory);
+
+			List<CollectingChangeSink> sinks = runWithIndexes(store, index, node(2, 5, 105));
+			assertEquals(Arrays.asList("Node2", "Way40"), sinks.get(2).order);
+		} finally {
+			store.release();
+			index.release();
+			file.delete();
+			for (File segment : directory.listFiles()) {
+				segment.delete();
+			}
+			directory.delete();
+		}
+	}
+
+
+	/**
+	 * Filters two intervals into regions a and d, d lying within a. Nested,
+	 * region d is filtered from the output of region a.
+	 */
+	private List<List<String>> runNestedIntervals(boolean nested, ChangeContainer[] first, ChangeContainer[] second)
+			throws IOException {
+		File file = File.createTempFile("nodelocations", ".dat");
+		File directory = File.createTempFile("parentindex", "");
+		directory.delete();
+		NodeLocationStore store = new NodeLocationStore(file);
+		ParentIndex index = new ParentIndex(directory);
+		Region a = regions.get(0);
+		Region d = region("d", 0, 10, 10, 0);
+		List<List<String>> results = new ArrayList<List<String>>();
+
+		try {
+			for (ChangeContainer[] stream : Arrays.asList(first, second)) {
+				CollectingChangeSink sinkA = new CollectingChangeSink();
+				CollectingChangeSink sinkD = new CollectingChangeSink();
+				MultiRegionChangeAreaFilter filter;
+
+				if (nested) {
+					MultiRegionChangeAreaFilter childFilter = new MultiRegionChangeAreaFilter(
+							new RegionIndex(Arrays.asList(d)), Arrays.asList(sinkD), true, false, false);
+					childFilter.setNodeLocationStore(store, false);
+					childFilter.setParentIndex(index, false);
+					filter = new MultiRegionChangeAreaFilter(new RegionIndex(Arrays.asList(a)),
+							Arrays.asList(new ChangeFanOut(sinkA, childFilter)), true, false, false);
+				} else {
+					filter = new MultiRegionChangeAreaFilter(new RegionIndex(Arrays.asList(a, d)),
+							Arrays.asList(sinkA, sinkD), true, false, false);
+				}
+				filter.setNodeLocationStore(store);
+				filter.setParentIndex(index);
+				for (ChangeContainer change : stream) {
+					filter.process(change);
+				}
+				filter.complete();
+				filter.release();
+				store.commit();
+				index.commit();
+
+				results.add(sinkA.order);
+				results.add(sinkD.order);
+			}
+		} finally {
+			store.release();
+			index.release();
+			file.delete();
+			for (File segment : directory.listFiles()) {
+				segment.delete();
+			}
+			directory.delete();
+		}
+
+		return results;
+	}
+
+
+	/**
+	 * A region filtered from the output of a region it lies within receives
+	 * the same changes as filtered from the whole stream. Parents pulled into
+	 * the outer region only are not passed on, parents of nodes moving into
+	 * the inner region within the outer one are.
+	 *
+	 * @throws IOException
+	 *             if the temporary files cannot be created.
+	 */
+	@Test
+	public void testNestedRegions() throws IOException {
+		ChangeContainer[] first = {node(1, 5, 5), node(2, -10, -10), node(8, 15, 15), node(9, 30, 30),
+			way(40, 2, 8), way(43, 1, 9), relation(41, EntityType.Way, 40)};
+		// Node 2 moves into d within a, node 9 moves into a outside of d.
+		ChangeContainer[] second = {node(2, 5, 6), node(9, -10, 10), way(44, 2)};
+		List<List<String>> flat = runNestedIntervals(false, first, second);
+		List<List<String>> nested = runNestedIntervals(true, first, second);
+
+		assertEquals(flat, nested);
+		assertEquals(Arrays.asList("Node2", "Way40", "Way44", "Relation41"), nested.get(3));
+		assertEquals(Arrays.asList("Node2", "Node9", "Way43", "Way44"), nested.get(2));
+	}
+
+
+	/**
+	 * Collects the type and id of every received entity.
+	 */
+	private static class CollectingChangeSink implements ChangeSink {
+		private Set<String> entities = new TreeSet<String>();
+		private List<String> order = new ArrayList<String>();
+
+
+		@Override
+		public void initialize(Map<String, Object> metaData) {
+			// Nothing to do.
+		}
+
+
+		@Override
+		public void process(ChangeContainer change) {
+			Entity entity = change.getEntityContainer().getEntity();
+			entities.add(entity.getType() + "" + entity.getId());
+			order.add(entity.getType() + "" + entity.getId());
+		}
+
+
+		@Override
+		public void complete() {
+			// Nothing to do.
+		}
+
+
+		@Override
+		public void release() {
+			// Nothing to do.
+		}
+	}
+}
@@ -0,0 +1,147 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.replication.v0_6.impl.NodeLocationStore;
+
+
+/**
+ * Tests the memory mapped node location store.
+ */
+public class NodeLocationStoreTest {
+
+	private File file;
+
+
+	/**
+	 * Performs pre-test activities.
+	 *
+	 * @throws IOException
+	 *             if the temporary file cannot be created.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("nodelocations", ".dat");
+	}
+
+
+	/**
+	 * Performs post-test activities.
+	 */
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+
+	/**
+	 * Stored locations are read back, unknown ids are missing.
+	 */
+	@Test
+	public void testPutGet() {
+		NodeLocationStore store = new NodeLocationStore(file);
+
+		try {
+			store.put(1, 374029690, -1220666460);
+			store.put(2, 0, 0);
+			store.put(100000000L, -900000000, 1800000000);
+
+			long location = store.get(1);
+			assertEquals(374029690, NodeLocationStore.getLatitude(location));
+			assertEquals(-1220666460, NodeLocationStore.getLongitude(location));
+
+			location = store.get(2);
+			assertEquals(0, NodeLocationStore.getLatitude(location));
+			assertEquals(0, NodeLocationStore.getLongitude(location));
+
+			location = store.get(100000000L);
+			assertEquals(-900000000, NodeLocationStore.getLatitude(location));
+			assertEquals(1800000000, NodeLocationStore.getLongitude(location));
+
+			assertEquals(NodeLocationStore.MISSING, store.get(3));
+			assertEquals(NodeLocationStore.MISSING, store.get(-1));
+			assertEquals(NodeLocationStore.MISSING, store.get(90000000000L));
+		} finally {
+			store.release();
+		}
+	}
+
+
+	/**
+	 * Removed locations are missing.
+	 */
+	@Test
+	public void testRemove() {
+		NodeLocationStore store = new NodeLocationStore(file);
+
+		try {
+			store.put(5, 10.5, 20.5);
+			store.remove(5);
+			store.remove(90000000000L);
+
+			assertEquals(NodeLocationStore.MISSING, store.get(5));
+		} finally {
+			store.release();
+		}
+	}
+
+
+	/**
+	 * Locations survive reopening the store.
+	 */
+	@Test
+	public void testPersistence() {
+		NodeLocationStore store = new NodeLocationStore(file);
+		store.put(42, 10.5, 20.25);
+		store.commit();
+		store.put(43, 10.5, 20.25);
+		store.release();
+
+		store = new NodeLocationStore(file);
+		try {
+			long location = store.get(42);
+			assertEquals(105000000, NodeLocationStore.getLatitude(location));
+			assertEquals(202500000, NodeLocationStore.getLongitude(location));
+			// Not committed before the store was released.
+			assertEquals(NodeLocationStore.MISSING, store.get(43));
+		} finally {
+			store.release();
+		}
+	}
+
+
+	/**
+	 * Pending updates are seen by queries, committed locations only change on
+	 * commit.
+	 */
+	@Test
+	public void testCommit() {
+		NodeLocationStore store = new NodeLocationStore(file);
+
+		try {
+			store.put(7, 10.5, 20.5);
+			store.put(8, 1.0, 2.0);
+			store.commit();
+
+			store.put(7, -10.5, -20.5);
+			store.remove(8);
+			assertEquals(-105000000, NodeLocationStore.getLatitude(store.get(7)));
+			assertEquals(105000000, NodeLocationStore.getLatitude(store.getCommitted(7)));
+			assertEquals(NodeLocationStore.MISSING, store.get(8));
+			assertEquals(10000000, NodeLocationStore.getLatitude(store.getCommitted(8)));
+
+			store.commit();
+			assertEquals(-205000000, NodeLocationStore.getLongitude(store.getCommitted(7)));
+			assertEquals(NodeLocationStore.MISSING, store.getCommitted(8));
+		} finally {
+			store.release();
+		}
+	}
+}
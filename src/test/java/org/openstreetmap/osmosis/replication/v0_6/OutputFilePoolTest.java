@@ -0,0 +1,145 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.util.MultiMemberGZIPInputStream;
+import org.openstreetmap.osmosis.replication.v0_6.impl.OutputFilePool;
+
+
+/**
+ * Tests the output file pool.
+ */
+public class OutputFilePoolTest {
+
+	private byte[] read(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = new MultiMemberGZIPInputStream(new FileInputStream(file));
+		byte[] buffer = new byte[4096];
+		int length;
+
+		try {
+			while ((length = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+		}
+
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * Outputs written in turn keep no more files open than allowed, and their
+	 * files hold all bytes across reopens.
+	 *
+	 * @throws IOException
+	 *             if a file cannot be accessed.
+	 */
+	@Test
+	public void testBoundedOpenFiles() throws IOException {
+		OutputFilePool pool = new OutputFilePool(2, 1000);
+		File[] files = new File[5];
+		OutputStream[] outputs = new OutputStream[files.length];
+		ByteArrayOutputStream[] expected = new ByteArrayOutputStream[files.length];
+		Random random = new Random(3);
+
+		try {
+			for (int i = 0; i < files.length; i++) {
+				files[i] = File.createTempFile("pooled", ".gz");
+				outputs[i] = pool.open(files[i]);
+				expected[i] = new ByteArrayOutputStream();
+			}
+
+			for (int round = 0; round < 200; round++) {
+				int i = random.nextInt(files.length);
+				byte[] data = new byte[random.nextInt(300)];
+
+				random.nextBytes(data);
+				outputs[i].write(data);
+				expected[i].write(data);
+				assertTrue(pool.getOpenFileCount() <= 2);
+			}
+			for (OutputStream output : outputs) {
+				output.close();
+			}
+
+			assertEquals(0, pool.getOpenFileCount());
+			assertTrue(pool.getReopenCount() > 0);
+			for (int i = 0; i < files.length; i++) {
+				assertArrayEquals(expected[i].toByteArray(), read(files[i]));
+			}
+		} finally {
+			for (File file : files) {
+				if (file != null) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Once the buffers exceed the limit, the largest ones are drained so that
+	 * many outputs sharing few files don't drain on every write.
+	 *
+	 * @throws IOException
+	 *             if a file cannot be accessed.
+	 */
+	@Test
+	public void testBufferLimit() throws IOException {
+		OutputFilePool pool = new OutputFilePool(4, 65536);
+		File[] files = new File[50];
+		OutputStream[] outputs = new OutputStream[files.length];
+		ByteArrayOutputStream[] expected = new ByteArrayOutputStream[files.length];
+		Random random = new Random(4);
+		long written = 0;
+
+		try {
+			for (int i = 0; i < files.length; i++) {
+				files[i] = File.createTempFile("pooled", ".gz");
+				outputs[i] = pool.open(files[i]);
+				expected[i] = new ByteArrayOutputStream();
+			}
+
+			for (int round = 0; round < 20000; round++) {
+				int i = random.nextInt(files.length);
+				byte[] data = new byte[100 + random.nextInt(200)];
+
+				random.nextBytes(data);
+				outputs[i].write(data);
+				expected[i].write(data);
+				written += data.length;
+				assertTrue(pool.getBufferedBytes() <= 65536);
+			}
+			for (OutputStream output : outputs) {
+				output.close();
+			}
+
+			assertTrue(pool.getRelieveCount() > 0);
+			// Files are reopened for kilobytes, not for single writes.
+			assertTrue(pool.getReopenCount() < written / 2048);
+			for (int i = 0; i < files.length; i++) {
+				assertArrayEquals(expected[i].toByteArray(), read(files[i]));
+			}
+		} finally {
+			for (File file : files) {
+				if (file != null) {
+					file.delete();
+				}
+			}
+		}
+	}
+}
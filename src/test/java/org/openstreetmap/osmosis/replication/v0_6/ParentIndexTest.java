@@ -0,0 +1,181 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ParentIndex;
+
+
+/**
+ * Tests the persistent parent index.
+ */
+public class ParentIndexTest {
+
+	private File directory;
+
+
+	/**
+	 * Performs pre-test activities.
+	 *
+	 * @throws IOException
+	 *             if the temporary directory cannot be created.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("parentindex", "");
+		directory.delete();
+	}
+
+
+	/**
+	 * Performs post-test activities.
+	 */
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+
+	private CommonEntityData data(long id, int version) {
+		List<Tag> tags = new ArrayList<Tag>();
+		tags.add(new Tag("highway", "residential"));
+		return new CommonEntityData(id, version, new Date(0), new OsmUser(12, "OsmosisTest"), 0, tags);
+	}
+
+
+	private WayContainer way(long id, int version, long... nodeIds) {
+		List<WayNode> wayNodes = new ArrayList<WayNode>();
+		for (long nodeId : nodeIds) {
+			wayNodes.add(new WayNode(nodeId));
+		}
+		return new WayContainer(new Way(data(id, version), wayNodes));
+	}
+
+
+	private RelationContainer relation(long id, EntityType memberType, long memberId) {
+		List<RelationMember> members = new ArrayList<RelationMember>();
+		members.add(new RelationMember(memberId, memberType, "outer"));
+		return new RelationContainer(new Relation(data(id, 1), members));
+	}
+
+
+	private long[] keys(EntityType type, long... ids) {
+		long[] result = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			result[i] = ParentIndex.key(type, ids[i]);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Parents are only visible after a commit and follow member changes.
+	 */
+	@Test
+	public void testParents() {
+		ParentIndex index = new ParentIndex(directory);
+
+		try {
+			long node1 = ParentIndex.key(EntityType.Node, 1);
+			long node2 = ParentIndex.key(EntityType.Node, 2);
+			long node3 = ParentIndex.key(EntityType.Node, 3);
+
+			index.add(way(10, 1, 1, 2), ChangeAction.Create);
+			index.add(way(11, 1, 2, 3), ChangeAction.Create);
+			index.add(relation(20, EntityType.Way, 10), ChangeAction.Create);
+			assertTrue(index.isChanged(ParentIndex.key(EntityType.Way, 10)));
+			assertEquals(0, index.getParents(node1).length);
+
+			index.commit();
+			assertFalse(index.isChanged(ParentIndex.key(EntityType.Way, 10)));
+			assertArrayEquals(keys(EntityType.Way, 10), index.getParents(node1));
+			assertArrayEquals(keys(EntityType.Way, 10, 11), index.getParents(node2));
+			assertArrayEquals(keys(EntityType.Relation, 20),
+					index.getParents(ParentIndex.key(EntityType.Way, 10)));
+
+			// Way 10 drops node 2 and takes node 3, way 11 is deleted.
+			index.add(way(10, 2, 1, 3), ChangeAction.Modify);
+			index.add(way(11, 1, 2, 3), ChangeAction.Delete);
+			index.commit();
+			assertArrayEquals(keys(EntityType.Way, 10), index.getParents(node1));
+			assertEquals(0, index.getParents(node2).length);
+			assertArrayEquals(keys(EntityType.Way, 10), index.getParents(node3));
+
+			Way way = (Way) index.getEntity(ParentIndex.key(EntityType.Way, 10)).getEntity();
+			assertEquals(2, way.getVersion());
+			assertEquals(3, way.getWayNodes().get(1).getNodeId());
+			assertEquals("residential", way.getTags().iterator().next().getValue());
+			assertNull(index.getEntity(ParentIndex.key(EntityType.Way, 11)));
+		} finally {
+			index.release();
+		}
+	}
+
+
+	/**
+	 * The index survives reopening and merging its segments.
+	 */
+	@Test
+	public void testPersistenceAndCompaction() {
+		ParentIndex index = new ParentIndex(directory);
+
+		// Enough commits to force the segments to be merged.
+		for (int i = 0; i < 20; i++) {
+			index.add(way(100 + i, 1, 1, 1000 + i), ChangeAction.Create);
+			index.commit();
+		}
+		index.add(way(105, 2, 2000), ChangeAction.Modify);
+		index.commit();
+		index.release();
+
+		assertTrue(directory.listFiles().length < 20);
+
+		index = new ParentIndex(directory);
+		try {
+			long[] expected = new long[19];
+			int count = 0;
+			for (int i = 0; i < 20; i++) {
+				if (i != 5) {
+					expected[count++] = ParentIndex.key(EntityType.Way, 100 + i);
+				}
+			}
+
+			assertArrayEquals(expected, index.getParents(ParentIndex.key(EntityType.Node, 1)));
+			assertArrayEquals(keys(EntityType.Way, 119), index.getParents(ParentIndex.key(EntityType.Node, 1019)));
+			assertEquals(0, index.getParents(ParentIndex.key(EntityType.Node, 1005)).length);
+			assertArrayEquals(keys(EntityType.Way, 105), index.getParents(ParentIndex.key(EntityType.Node, 2000)));
+		} finally {
+			index.release();
+		}
+	}
+}
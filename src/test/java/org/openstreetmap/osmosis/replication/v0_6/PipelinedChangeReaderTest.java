@@ -0,0 +1,160 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.replication.v0_6.impl.PipelinedChangeReader;
+import org.openstreetmap.osmosis.testutil.v0_6.SinkChangeInspector;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter;
+
+
+/**
+ * Tests the pipelined change reader.
+ */
+public class PipelinedChangeReaderTest {
+
+	private static final int CHANGE_COUNT = 50000;
+
+	private File changeFile;
+
+
+	/**
+	 * Performs pre-test activities.
+	 *
+	 * @throws IOException
+	 *             if the change file cannot be created.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		changeFile = File.createTempFile("pipelined", ".osc");
+	}
+
+
+	/**
+	 * Performs post-test activities.
+	 */
+	@After
+	public void tearDown() {
+		changeFile.delete();
+	}
+
+
+	private void writeChanges() {
+		XmlChangeWriter writer = new XmlChangeWriter(changeFile, CompressionMethod.None);
+
+		for (int i = 1; i <= CHANGE_COUNT; i++) {
+			CommonEntityData data = new CommonEntityData(i, 1, new Date(0), new OsmUser(12, "OsmosisTest"), 0,
+					new ArrayList<Tag>());
+			writer.process(new ChangeContainer(new NodeContainer(new Node(data, 10, -10)), ChangeAction.Create));
+		}
+		writer.complete();
+		writer.release();
+	}
+
+
+	/**
+	 * All changes arrive in order on the calling thread.
+	 */
+	@Test
+	public void testChanges() {
+		final List<Thread> threads = new ArrayList<Thread>();
+		PipelinedChangeReader reader;
+		SinkChangeInspector inspector = new SinkChangeInspector() {
+			@Override
+			public void process(ChangeContainer change) {
+				if (threads.isEmpty()) {
+					threads.add(Thread.currentThread());
+				}
+				super.process(change);
+			}
+		};
+
+		writeChanges();
+		reader = new PipelinedChangeReader(new XmlChangeReader(changeFile, true, CompressionMethod.None));
+		reader.setChangeSink(inspector);
+		reader.run();
+
+		long expectedId = 1;
+		for (ChangeContainer change : inspector.getProcessedChanges()) {
+			assertEquals(expectedId++, change.getEntityContainer().getEntity().getId());
+		}
+		assertEquals(CHANGE_COUNT + 1, expectedId);
+		assertEquals(Thread.currentThread(), threads.get(0));
+	}
+
+
+	/**
+	 * A parse failure is rethrown to the caller.
+	 *
+	 * @throws IOException
+	 *             if the change file cannot be written.
+	 */
+	@Test
+	public void testParseFailure() throws IOException {
+		PipelinedChangeReader reader;
+		Writer writer = new FileWriter(changeFile);
+
+		try {
+			writer.write("<osmChange version=\"0.6\"><create><node id=\"1\"");
+		} finally {
+			writer.close();
+		}
+
+		reader = new PipelinedChangeReader(new XmlChangeReader(changeFile, true, CompressionMethod.None));
+		reader.setChangeSink(new SinkChangeInspector());
+		try {
+			reader.run();
+			fail("Expected the parse failure to be rethrown.");
+		} catch (OsmosisRuntimeException e) {
+			assertTrue(e.getCause() != null);
+		}
+	}
+
+
+	/**
+	 * A failing sink stops the parser, its own exception reaches the caller.
+	 */
+	@Test
+	public void testSinkFailure() {
+		PipelinedChangeReader reader;
+		final IllegalStateException failure = new IllegalStateException("sink");
+
+		writeChanges();
+		reader = new PipelinedChangeReader(new XmlChangeReader(changeFile, true, CompressionMethod.None));
+		reader.setChangeSink(new SinkChangeInspector() {
+			@Override
+			public void process(ChangeContainer change) {
+				throw failure;
+			}
+		});
+		try {
+			reader.run();
+			fail("Expected the sink failure to be rethrown.");
+		} catch (IllegalStateException e) {
+			assertEquals(failure, e);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.areafilter.common.PolygonFileReader;
+import org.openstreetmap.osmosis.replication.v0_6.impl.PolygonGrid;
+import org.openstreetmap.osmosis.replication.v0_6.impl.Region;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionIndex;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ReplicationFileRegionConfiguration;
+
+
+/**
+ * Tests the polygon grid against the exact area test.
+ */
+public class PolygonGridTest {
+
+	private Area loadTestPolygon() {
+		InputStream input = getClass().getResourceAsStream(
+				"/org/openstreetmap/osmosis/areafilter/v0_6/testPolygon.txt");
+		return new PolygonFileReader(input, "testPolygon.txt").loadPolygon();
+	}
+
+
+	private void assertSameAsArea(Area area, double left, double right, double bottom, double top) {
+		PolygonGrid grid = new PolygonGrid(area);
+		Random random = new Random(42);
+
+		for (int i = 0; i < 200000; i++) {
+			double x = left + random.nextDouble() * (right - left);
+			double y = bottom + random.nextDouble() * (top - bottom);
+
+			assertEquals("Point " + y + "," + x, area.contains(x, y), grid.contains(y, x));
+		}
+	}
+
+
+	/**
+	 * The concave test polygon.
+	 */
+	@Test
+	public void testPolygonFile() {
+		assertSameAsArea(loadTestPolygon(), -25, 25, -25, 25);
+	}
+
+
+	/**
+	 * A multipolygon with a hole and a curved outline.
+	 */
+	@Test
+	public void testMultipolygonWithHole() {
+		Path2D.Double outer = new Path2D.Double();
+		outer.moveTo(0, 0);
+		outer.lineTo(10, 0);
+		outer.lineTo(10, 10);
+		outer.lineTo(0, 10);
+		outer.closePath();
+
+		Area area = new Area(outer);
+		area.subtract(new Area(new Ellipse2D.Double(3, 3, 4, 4)));
+		area.add(new Area(new Ellipse2D.Double(20, 20, 5, 2)));
+
+		assertSameAsArea(area, -1, 26, -1, 23);
+		assertFalse(new PolygonGrid(area).contains(5, 5));
+		assertTrue(new PolygonGrid(area).contains(1, 1));
+	}
+
+
+	/**
+	 * Regions configured with a polygon only contain points within it.
+	 *
+	 * @throws IOException
+	 *             if the temporary files cannot be written.
+	 */
+	@Test
+	public void testPolygonRegion() throws IOException {
+		File directory = File.createTempFile("polygonregion", "");
+		directory.delete();
+		directory.mkdir();
+		File polygonFile = new File(directory, "region.poly");
+		File configFile = new File(directory, "area-list.json");
+
+		try {
+			Writer writer = new FileWriter(polygonFile);
+			writer.write("region\n1\n 0 0\n 10 0\n 0 10\n 0 0\nEND\nEND\n");
+			writer.close();
+			writer = new FileWriter(configFile);
+			writer.write("[{\"name\": \"triangle\", \"folder\": \"triangle\", \"polygon\": \"region.poly\"}]");
+			writer.close();
+
+			List<Region> regions = new ArrayList<Region>(
+					new ReplicationFileRegionConfiguration(configFile).getRegionList());
+			RegionIndex index = new RegionIndex(regions);
+			int[] result = new int[1];
+
+			assertEquals(10, regions.get(0).getBound().getTop(), 0);
+			assertEquals(1, index.findRegions(2.0, 2.0, result));
+			assertEquals(0, index.findRegions(8.0, 8.0, result));
+		} finally {
+			polygonFile.delete();
+			configFile.delete();
+			directory.delete();
+		}
+	}
+
+
+	/**
+	 * Absolute polygon files are not resolved against the configuration
+	 * directory.
+	 *
+	 * @throws IOException
+	 *             if the temporary files cannot be written.
+	 */
+	@Test
+	public void testAbsolutePolygonFile() throws IOException {
+		File polygonFile = File.createTempFile("region", ".poly");
+		File configFile = File.createTempFile("area-list", ".json");
+
+		try {
+			Writer writer = new FileWriter(polygonFile);
+			writer.write("region\n1\n 0 0\n 10 0\n 0 10\n 0 0\nEND\nEND\n");
+			writer.close();
+			writer = new FileWriter(configFile);
+			writer.write("[{\"name\": \"triangle\", \"folder\": \"triangle\", \"polygon\": \""
+					+ polygonFile.getAbsolutePath().replace("\\", "\\\\") + "\"}]");
+			writer.close();
+
+			Region region = new ReplicationFileRegionConfiguration(configFile).getRegionList().get(0);
+
+			assertEquals(polygonFile.getAbsoluteFile(), region.getPolygonFile());
+		} finally {
+			polygonFile.delete();
+			configFile.delete();
+		}
+	}
+}
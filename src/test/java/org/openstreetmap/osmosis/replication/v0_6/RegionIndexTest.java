@@ -0,0 +1,131 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.replication.v0_6.impl.Region;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RegionIndex;
+
+
+/**
+ * Tests the region index against a brute force search over all regions.
+ */
+public class RegionIndexTest {
+
+	private Region buildRegion(String key, double left, double right, double top, double bottom) {
+		Region region = new Region();
+		region.setName(key);
+		region.setKey(key);
+		region.setBound(new Bound(right, left, top, bottom, ""));
+		return region;
+	}
+
+
+	private int[] bruteForce(List<Region> regions, double latitude, double longitude) {
+		int[] result = new int[regions.size()];
+		int count = 0;
+
+		for (int i = 0; i < regions.size(); i++) {
+			for (Bound b : regions.get(i).getBound().toSimpleBound()) {
+				if (b.getTop() >= latitude && b.getBottom() <= latitude
+						&& b.getLeft() <= longitude && b.getRight() >= longitude) {
+					result[count++] = i;
+					break;
+				}
+			}
+		}
+
+		return Arrays.copyOf(result, count);
+	}
+
+
+	private int[] query(RegionIndex index, double latitude, double longitude) {
+		int[] result = new int[index.getRegionCount()];
+		int count = index.findRegions(latitude, longitude, result);
+		int[] matches = Arrays.copyOf(result, count);
+		Arrays.sort(matches);
+		return matches;
+	}
+
+
+	/**
+	 * Random regions and points must give the same answer as testing every
+	 * region.
+	 */
+	@Test
+	public void testMatchesBruteForce() {
+		Random random = new Random(42);
+		List<Region> regions = new ArrayList<Region>();
+
+		// Coordinates are built from whole units of 1e-4 degrees, the same way
+		// parsed coordinates are, so that double and fixed precision
+		// comparisons agree.
+		for (int i = 0; i < 500; i++) {
+			int left = random.nextInt(3500000) - 1750000;
+			int bottom = random.nextInt(1700000) - 850000;
+			int right = left + random.nextInt(50000);
+			int top = bottom + random.nextInt(50000);
+			regions.add(buildRegion("r" + i, left / 10000.0, right / 10000.0, top / 10000.0, bottom / 10000.0));
+		}
+		RegionIndex index = new RegionIndex(regions);
+
+		for (int i = 0; i < 20000; i++) {
+			double latitude = (random.nextInt(1800000) - 900000) / 10000.0;
+			double longitude = (random.nextInt(3600000) - 1800000) / 10000.0;
+			assertArrayEquals(bruteForce(regions, latitude, longitude), query(index, latitude, longitude));
+		}
+	}
+
+
+	/**
+	 * Nodes on the region edges are inside, nested regions both match.
+	 */
+	@Test
+	public void testEdgesAndNesting() {
+		List<Region> regions = new ArrayList<Region>();
+		regions.add(buildRegion("outer", -20, 20, 20, -20));
+		regions.add(buildRegion("inner", -10, 10, 10, -10));
+		RegionIndex index = new RegionIndex(regions);
+
+		assertArrayEquals(new int[] {0, 1}, query(index, 0, 0));
+		assertArrayEquals(new int[] {0, 1}, query(index, 10, 10));
+		assertArrayEquals(new int[] {0}, query(index, 20, -20));
+		assertArrayEquals(new int[] {0}, query(index, -20, 20));
+		assertArrayEquals(new int[] {}, query(index, 20.0000001, 0));
+		assertArrayEquals(new int[] {}, query(index, 50, 50));
+	}
+
+
+	/**
+	 * A region crossing the antimeridian matches on both sides of it.
+	 */
+	@Test
+	public void testAntimeridian() {
+		List<Region> regions = new ArrayList<Region>();
+		regions.add(buildRegion("pacific", 170, -170, 10, -10));
+		RegionIndex index = new RegionIndex(regions);
+
+		assertArrayEquals(new int[] {0}, query(index, 0, 175));
+		assertArrayEquals(new int[] {0}, query(index, 0, -175));
+		assertArrayEquals(new int[] {}, query(index, 0, 0));
+	}
+
+
+	/**
+	 * An index without regions rejects everything.
+	 */
+	@Test
+	public void testEmpty() {
+		RegionIndex index = new RegionIndex(new ArrayList<Region>());
+
+		assertEquals(0, index.findRegions(0.0, 0.0, new int[0]));
+	}
+}
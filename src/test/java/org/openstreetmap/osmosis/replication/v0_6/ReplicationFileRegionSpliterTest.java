@@ -0,0 +1,346 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.replication.common.FileReplicationStore;
+import org.openstreetmap.osmosis.replication.common.ReplicationState;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ReplicationDownloaderConfiguration;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeReader;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter;
+
+
+/**
+ * Tests the replication file region spliter.
+ */
+public class ReplicationFileRegionSpliterTest {
+
+	private File directory;
+	private File changeFile;
+
+
+	/**
+	 * Performs pre-test activities.
+	 *
+	 * @throws IOException
+	 *             if the working directory cannot be created.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("spliter", "");
+		directory.delete();
+		directory.mkdir();
+
+		write("configuration.txt", "baseUrl=http://localhost/\nintervalLength=60\nmaxInterval=0\n");
+		write("area-list.json", "[" + area("a") + "]");
+		new File(directory, "a").mkdir();
+
+		CommonEntityData data = new CommonEntityData(1, 1, new Date(0), new OsmUser(12, "OsmosisTest"), 0,
+				new ArrayList<Tag>());
+		changeFile = new File(directory, "change.osc");
+		XmlChangeWriter writer = new XmlChangeWriter(changeFile, CompressionMethod.None);
+		writer.process(new ChangeContainer(new NodeContainer(new Node(data, 10, -10)), ChangeAction.Create));
+		writer.complete();
+		writer.release();
+	}
+
+
+	/**
+	 * Performs post-test activities.
+	 */
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+
+	private void write(String name, String content) throws IOException {
+		write(directory, name, content);
+	}
+
+
+	private void write(File workingDirectory, String name, String content) throws IOException {
+		Writer writer = new FileWriter(new File(workingDirectory, name));
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+
+	private String area(String key) {
+		return "{\"name\":\"" + key + "\",\"folder\":\"" + key
+				+ "\",\"bound\":{\"top-left\":\"40,-40\",\"bottom-right\":\"0,0\"}}";
+	}
+
+
+	private CommonEntityData data(long id) {
+		return new CommonEntityData(id, 1, new Date(0), new OsmUser(12, "OsmosisTest"), 0, new ArrayList<Tag>());
+	}
+
+
+	private String box(String key, String topLeft, String bottomRight) {
+		return "{\"name\":\"" + key + "\",\"folder\":\"" + key
+				+ "\",\"bound\":{\"top-left\":\"" + topLeft + "\",\"bottom-right\":\"" + bottomRight + "\"}}";
+	}
+
+
+	private String read(File file) throws IOException {
+		InputStream input = new GZIPInputStream(new FileInputStream(file));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+
+		try {
+			while ((count = input.read(buffer)) > 0) {
+				output.write(buffer, 0, count);
+			}
+		} finally {
+			input.close();
+		}
+
+		return output.toString("UTF-8");
+	}
+
+
+	private void processChangeset(ReplicationFileRegionSpliter spliter, long sequenceNumber) {
+		spliter.processChangeset(new XmlChangeReader(changeFile, true, CompressionMethod.None),
+				new ReplicationState(new Date(sequenceNumber * 60000 + 1), sequenceNumber));
+	}
+
+
+	private long getSequenceNumber(String key) {
+		return new FileReplicationStore(new File(directory, key), true).getCurrentState().getSequenceNumber();
+	}
+
+
+	/**
+	 * Regions added to the configuration between intervals start with the next
+	 * interval, removed regions are no longer written.
+	 *
+	 * @throws IOException
+	 *             if the configuration cannot be written.
+	 */
+	@Test
+	public void testReloadRegions() throws IOException {
+		File areaFile = new File(directory, "area-list.json");
+		ReplicationFileRegionSpliter spliter = new ReplicationFileRegionSpliter(directory);
+
+		try {
+			spliter.processInitializeState(new ReplicationState(new Date(0), 0));
+			processChangeset(spliter, 0);
+
+			write("area-list.json", "[" + area("b") + "," + area("c") + "]");
+			areaFile.setLastModified(areaFile.lastModified() + 2000);
+
+			// Closes the first interval, the second uses the new regions.
+			processChangeset(spliter, 1);
+			spliter.processComplete();
+		} finally {
+			spliter.processRelease();
+		}
+
+		assertEquals(1, getSequenceNumber("a"));
+		assertFalse(new File(directory, "a/000/000/002.osc.gz").exists());
+		for (String key : new String[] {"b", "c"}) {
+			assertEquals(2, getSequenceNumber(key));
+			assertTrue(new File(directory, key + "/000/000/001.state.txt").exists());
+			assertFalse(new File(directory, key + "/000/000/001.osc.gz").exists());
+			assertTrue(new File(directory, key + "/000/000/002.osc.gz").exists());
+		}
+
+		// A new invocation continues from the regions now configured.
+		spliter = new ReplicationFileRegionSpliter(directory);
+		try {
+			spliter.calculateMaximumTimestamp(
+					new ReplicationDownloaderConfiguration(new File(directory, "configuration.txt")),
+					new Date(600000), new Date(60001));
+			processChangeset(spliter, 2);
+			spliter.processComplete();
+		} finally {
+			spliter.processRelease();
+		}
+		assertEquals(3, getSequenceNumber("b"));
+	}
+
+
+	/**
+	 * Regions with the same area are written once, each keeps its own files
+	 * and state.
+	 *
+	 * @throws IOException
+	 *             if the configuration cannot be written.
+	 */
+	@Test
+	public void testDuplicateRegions() throws IOException {
+		ReplicationFileRegionSpliter spliter;
+
+		write("area-list.json", "[" + area("a") + "," + area("b") + "]");
+		spliter = new ReplicationFileRegionSpliter(directory);
+		try {
+			spliter.processInitializeState(new ReplicationState(new Date(0), 0));
+			processChangeset(spliter, 0);
+			processChangeset(spliter, 1);
+			spliter.processComplete();
+		} finally {
+			spliter.processRelease();
+		}
+
+		File dataA = new File(directory, "a/000/000/001.osc.gz");
+		File dataB = new File(directory, "b/000/000/001.osc.gz");
+		assertEquals(2, getSequenceNumber("a"));
+		assertEquals(2, getSequenceNumber("b"));
+		assertTrue(new File(directory, "b/000/000/002.state.txt").exists());
+		assertTrue(dataA.length() > 0);
+		assertEquals(dataA.length(), dataB.length());
+
+		// Replacing the file of one region leaves the other untouched.
+		assertTrue(dataA.delete());
+		assertTrue(dataB.exists());
+	}
+
+
+	/**
+	 * Tiles with changes get a file per interval, the tile state follows the
+	 * regions.
+	 *
+	 * @throws IOException
+	 *             if the configuration cannot be written.
+	 */
+	@Test
+	public void testTiles() throws IOException {
+		ReplicationFileRegionSpliter spliter;
+		File tiles = new File(directory, "tiles");
+
+		write("configuration.txt", "baseUrl=http://localhost/\nintervalLength=60\nmaxInterval=0\n"
+				+ "tileZoom=2\nmaxOpenFiles=1\n");
+		spliter = new ReplicationFileRegionSpliter(directory);
+		try {
+			spliter.processInitializeState(new ReplicationState(new Date(0), 0));
+			processChangeset(spliter, 0);
+			processChangeset(spliter, 1);
+			spliter.processComplete();
+		} finally {
+			spliter.processRelease();
+		}
+
+		assertEquals(2, getSequenceNumber("tiles"));
+		assertTrue(new File(tiles, "000/000/001/2/1/1.osc.gz").length() > 0);
+		assertEquals(1, new File(tiles, "000/000/001/2").list().length);
+		assertEquals(1, new File(tiles, "000/000/001/2/1").list().length);
+		assertTrue(new File(tiles, "000/000/002/2/1/1.osc.gz").exists());
+	}
+
+
+	private Map<String, String> splitNested(boolean regionHierarchy) throws IOException {
+		File workingDirectory = new File(directory, regionHierarchy ? "nested" : "flat");
+		Map<String, String> result = new HashMap<String, String>();
+		String[] keys = {"triangle", "in", "inner", "out"};
+		ReplicationFileRegionSpliter spliter;
+
+		workingDirectory.mkdir();
+		write(workingDirectory, "configuration.txt", "baseUrl=http://localhost/\nintervalLength=60\nmaxInterval=0\n"
+				+ "regionHierarchy=" + regionHierarchy + "\n");
+		write(workingDirectory, "triangle.poly", "triangle\n1\n 0 0\n 20 0\n 0 20\n 0 0\nEND\nEND\n");
+		write(workingDirectory, "area-list.json", "[{\"name\":\"triangle\",\"folder\":\"triangle\","
+				+ "\"polygon\":\"triangle.poly\"}," + box("in", "6,2", "2,6") + "," + box("inner", "4,3", "3,4")
+				+ "," + box("out", "8,10", "2,16") + "]");
+
+		spliter = new ReplicationFileRegionSpliter(workingDirectory);
+		try {
+			spliter.processInitializeState(new ReplicationState(new Date(0), 0));
+			processChangeset(spliter, 0);
+			processChangeset(spliter, 1);
+			spliter.processComplete();
+		} finally {
+			spliter.processRelease();
+		}
+
+		for (String key : keys) {
+			result.put(key, read(new File(workingDirectory, key + "/000/000/001.osc.gz")));
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Regions filtered from the changes of a region they lie within get the
+	 * same files as when filtered from the whole interval. A region sticking
+	 * out of a polygon is not nested below it even though its bound lies
+	 * within the polygon bound.
+	 *
+	 * @throws IOException
+	 *             if the configuration cannot be written.
+	 */
+	@Test
+	public void testRegionHierarchy() throws IOException {
+		XmlChangeWriter writer = new XmlChangeWriter(changeFile, CompressionMethod.None);
+		List<WayNode> wayNodes = new ArrayList<WayNode>();
+		Map<String, String> flat;
+		Map<String, String> nested;
+
+		writer.process(new ChangeContainer(new NodeContainer(new Node(data(1), 3, 3)), ChangeAction.Create));
+		writer.process(new ChangeContainer(new NodeContainer(new Node(data(2), 4, 14)), ChangeAction.Create));
+		writer.process(new ChangeContainer(new NodeContainer(new Node(data(3), 7, 15)), ChangeAction.Create));
+		wayNodes.add(new WayNode(1));
+		wayNodes.add(new WayNode(2));
+		writer.process(new ChangeContainer(new WayContainer(new Way(data(10), wayNodes)), ChangeAction.Create));
+		writer.complete();
+		writer.release();
+
+		flat = splitNested(false);
+		nested = splitNested(true);
+
+		assertEquals(flat, nested);
+		// Node 3 lies outside the triangle, within the region sticking out.
+		assertFalse(nested.get("triangle").contains("<node id=\"3\""));
+		assertTrue(nested.get("out").contains("<node id=\"3\""));
+		assertTrue(nested.get("out").contains("<node id=\"2\""));
+		assertTrue(nested.get("inner").contains("<node id=\"1\""));
+		assertTrue(nested.get("inner").contains("<way id=\"10\""));
+		assertTrue(nested.get("inner").contains("<node id=\"2\""));
+	}
+}
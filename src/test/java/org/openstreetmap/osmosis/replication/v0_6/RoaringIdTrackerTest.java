@@ -0,0 +1,145 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.filter.common.IdTracker;
+import org.openstreetmap.osmosis.replication.v0_6.impl.AdaptiveIdTracker;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerFactory;
+import org.openstreetmap.osmosis.replication.v0_6.impl.ChangeIdTrackerType;
+import org.openstreetmap.osmosis.replication.v0_6.impl.RoaringIdTracker;
+
+
+/**
+ * Tests the roaring and adaptive id trackers against a tree set.
+ */
+public class RoaringIdTrackerTest {
+
+	/**
+	 * Sparse ids across the 64-bit range, dense runs and negative ids.
+	 */
+	private List<Long> createIds(long seed) {
+		Random random = new Random(seed);
+		List<Long> ids = new ArrayList<Long>();
+
+		for (int i = 0; i < 5000; i++) {
+			ids.add(random.nextLong());
+		}
+		for (int i = 0; i < 20000; i++) {
+			ids.add(10000000000L + random.nextInt(30000));
+		}
+		for (int i = 0; i < 2000; i++) {
+			ids.add(-1 - (long) random.nextInt(100000));
+		}
+		ids.add(Long.MAX_VALUE);
+		ids.add(Long.MIN_VALUE);
+		ids.add(0L);
+
+		return ids;
+	}
+
+
+	private void assertSame(TreeSet<Long> expected, IdTracker tracker) {
+		Iterator<Long> iterator = tracker.iterator();
+
+		for (Long id : expected) {
+			assertTrue(tracker.get(id));
+			assertEquals(id, iterator.next());
+		}
+		assertFalse(iterator.hasNext());
+	}
+
+
+	private void checkType(ChangeIdTrackerType type) {
+		IdTracker first = ChangeIdTrackerFactory.createInstance(type);
+		IdTracker second = ChangeIdTrackerFactory.createInstance(type);
+		TreeSet<Long> firstIds = new TreeSet<Long>();
+		TreeSet<Long> secondIds = new TreeSet<Long>();
+
+		for (Long id : createIds(1)) {
+			first.set(id);
+			firstIds.add(id);
+		}
+		for (Long id : createIds(2)) {
+			second.set(id);
+			secondIds.add(id);
+		}
+		assertSame(firstIds, first);
+		assertFalse(first.get(10000000000L + 40000));
+		assertFalse(first.get(-200000));
+
+		first.setAll(second);
+		firstIds.addAll(secondIds);
+		assertSame(firstIds, first);
+		assertSame(secondIds, second);
+	}
+
+
+	/**
+	 * The roaring tracker matches a tree set.
+	 */
+	@Test
+	public void testRoaring() {
+		checkType(ChangeIdTrackerType.Roaring);
+	}
+
+
+	/**
+	 * The adaptive tracker matches a tree set.
+	 */
+	@Test
+	public void testAuto() {
+		checkType(ChangeIdTrackerType.Auto);
+	}
+
+
+	/**
+	 * Sparse ids stay in the list, dense ids move to bitmaps.
+	 */
+	@Test
+	public void testAdaptiveChoice() {
+		AdaptiveIdTracker sparse = new AdaptiveIdTracker();
+		AdaptiveIdTracker dense = new AdaptiveIdTracker();
+		Random random = new Random(3);
+
+		for (int i = 0; i < 100000; i++) {
+			sparse.set(random.nextLong() & Long.MAX_VALUE);
+			dense.set(i * 3);
+		}
+
+		assertFalse(sparse.isRoaring());
+		assertTrue(dense.isRoaring());
+	}
+
+
+	/**
+	 * Chunks filling up switch from arrays to bitmaps and back to merging.
+	 */
+	@Test
+	public void testFullChunk() {
+		RoaringIdTracker tracker = new RoaringIdTracker();
+		RoaringIdTracker other = new RoaringIdTracker();
+
+		for (long id = 65536; id < 2 * 65536; id += 2) {
+			tracker.set(id);
+			other.set(id + 1);
+		}
+		assertEquals(32768, tracker.size());
+
+		tracker.setAll(other);
+		assertEquals(65536, tracker.size());
+		long expected = 65536;
+		for (Long id : tracker) {
+			assertEquals(expected++, (long) id);
+		}
+	}
+}
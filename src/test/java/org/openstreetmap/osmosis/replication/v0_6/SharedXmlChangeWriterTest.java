@@ -0,0 +1,133 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.container.v0_6.ChangeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.NodeContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.RelationContainer;
+import org.openstreetmap.osmosis.core.container.v0_6.WayContainer;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+import org.openstreetmap.osmosis.core.task.common.ChangeAction;
+import org.openstreetmap.osmosis.core.task.v0_6.ChangeSink;
+import org.openstreetmap.osmosis.replication.v0_6.impl.OutputFilePool;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SharedChangeContainer;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SharedXmlChangeWriter;
+import org.openstreetmap.osmosis.xml.common.CompressionMethod;
+import org.openstreetmap.osmosis.xml.v0_6.XmlChangeWriter;
+
+
+/**
+ * Tests the shared XML change writer.
+ */
+public class SharedXmlChangeWriterTest {
+
+	private List<ChangeContainer> buildChanges() {
+		List<ChangeContainer> changes = new ArrayList<ChangeContainer>();
+		List<Tag> tags = Arrays.asList(new Tag("name", "a&b\"<>\u00e9"));
+		CommonEntityData data = new CommonEntityData(1, 2, new Date(0), new OsmUser(3, "u"), 4, tags);
+
+		changes.add(new ChangeContainer(new NodeContainer(new Node(data, 1.5, 2.25)), ChangeAction.Create));
+		changes.add(new ChangeContainer(new NodeContainer(new Node(new CommonEntityData(2, 1, new Date(0),
+				OsmUser.NONE, 0), 1, 2)), ChangeAction.Create));
+		changes.add(new ChangeContainer(new WayContainer(new Way(data, Arrays.asList(new WayNode(1),
+				new WayNode(2)))), ChangeAction.Modify));
+		changes.add(new ChangeContainer(new RelationContainer(new Relation(data, Arrays.asList(
+				new RelationMember(1, EntityType.Node, "r")))), ChangeAction.Delete));
+		changes.add(new ChangeContainer(new NodeContainer(new Node(data, -1, 0)), ChangeAction.Create));
+
+		return changes;
+	}
+
+
+	private void write(ChangeSink writer, List<ChangeContainer> changes) {
+		writer.initialize(null);
+		for (ChangeContainer change : changes) {
+			writer.process(change);
+		}
+		writer.complete();
+		writer.release();
+	}
+
+
+	private byte[] read(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = new GZIPInputStream(new FileInputStream(file));
+		byte[] buffer = new byte[4096];
+		int length;
+
+		try {
+			while ((length = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+		}
+
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * The document is identical to the one of the xml plugin, whether or not
+	 * the changes are shared.
+	 *
+	 * @throws IOException
+	 *             if a file cannot be accessed.
+	 */
+	@Test
+	public void testSameDocument() throws IOException {
+		List<ChangeContainer> changes = buildChanges();
+		List<ChangeContainer> sharedChanges = new ArrayList<ChangeContainer>();
+		File expectedFile = File.createTempFile("expected", ".osc.gz");
+		File plainFile = File.createTempFile("plain", ".osc.gz");
+		File sharedFile = File.createTempFile("shared", ".osc.gz");
+		File pooledFile = File.createTempFile("pooled", ".osc.gz");
+
+		for (ChangeContainer change : changes) {
+			sharedChanges.add(new SharedChangeContainer(change));
+		}
+
+		try {
+			write(new XmlChangeWriter(expectedFile, CompressionMethod.GZip), changes);
+			write(new SharedXmlChangeWriter(plainFile), changes);
+			write(new SharedXmlChangeWriter(sharedFile), sharedChanges);
+			// A second region reuses the stored encoding.
+			assertNotNull(((SharedChangeContainer) sharedChanges.get(0)).getXml());
+			write(new SharedXmlChangeWriter(sharedFile), sharedChanges);
+			// Drained after every change, so each one is a gzip member.
+			write(new SharedXmlChangeWriter(pooledFile, new OutputFilePool(1, 0)), changes);
+
+			byte[] expected = read(expectedFile);
+			assertArrayEquals(expected, read(plainFile));
+			assertArrayEquals(expected, read(sharedFile));
+			assertArrayEquals(expected, read(pooledFile));
+		} finally {
+			expectedFile.delete();
+			plainFile.delete();
+			sharedFile.delete();
+			pooledFile.delete();
+		}
+	}
+}
@@ -0,0 +1,178 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SortedSegmentStore;
+
+
+/**
+ * Tests the sorted segment store.
+ */
+public class SortedSegmentStoreTest {
+
+	private static final SortedSegmentStore.ValueMerger NEWEST_WINS = new SortedSegmentStore.ValueMerger() {
+		@Override
+		public byte[] merge(byte[] newer, byte[] older) {
+			return newer;
+		}
+	};
+
+	private static final long MAX_SEGMENT_LENGTH = 256;
+
+	private File directory;
+
+
+	/**
+	 * Performs pre-test activities.
+	 *
+	 * @throws IOException
+	 *             if the temporary directory cannot be created.
+	 */
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("segmentstore", "");
+		directory.delete();
+	}
+
+
+	/**
+	 * Performs post-test activities.
+	 */
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+
+	private byte[] value(int length, int seed) {
+		byte[] value = new byte[length];
+
+		new Random(seed).nextBytes(value);
+
+		return value;
+	}
+
+
+	private void assertSegmentLengths(long maxLength) {
+		for (File file : directory.listFiles()) {
+			if (file.getName().endsWith(".seg")) {
+				assertTrue(file + " is " + file.length() + " bytes", file.length() <= maxLength);
+			}
+		}
+	}
+
+
+	/**
+	 * Writes and merges keep every segment file within the length limit and
+	 * lose no values, also after reopening.
+	 */
+	@Test
+	public void testSegmentLengthLimit() {
+		SortedSegmentStore store = new SortedSegmentStore(directory, "test", NEWEST_WINS, MAX_SEGMENT_LENGTH);
+		SortedMap<Long, byte[]> expected = new TreeMap<Long, byte[]>();
+		Random random = new Random(5);
+
+		try {
+			for (int i = 0; i < 50; i++) {
+				SortedMap<Long, byte[]> batch = new TreeMap<Long, byte[]>();
+
+				for (int j = 0; j < 20; j++) {
+					batch.put((long) random.nextInt(200), value(1 + random.nextInt(16), i * 20 + j));
+				}
+				store.write(batch);
+				expected.putAll(batch);
+				assertSegmentLengths(MAX_SEGMENT_LENGTH);
+			}
+		} finally {
+			store.release();
+		}
+
+		store = new SortedSegmentStore(directory, "test", NEWEST_WINS, MAX_SEGMENT_LENGTH);
+		try {
+			for (long key = 0; key < 200; key++) {
+				byte[] value = store.get(key);
+
+				if (expected.containsKey(key)) {
+					assertArrayEquals(expected.get(key), value);
+				} else {
+					assertNull(value);
+				}
+			}
+		} finally {
+			store.release();
+		}
+	}
+
+
+	/**
+	 * A value longer than the limit gets a segment of its own.
+	 */
+	@Test
+	public void testOversizedValue() {
+		SortedSegmentStore store = new SortedSegmentStore(directory, "test", NEWEST_WINS, MAX_SEGMENT_LENGTH);
+		SortedMap<Long, byte[]> batch = new TreeMap<Long, byte[]>();
+
+		try {
+			batch.put(1L, value(8, 1));
+			batch.put(2L, value(1000, 2));
+			batch.put(3L, value(8, 3));
+			store.write(batch);
+
+			assertEquals(3, store.getSegmentCount());
+			assertArrayEquals(value(8, 1), store.get(1));
+			assertArrayEquals(value(1000, 2), store.get(2));
+			assertArrayEquals(value(8, 3), store.get(3));
+		} finally {
+			store.release();
+		}
+	}
+
+
+	/**
+	 * Values superseded within full segments are reclaimed, so rewriting the
+	 * same keys does not grow the store without bound.
+	 */
+	@Test
+	public void testFullCompaction() {
+		SortedSegmentStore store = new SortedSegmentStore(directory, "test", NEWEST_WINS, MAX_SEGMENT_LENGTH);
+		long liveLength;
+
+		try {
+			for (int i = 0; i < 200; i++) {
+				SortedMap<Long, byte[]> batch = new TreeMap<Long, byte[]>();
+
+				for (long key = 0; key < 20; key++) {
+					batch.put(key, value(16, i));
+				}
+				store.write(batch);
+			}
+
+			// 20 entries of 16 bytes and the footers of three segments.
+			liveLength = 20 * (16 + 12) + 3 * 12;
+			assertTrue(store.getLength() + " bytes", store.getLength() <= 3 * liveLength);
+			assertArrayEquals(value(16, 199), store.get(7));
+			assertSegmentLengths(MAX_SEGMENT_LENGTH);
+		} finally {
+			store.release();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.replication.v0_6.impl.LatencySnapshot;
+import org.openstreetmap.osmosis.replication.v0_6.impl.SpliterMetrics;
+
+
+/**
+ * Tests the spliter metrics.
+ */
+public class SpliterMetricsTest {
+
+	/**
+	 * Time spent in a nested stage is not charged to the outer stage.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while sleeping.
+	 */
+	@Test
+	public void testExclusiveStageTime() throws InterruptedException {
+		SpliterMetrics metrics = new SpliterMetrics(new String[0]);
+
+		metrics.enter(SpliterMetrics.Stage.Parse);
+		Thread.sleep(50);
+		metrics.enter(SpliterMetrics.Stage.Sort);
+		Thread.sleep(200);
+		metrics.exit();
+		metrics.exit();
+
+		double parse = metrics.getStageSeconds().get("Parse");
+		double sort = metrics.getStageSeconds().get("Sort");
+		assertTrue("Parse took " + parse, parse >= 0.04 && parse < 0.2);
+		assertTrue("Sort took " + sort, sort >= 0.19);
+	}
+
+
+	/**
+	 * The metrics are readable through the platform MBean server.
+	 *
+	 * @throws JMException
+	 *             if the attribute cannot be read.
+	 */
+	@Test
+	public void testMBean() throws JMException {
+		SpliterMetrics metrics = new SpliterMetrics(new String[] {"a", "b"});
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.openstreetmap.osmosis.replication:type=ReplicationFileRegionSpliter,name="
+				+ ObjectName.quote("test"));
+
+		metrics.register("test");
+		try {
+			metrics.addChangeIn();
+			metrics.addChangeIn();
+			assertEquals(2L, server.getAttribute(name, "ChangesIn"));
+		} finally {
+			metrics.unregister();
+		}
+		assertTrue(!server.isRegistered(name));
+	}
+
+
+	/**
+	 * Region lag runs from the oldest change of the interval.
+	 */
+	@Test
+	public void testRegionLag() {
+		SpliterMetrics metrics = new SpliterMetrics(new String[] {"a", "b"});
+
+		metrics.addRegionChangeEmitted(0, new Date(5000));
+		metrics.addRegionChangeEmitted(0, new Date(2000));
+		metrics.addRegionChangeEmitted(0, new Date(9000));
+		metrics.addRegionWritten(0, 12000);
+		metrics.addRegionWritten(1, 12000);
+		metrics.addRegionChangeEmitted(0, new Date(20000));
+		metrics.addRegionWritten(0, 21000);
+
+		LatencySnapshot lag = metrics.getRegionLag().get("a");
+		assertEquals(2, lag.getCount());
+		assertEquals(10000, lag.getMax());
+		assertEquals(0, metrics.getRegionLag().get("b").getCount());
+	}
+
+
+	/**
+	 * The Prometheus file holds a sample per region with escaped labels.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	@Test
+	public void testPrometheusFile() throws IOException {
+		SpliterMetrics metrics = new SpliterMetrics(new String[] {"europe", "odd\"name"});
+		File file = File.createTempFile("metrics", ".prom");
+		List<String> lines = new ArrayList<String>();
+
+		metrics.addChangeIn();
+		metrics.addRegionChangeIn(new int[] {0, 1});
+		metrics.addRegionChangeEmitted(1, null);
+		metrics.addRegionBytesWritten(0, 1234);
+		metrics.addInterval(10, 3, 7, 5);
+		metrics.addSpilledInterval();
+		try {
+			metrics.writePrometheusFile(file);
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					lines.add(line);
+				}
+			} finally {
+				reader.close();
+			}
+		} finally {
+			file.delete();
+		}
+
+		assertTrue(lines.contains("osmosis_spliter_changes_in_total 1"));
+		assertTrue(lines.contains("osmosis_spliter_region_changes_in_total{region=\"odd\\\"name\"} 1"));
+		assertTrue(lines.contains("osmosis_spliter_region_changes_emitted_total{region=\"europe\"} 0"));
+		assertTrue(lines.contains("osmosis_spliter_region_bytes_written_total{region=\"europe\"} 1234"));
+		assertTrue(lines.contains("osmosis_spliter_spooled_bytes 7"));
+		assertTrue(lines.contains("osmosis_spliter_spilled_bytes_total 5"));
+		assertTrue(lines.contains("osmosis_spliter_spilled_intervals_total 1"));
+		assertTrue(lines.contains("# TYPE osmosis_spliter_tracked_ids gauge"));
+		assertTrue(lines.contains("osmosis_spliter_region_lag_seconds_count{region=\"europe\"} 0"));
+		assertTrue(lines.contains("osmosis_spliter_interval_seconds{quantile=\"0.99\"} 0.0"));
+	}
+}
@@ -0,0 +1,81 @@
+// This software is released into the Public Domain.  See copying.txt for details.
+package org.openstreetmap.osmosis.replication.v0_6;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.openstreetmap.osmosis.core.OsmosisRuntimeException;
+import org.openstreetmap.osmosis.replication.v0_6.impl.TileIndex;
+
+
+/**
+ * Tests the tile index.
+ */
+public class TileIndexTest {
+
+	private int findTile(TileIndex index, double latitude, double longitude) {
+		int[] result = new int[1];
+
+		if (index.findRegions(latitude, longitude, result) == 0) {
+			return -1;
+		}
+
+		return result[0];
+	}
+
+
+	/**
+	 * Points are located in the tile whose bounds contain them.
+	 */
+	@Test
+	public void testMatchesTileBounds() {
+		Random random = new Random(7);
+
+		for (int zoom = 0; zoom <= TileIndex.MAX_ZOOM; zoom++) {
+			TileIndex index = new TileIndex(zoom);
+
+			assertEquals(1 << (2 * zoom), index.getRegionCount());
+			for (int i = 0; i < 1000; i++) {
+				double latitude = random.nextDouble() * 170 - 85;
+				double longitude = random.nextDouble() * 360 - 180;
+				int tile = findTile(index, latitude, longitude);
+				int x = index.getX(tile);
+				int y = index.getY(tile);
+
+				assertTrue(longitude >= TileIndex.xToLon(zoom, x) - 1e-7);
+				assertTrue(longitude <= TileIndex.xToLon(zoom, x + 1) + 1e-7);
+				assertTrue(latitude <= TileIndex.yToLat(zoom, y) + 1e-7);
+				assertTrue(latitude >= TileIndex.yToLat(zoom, y + 1) - 1e-7);
+			}
+		}
+	}
+
+
+	/**
+	 * Points on an edge belong to the tile to the east or south, points beyond
+	 * the projection belong to no tile.
+	 */
+	@Test
+	public void testEdges() {
+		TileIndex index = new TileIndex(2);
+
+		assertEquals(2 * 4 + 2, findTile(index, 0, 0));
+		assertEquals(1, findTile(index, TileIndex.yToLat(2, 0), TileIndex.xToLon(2, 1)));
+		assertEquals(3 * 4 + 3, findTile(index, TileIndex.yToLat(2, 4), 180));
+		assertEquals(-1, findTile(index, 89, 0));
+		assertEquals(-1, findTile(index, -89, 0));
+		assertEquals(1 * 4 + 1, findTile(index, 10, -10));
+	}
+
+
+	/**
+	 * Zoom levels beyond the supported range are rejected.
+	 */
+	@Test(expected = OsmosisRuntimeException.class)
+	public void testInvalidZoom() {
+		new TileIndex(TileIndex.MAX_ZOOM + 1);
+	}
+}